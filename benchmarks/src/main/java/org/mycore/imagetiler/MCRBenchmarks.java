@@ -0,0 +1,112 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Random;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the JMH benchmarks of the image tiler.
+ *
+ * Accepts the same arguments as <code>org.openjdk.jmh.Main</code>, but adds the GC profiler, so that
+ * allocation rates are reported with every result. Pass <code>-prof</code> to use other profilers instead.
+ */
+public final class MCRBenchmarks {
+
+    /**
+     * system property with the directory of the test images, relative to the working directory.
+     */
+    private static final String IMAGE_DIR_PROPERTY = "imagetiler.images";
+
+    private MCRBenchmarks() {
+    }
+
+    /**
+     * runs the benchmarks.
+     * @param args JMH command line arguments, e.g. a regular expression selecting the benchmarks
+     * @throws CommandLineOptionException if <code>args</code> are invalid
+     * @throws RunnerException if a benchmark failed
+     * @throws IOException if benchmarks could not be listed
+     */
+    public static void main(final String[] args)
+        throws CommandLineOptionException, RunnerException, IOException {
+        final CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        final ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (commandLine.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        final Runner runner = new Runner(options.build());
+        if (commandLine.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+
+    /**
+     * @return a test image of the image tiler, see {@link #IMAGE_DIR_PROPERTY}
+     */
+    static Path getTestImage(final String fileName) {
+        return Paths.get(System.getProperty(IMAGE_DIR_PROPERTY, "../src/test/resources")).resolve(fileName);
+    }
+
+    /**
+     * @param name name of a <code>BufferedImage.TYPE_*</code> constant without prefix, e.g. <code>INT_RGB</code>
+     * @return the image type
+     */
+    static int getImageType(final String name) {
+        try {
+            return BufferedImage.class.getField("TYPE_" + name).getInt(null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalArgumentException("Unknown image type: " + name, e);
+        }
+    }
+
+    /**
+     * creates an image with a gradient and some noise, so that encoders and filters cannot take shortcuts.
+     */
+    static BufferedImage createImage(final int width, final int height, final int imageType) {
+        final BufferedImage image = new BufferedImage(width, height, imageType);
+        final Random random = new Random(width * 31L + height);
+        final int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                final int noise = random.nextInt(32);
+                row[x] = 0x80000000 | (x + noise & 0xFF) << 16 | (y + noise & 0xFF) << 8 | (x + y & 0xFF);
+            }
+            image.setRGB(0, y, width, 1, row, 0, width);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MCRImage#convertIfNeeded(BufferedImage, MCRRasterPool)} for image types that cannot be written as
+ * JPEG, with and without a {@link MCRRasterPool}. <code>INT_RGB</code> needs no conversion.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MCRConvertBenchmark {
+
+    @Param({ "INT_RGB", "INT_ARGB", "4BYTE_ABGR", "BYTE_INDEXED", "USHORT_GRAY" })
+    private String imageType;
+
+    @Param({ "1024", "4096" })
+    private int size;
+
+    @Param({ "false", "true" })
+    private boolean pooled;
+
+    private BufferedImage image;
+
+    private MCRRasterPool pool;
+
+    /**
+     * creates the source image and the pool.
+     */
+    @Setup
+    public void setUp() {
+        image = MCRBenchmarks.createImage(size, size, MCRBenchmarks.getImageType(imageType));
+        pool = pooled ? new MCRRasterPool(Long.MAX_VALUE) : null;
+    }
+
+    /**
+     * converts the image and returns the converted image to the pool.
+     * @return the converted image
+     */
+    @Benchmark
+    public BufferedImage convert() {
+        final BufferedImage converted = MCRImage.convertIfNeeded(image, pool);
+        if (pool != null && converted != image) {
+            pool.release(converted);
+        }
+        return converted;
+    }
+}
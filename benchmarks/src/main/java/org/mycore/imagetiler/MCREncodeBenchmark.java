@@ -0,0 +1,86 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures the JPEG encoding of a single tile.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MCREncodeBenchmark {
+
+    @Param({ "INT_RGB", "3BYTE_BGR", "BYTE_GRAY" })
+    private String imageType;
+
+    private BufferedImage tile;
+
+    private ImageWriter imageWriter;
+
+    /**
+     * creates the tile and the image writer.
+     */
+    @Setup
+    public void setUp() {
+        final int tileSize = MCRImage.getTileSize();
+        tile = MCRBenchmarks.createImage(tileSize, tileSize, MCRBenchmarks.getImageType(imageType));
+        imageWriter = ImageIO.getImageWritersBySuffix("jpeg").next();
+    }
+
+    /**
+     * disposes the image writer.
+     */
+    @TearDown
+    public void tearDown() {
+        imageWriter.dispose();
+    }
+
+    /**
+     * encodes the tile.
+     * @return size of the encoded tile
+     * @throws IOException if encoding fails
+     */
+    @Benchmark
+    public int encode() throws IOException {
+        return MCRImage.encodeJpegTile(imageWriter, tile).length;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.stream.ImageInputStream;
+
+import org.mycore.imagetiler.input.impl.MCRFileChannelInputStream;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MCRImage#getTileOfFile(ImageReader, int, int, int, int)} on the bundled test images, reading
+ * through {@link MCRFileChannelInputStream} or the stock {@link FileImageInputStream}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MCRReadBenchmark {
+
+    @Param({ "Bay_of_Noboto.jpg", "BE_0681_0397.jpg", "tiff48.tif", "stripes.png" })
+    private String image;
+
+    @Param({ "channel", "file" })
+    private String stream;
+
+    @Param({ "256", "1024" })
+    private int region;
+
+    private Path imageFile;
+
+    /**
+     * resolves the image file.
+     */
+    @Setup
+    public void setUp() {
+        imageFile = MCRBenchmarks.getTestImage(image);
+    }
+
+    /**
+     * opens the image and reads a region in its center.
+     * @return the region
+     * @throws IOException if the image could not be read
+     */
+    @Benchmark
+    public BufferedImage readRegion() throws IOException {
+        try (FileChannel channel = FileChannel.open(imageFile, StandardOpenOption.READ);
+            ImageInputStream input = "channel".equals(stream) ? new MCRFileChannelInputStream(channel)
+                : new FileImageInputStream(imageFile.toFile())) {
+            final ImageReader reader = ImageIO.getImageReaders(input).next();
+            try {
+                reader.setInput(input, true);
+                final int width = Math.min(region, reader.getWidth(0));
+                final int height = Math.min(region, reader.getHeight(0));
+                return MCRImage.getTileOfFile(reader, (reader.getWidth(0) - width) / 2,
+                    (reader.getHeight(0) - height) / 2, width, height);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MCRImage#scaleBufferedImage(BufferedImage, MCRScalingProfile, MCRRasterPool)}, which computes
+ * every zoom level from the one above.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MCRScaleBenchmark {
+
+    @Param({ "INT_RGB", "3BYTE_BGR", "BYTE_GRAY", "INT_ARGB" })
+    private String imageType;
+
+    @Param({ "1024", "4096" })
+    private int size;
+
+    @Param({ "BOX", "BILINEAR", "LANCZOS" })
+    private MCRScalingProfile profile;
+
+    private BufferedImage image;
+
+    /**
+     * creates the source image.
+     */
+    @Setup
+    public void setUp() {
+        image = MCRBenchmarks.createImage(size, size, MCRBenchmarks.getImageType(imageType));
+    }
+
+    /**
+     * scales the image to 50%.
+     * @return the scaled image
+     */
+    @Benchmark
+    public BufferedImage scale() {
+        return MCRImage.scaleBufferedImage(image, profile, null);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link MCRImage#tile()} of the bundled test images, from decoding to the finished
+ * <code>.iview2</code> file.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class MCRTileBenchmark {
+
+    @Param({ "Bay_of_Noboto.jpg", "BE_0681_0397.jpg", "labirynth_panorama_010.jpg", "tiff16.tif", "tiff48.tif",
+        "stripes.png" })
+    private String image;
+
+    @Param({ "1" })
+    private int encoderThreads;
+
+    private Path tileDir;
+
+    /**
+     * creates the tile directory.
+     * @throws IOException if the directory could not be created
+     */
+    @Setup
+    public void setUp() throws IOException {
+        tileDir = Files.createTempDirectory("MCRTileBenchmark");
+    }
+
+    /**
+     * deletes the tile directory.
+     * @throws IOException if the directory could not be deleted
+     */
+    @TearDown
+    public void tearDown() throws IOException {
+        try (Stream<Path> paths = Files.walk(tileDir)) {
+            paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+        }
+    }
+
+    /**
+     * tiles the image.
+     * @return properties of the tiled image
+     * @throws IOException if tiling fails
+     */
+    @Benchmark
+    public MCRTiledPictureProps tile() throws IOException {
+        final MCRImage mcrImage = MCRImage.getInstance(MCRBenchmarks.getTestImage(image), "derivate_00000001",
+            image);
+        mcrImage.setTileDir(tileDir);
+        mcrImage.setTileEncoderThreads(encoderThreads);
+        return mcrImage.tile();
+    }
+}
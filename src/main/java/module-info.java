@@ -1,15 +1,19 @@
 import javax.imageio.spi.ImageInputStreamSpi;
 
+import org.mycore.imagetiler.input.MCRByteArrayImageInputStreamSpi;
+import org.mycore.imagetiler.input.MCRByteBufferImageInputStreamSpi;
 import org.mycore.imagetiler.input.MCRChannelImageInputStreamSpi;
 
 module org.mycore.imagetiler {
     requires java.xml;
     requires java.desktop;
-    requires jakarta.xml.bind;
+    requires static jdk.jfr;
+    requires static jakarta.xml.bind;
     requires org.apache.logging.log4j;
     requires com.github.spotbugs.annotations;
     exports org.mycore.imagetiler;
     opens org.mycore.imagetiler to jakarta.xml.bind;
     uses org.mycore.imagetiler.MCRTileEventHandler;
-    provides ImageInputStreamSpi with MCRChannelImageInputStreamSpi;
+    provides ImageInputStreamSpi with MCRChannelImageInputStreamSpi, MCRByteBufferImageInputStreamSpi,
+        MCRByteArrayImageInputStreamSpi;
 }
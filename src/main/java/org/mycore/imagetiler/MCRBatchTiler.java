@@ -0,0 +1,388 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Tiles many images concurrently within a common memory budget.
+ *
+ * The peak memory usage of every {@link Job} is estimated by {@link MCRImage#estimateMemoryUsage()} with an equal
+ * share of the budget for every concurrent job. Jobs are started smallest first as long as the sum of the
+ * estimates of all running jobs fits into the memory budget, and every job is tiled with the memory reserved
+ * for it, see {@link MCRImage#setMemoryBudget(long)}. A job that runs alone, because it is the last one or
+ * exceeds the budget on its own, gets the whole budget.
+ * <pre>
+ * MCRBatchTiler batchTiler = new MCRBatchTiler(tileDir);
+ * batchTiler.setMemoryBudget(2L &lt;&lt; 30);
+ * List&lt;MCRBatchTiler.Result&gt; results = batchTiler.tile(jobs);
+ * </pre>
+ */
+public class MCRBatchTiler {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * part of the maximum heap size used as default memory budget.
+     */
+    private static final double DEFAULT_HEAP_SHARE = 0.75;
+
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    private final Path tileDir;
+
+    private long memoryBudget;
+
+    private int maxConcurrentJobs;
+
+    private MCRTileEventHandler eventHandler;
+
+    private boolean skipUpToDate;
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition jobFinished = lock.newCondition();
+
+    private long usedMemory;
+
+    private int runningJobs;
+
+    /**
+     * creates a new instance that stores all <code>.iview2</code> files below <code>tileDir</code>.
+     *
+     * By default 75% of the maximum heap size are used as memory budget and at most one job per processor
+     * is running.
+     * @param tileDir a base directory where all tiles of all derivates are stored
+     */
+    public MCRBatchTiler(final Path tileDir) {
+        this.tileDir = tileDir;
+        this.memoryBudget = (long) (Runtime.getRuntime().maxMemory() * DEFAULT_HEAP_SHARE);
+        this.maxConcurrentJobs = Runtime.getRuntime().availableProcessors();
+    }
+
+    /**
+     * sets the amount of memory all running jobs may use together.
+     * @param memoryBudget memory budget in bytes
+     */
+    public void setMemoryBudget(final long memoryBudget) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * sets the maximum number of jobs running at the same time.
+     * @param maxConcurrentJobs maximum number of concurrent jobs
+     */
+    public void setMaxConcurrentJobs(final int maxConcurrentJobs) {
+        if (maxConcurrentJobs < 1) {
+            throw new IllegalArgumentException("Number of concurrent jobs must be positive: " + maxConcurrentJobs);
+        }
+        this.maxConcurrentJobs = maxConcurrentJobs;
+    }
+
+    /**
+     * sets the event handler passed to {@link MCRImage#tile(MCRTileEventHandler)} of every job.
+     * @param eventHandler eventHandler to control resources, may be null
+     */
+    public void setEventHandler(final MCRTileEventHandler eventHandler) {
+        this.eventHandler = eventHandler;
+    }
+
+    /**
+     * skips jobs whose <code>.iview2</code> file is {@link MCRImage#isUpToDate() up to date}.
+     * @param skipUpToDate true to skip jobs, default is false (tile all jobs)
+     */
+    public void setSkipUpToDate(final boolean skipUpToDate) {
+        this.skipUpToDate = skipUpToDate;
+    }
+
+    /**
+     * tiles all jobs and waits until all of them are finished.
+     * @param jobs images to tile
+     * @return a result for every job in the order of <code>jobs</code>
+     * @throws InterruptedIOException if the current thread was interrupted while waiting for jobs
+     */
+    public List<Result> tile(final Collection<Job> jobs) throws InterruptedIOException {
+        final List<Result> results = new ArrayList<>(jobs.size());
+        final ExecutorService executor = createExecutor();
+        try {
+            final PriorityQueue<Result> queue = new PriorityQueue<>(Math.max(1, jobs.size()),
+                Comparator.comparingLong(r -> r.estimatedMemoryUsage));
+            final List<CompletableFuture<Void>> estimates = new ArrayList<>(jobs.size());
+            for (Job job : jobs) {
+                final Result result = new Result(job);
+                results.add(result);
+                estimates.add(CompletableFuture.runAsync(() -> estimate(result), executor));
+            }
+            CompletableFuture.allOf(estimates.toArray(CompletableFuture[]::new)).join();
+            results.stream().filter(r -> r.failure == null && !r.upToDate).forEach(queue::add);
+            LOGGER.info(String.format(Locale.ENGLISH, "Tiling %d images with a memory budget of %.1f MB.",
+                queue.size(), memoryBudget / 1e6));
+            final List<CompletableFuture<Void>> tileJobs = new ArrayList<>(queue.size());
+            while (!queue.isEmpty()) {
+                final Result result = queue.poll();
+                result.memoryBudget = admit(result.estimatedMemoryUsage, queue.isEmpty());
+                tileJobs.add(CompletableFuture.runAsync(() -> run(result), executor));
+            }
+            CompletableFuture.allOf(tileJobs.toArray(CompletableFuture[]::new)).join();
+        } finally {
+            executor.shutdownNow();
+        }
+        return results;
+    }
+
+    private ExecutorService createExecutor() {
+        final int poolId = POOL_COUNTER.incrementAndGet();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        return Executors.newFixedThreadPool(maxConcurrentJobs, r -> {
+            Thread t = new Thread(r, "MCRBatchTiler-" + poolId + "-" + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    private void estimate(final Result result) {
+        try {
+            final MCRImage image = createImage(result.job, Math.max(1, memoryBudget / maxConcurrentJobs));
+            if (skipUpToDate && image.isUpToDate()) {
+                LOGGER.debug("Skipping {}, tiles are up to date.", result.job);
+                result.properties = MCRTiledPictureProps.getInstanceFromFile(MCRImage.getTiledFile(tileDir,
+                    result.job.getDerivateID(), result.job.getImagePath()));
+                result.upToDate = true;
+                return;
+            }
+            result.estimatedMemoryUsage = image.estimateMemoryUsage();
+            LOGGER.debug("Estimated memory usage of {}: {} bytes", result.job, result.estimatedMemoryUsage);
+        } catch (IOException | RuntimeException e) {
+            LOGGER.warn("Could not read image {}", result.job, e);
+            result.failure = e;
+        }
+    }
+
+    /**
+     * waits until a job with the given memory usage fits into the memory budget.
+     * @param lastJob true, if no other job is waiting
+     * @return the memory reserved for the job
+     */
+    private long admit(final long estimatedMemoryUsage, final boolean lastJob) throws InterruptedIOException {
+        lock.lock();
+        try {
+            while (runningJobs >= maxConcurrentJobs
+                || runningJobs > 0 && usedMemory + estimatedMemoryUsage > memoryBudget) {
+                jobFinished.await();
+            }
+            final boolean alone = runningJobs == 0
+                && (lastJob || maxConcurrentJobs == 1 || estimatedMemoryUsage > memoryBudget);
+            final long reserved = alone ? Math.max(estimatedMemoryUsage, memoryBudget) : estimatedMemoryUsage;
+            runningJobs++;
+            usedMemory += reserved;
+            return reserved;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for running jobs.");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void release(final long reserved) {
+        lock.lock();
+        try {
+            runningJobs--;
+            usedMemory -= reserved;
+            jobFinished.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void run(final Result result) {
+        try {
+            final MCRImage image = createImage(result.job, Math.max(1, result.memoryBudget));
+            try {
+                result.properties = image.tile(eventHandler);
+            } finally {
+                result.metrics = image.getTileMetrics();
+            }
+        } catch (IOException | RuntimeException e) {
+            LOGGER.error("Error while tiling {}", result.job, e);
+            result.failure = e;
+        } finally {
+            release(result.memoryBudget);
+        }
+    }
+
+    private MCRImage createImage(final Job job, final long jobMemoryBudget) {
+        final MCRImage image = MCRImage.getInstance(job.getFile(), job.getDerivateID(), job.getImagePath());
+        image.setTileDir(tileDir);
+        image.setMemoryBudget(jobMemoryBudget);
+        return image;
+    }
+
+    /**
+     * An image to tile, see {@link MCRImage#getInstance(Path, String, String)}.
+     */
+    public static final class Job {
+        private final Path file;
+
+        private final String derivateID;
+
+        private final String imagePath;
+
+        /**
+         * @param file the image file
+         * @param derivateID the derivate ID the image belongs to
+         * @param imagePath the relative path from the derivate root to the image
+         */
+        public Job(final Path file, final String derivateID, final String imagePath) {
+            this.file = file;
+            this.derivateID = derivateID;
+            this.imagePath = imagePath;
+        }
+
+        /**
+         * @return the image file
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * @return the derivate ID the image belongs to
+         */
+        public String getDerivateID() {
+            return derivateID;
+        }
+
+        /**
+         * @return the relative path from the derivate root to the image
+         */
+        public String getImagePath() {
+            return imagePath;
+        }
+
+        @Override
+        public String toString() {
+            return derivateID + ":" + imagePath;
+        }
+    }
+
+    /**
+     * The outcome of a {@link Job}.
+     */
+    public static final class Result {
+        private final Job job;
+
+        private volatile long estimatedMemoryUsage;
+
+        private volatile long memoryBudget;
+
+        private volatile MCRTiledPictureProps properties;
+
+        private volatile Exception failure;
+
+        private volatile boolean upToDate;
+
+        private volatile MCRTileMetrics metrics;
+
+        private Result(final Job job) {
+            this.job = job;
+        }
+
+        /**
+         * @return the job
+         */
+        public Job getJob() {
+            return job;
+        }
+
+        /**
+         * @return the estimated peak memory usage in bytes
+         */
+        public long getEstimatedMemoryUsage() {
+            return estimatedMemoryUsage;
+        }
+
+        /**
+         * @return the memory reserved for the job in bytes, 0 if the job was not started
+         */
+        public long getMemoryBudget() {
+            return memoryBudget;
+        }
+
+        /**
+         * @return properties of image and generated tiles or <code>null</code>, if the job failed
+         */
+        public MCRTiledPictureProps getProperties() {
+            return properties;
+        }
+
+        /**
+         * @return time spent in every phase of tiling, up to the failure if the job failed, or <code>null</code>,
+         * if the job was skipped
+         */
+        @SuppressFBWarnings(value = "EI_EXPOSE_REP", justification = "MCRTileMetrics is not copied")
+        public MCRTileMetrics getTileMetrics() {
+            return metrics;
+        }
+
+        /**
+         * @return true, if the job was skipped as its tiles are up to date
+         * @see MCRBatchTiler#setSkipUpToDate(boolean)
+         */
+        public boolean isUpToDate() {
+            return upToDate;
+        }
+
+        /**
+         * @return the exception that caused the job to fail or <code>null</code>, if the job succeeded
+         */
+        @SuppressFBWarnings(value = "EI_EXPOSE_REP", justification = "Exceptions are not copied")
+        public Exception getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return "Result [job=" + job + ", estimatedMemoryUsage=" + estimatedMemoryUsage + ", memoryBudget="
+                + memoryBudget + ", properties="
+                + properties + ", upToDate=" + upToDate + ", metrics=" + metrics + ", failure=" + failure + "]";
+        }
+    }
+}
@@ -17,27 +17,37 @@
  */
 package org.mycore.imagetiler;
 
+import java.awt.AlphaComposite;
 import java.awt.Graphics2D;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.image.BufferedImage;
 import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
 import java.awt.image.IndexColorModel;
-import java.io.BufferedOutputStream;
+import java.awt.image.SampleModel;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardOpenOption;
 import java.util.Iterator;
 import java.util.Locale;
+import java.util.Objects;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.stream.IntStream;
-import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32C;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -49,17 +59,18 @@ import javax.imageio.ImageWriter;
 import javax.imageio.plugins.jpeg.JPEGImageWriteParam;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.mycore.imagetiler.input.MCRChannelImageInputStreamSpi;
+import org.mycore.imagetiler.internal.MCRHalvingScaler;
 import org.mycore.imagetiler.internal.MCRMemSaveImage;
+import org.mycore.imagetiler.internal.MCRParallelTileWriter;
+import org.mycore.imagetiler.internal.MCRTileIndex;
+import org.mycore.imagetiler.internal.MCRTilingEvents;
 
-import jakarta.xml.bind.JAXBContext;
-import jakarta.xml.bind.JAXBException;
-import jakarta.xml.bind.annotation.XmlAccessType;
-import jakarta.xml.bind.annotation.XmlAccessorType;
-import jakarta.xml.bind.annotation.XmlAttribute;
-import jakarta.xml.bind.annotation.XmlRootElement;
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
 
 /**
  * The <code>MCRImage</code> class describes an image with different zoom levels that can be accessed by its tiles.
@@ -83,8 +94,6 @@ import jakarta.xml.bind.annotation.XmlRootElement;
  */
 public class MCRImage {
 
-    private static final JAXBContext ctx;
-
     /**
      * this is the JPEG compression rate.
      * @see JPEGImageWriteParam#setCompressionQuality(float)
@@ -103,6 +112,11 @@ public class MCRImage {
 
     private static final int DIRECTORY_PART_LEN = 2;
 
+    /**
+     * expected size of an encoded tile in bytes.
+     */
+    private static final int ENCODED_TILE_SIZE = 16 * 1024;
+
     private static final JPEGImageWriteParam imageWriteParam;
 
     private static final double LOG_2 = Math.log(2);
@@ -115,6 +129,18 @@ public class MCRImage {
 
     private static final double ZOOM_FACTOR = 0.5;
 
+    /**
+     * bytes at the start and at the end of the image file that are part of the source fingerprint.
+     */
+    private static final int FINGERPRINT_SAMPLE_SIZE = 16 * 1024;
+
+    /**
+     * part of the free heap used for tiling if no memory budget is set.
+     */
+    private static final double FREE_HEAP_SHARE = 0.75;
+
+    private static final BooleanSupplier NOT_CANCELLED = () -> false;
+
     /**
      * derivate ID (for output directory calculation).
      */
@@ -153,6 +179,91 @@ public class MCRImage {
 
     private int imageZoomLevels;
 
+    /**
+     * number of threads used for JPEG encoding of tiles.
+     */
+    private int tileEncoderThreads = 1;
+
+    /**
+     * encodes and writes tiles if {@link #tileEncoderThreads} is greater than 1.
+     */
+    private MCRParallelTileWriter parallelTileWriter;
+
+    /**
+     * positions of all tiles written so far, only set while tiling.
+     */
+    private volatile MCRTileIndex tileIndex;
+
+    /**
+     * reuses images of the same size and type, only set while tiling.
+     */
+    private volatile MCRRasterPool rasterPool;
+
+    /**
+     * number of threads used to decode parts of the image.
+     */
+    private int decoderThreads = 1;
+
+    /**
+     * memory available for tiling in bytes, 0 to use the free heap.
+     */
+    private long memoryBudget;
+
+    /**
+     * filter used to compute the next zoom level.
+     */
+    private MCRScalingProfile scalingProfile = MCRScalingProfile.BILINEAR;
+
+    /**
+     * source of the lowest zoom levels.
+     */
+    private MCROverviewSource overviewSource = MCROverviewSource.FULL_RESOLUTION;
+
+    /**
+     * base directory of checkpoints for resumable tiling, <code>null</code> if disabled.
+     */
+    private Path checkpointBaseDir;
+
+    /**
+     * if large intermediate images are kept outside of the Java heap.
+     */
+    private boolean offHeapRasters;
+
+    /**
+     * directory for memory mapped files of off heap images, <code>null</code> for direct memory.
+     */
+    private Path offHeapDir;
+
+    /**
+     * fingerprint of the source, set when tiling starts.
+     */
+    private String sourceFingerprint;
+
+    /**
+     * ZIP writer of the <code>.iview2</code> file, only set while tiling.
+     */
+    private volatile MCRStoredZipWriter iviewWriter;
+
+    /**
+     * channel of {@link #imageFile} while tiling is in progress.
+     */
+    private ByteChannel imageChannel;
+
+    /**
+     * metrics of the current or last tile process.
+     */
+    private volatile MCRTileMetrics tileMetrics = new MCRTileMetrics(0);
+
+    /**
+     * event handler of the current tile process, may be null.
+     */
+    private volatile MCRTileEventHandler tileEventHandler;
+
+    /**
+     * true, if the current tile process is cancelled, see {@link #tileAsync(Executor, MCRTileEventHandler)}.
+     */
+    private volatile BooleanSupplier cancelled = NOT_CANCELLED;
+
     static {
         imageWriteParam = new JPEGImageWriteParam(Locale.getDefault());
         try {
@@ -162,11 +273,6 @@ public class MCRImage {
         }
         imageWriteParam.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
         imageWriteParam.setCompressionQuality(JPEG_COMPRESSION_RATE);
-        try {
-            ctx = JAXBContext.newInstance(MCRDerivateTiledPictureProps.class);
-        } catch (JAXBException e) {
-            throw new ExceptionInInitializerError(e);
-        }
     }
 
     /**
@@ -179,7 +285,7 @@ public class MCRImage {
         imageFile = file;
         derivate = derivateID;
         imagePath = relImagePath;
-        imageWriter = ImageIO.getImageWritersBySuffix("jpeg").next();
+        imageWriter = createImageWriter();
     }
 
     /**
@@ -275,6 +381,10 @@ public class MCRImage {
         return (short) Math.ceil(Math.log(maxDim) / LOG_2 - TILE_SIZE_FACTOR);
     }
 
+    private static ImageWriter createImageWriter() {
+        return ImageIO.getImageWritersBySuffix("jpeg").next();
+    }
+
     private static ImageReader createImageReader(final ImageInputStream imageInputStream) throws IOException {
         final Iterator<ImageReader> readers = ImageIO.getImageReaders(imageInputStream);
         if (!readers.hasNext()) {
@@ -298,11 +408,43 @@ public class MCRImage {
      */
     protected static BufferedImage getTileOfFile(final ImageReader reader, final int x, final int y, final int width,
         final int height) throws IOException {
+        return getTileOfFile(reader, x, y, width, height, null);
+    }
+
+    /**
+     * Reads a rectangular area of the current image into an image borrowed from <code>pool</code>.
+     * @param reader image reader with current image at pos 0
+     * @param x upper left x-coordinate
+     * @param y upper left y-coordinate
+     * @param width width of the area of interest
+     * @param height height of the area of interest
+     * @param pool provides the images, may be <code>null</code>
+     * @return area of interest
+     * @throws IOException if source file could not be read
+     */
+    protected static BufferedImage getTileOfFile(final ImageReader reader, final int x, final int y, final int width,
+        final int height, final MCRRasterPool pool) throws IOException {
+        return convertIfNeeded(readRegion(reader, x, y, width, height, pool), pool);
+    }
+
+    private static BufferedImage readRegion(final ImageReader reader, final int x, final int y, final int width,
+        final int height, final MCRRasterPool pool) throws IOException {
         final ImageReadParam param = reader.getDefaultReadParam();
         final Rectangle srcRegion = new Rectangle(x, y, width, height);
         param.setSourceRegion(srcRegion);
+        BufferedImage destination = null;
+        if (pool != null) {
+            final int imageType = reader.getImageTypes(0).next().getBufferedImageType();
+            if (imageType != BufferedImage.TYPE_CUSTOM) {
+                destination = pool.borrow(width, height, imageType);
+                param.setDestination(destination);
+            }
+        }
         BufferedImage tile = reader.read(0, param);
-        return convertIfNeeded(tile);
+        if (destination != null && destination != tile) {
+            pool.release(destination);
+        }
+        return tile;
     }
 
     protected static int getBufferedImageType(final ImageReader reader) throws IOException {
@@ -315,7 +457,45 @@ public class MCRImage {
         return imageType == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_RGB : imageType;
     }
 
-    private static BufferedImage convertIfNeeded(BufferedImage tile) {
+    /**
+     * Returns the number of bytes per pixel needed to hold the decoded image in memory.
+     * 
+     * If the decoded image is converted to another image type, the bytes of the converted image are included.
+     * @param reader image reader with current image at pos 0
+     * @return bytes per pixel
+     * @throws IOException if source file could not be read
+     */
+    protected static int getBytesPerPixel(final ImageReader reader) throws IOException {
+        final ImageTypeSpecifier imageTypeSpecifier = reader.getImageTypes(0).next();
+        final int decodedBytes = getBytesPerPixel(imageTypeSpecifier.getSampleModel());
+        final int bufferedImageType = getBufferedImageType(reader);
+        if (imageTypeSpecifier.getBufferedImageType() == bufferedImageType
+            && imageTypeSpecifier.getColorModel().getPixelSize() <= JPEG_CM_PIXEL_SIZE) {
+            return decodedBytes;
+        }
+        return decodedBytes + getBytesPerPixel(bufferedImageType);
+    }
+
+    /**
+     * @param imageType a {@link BufferedImage#getType()} value other than {@link BufferedImage#TYPE_CUSTOM}
+     * @return bytes per pixel of a {@link BufferedImage} of this type
+     */
+    protected static int getBytesPerPixel(final int imageType) {
+        return getBytesPerPixel(new BufferedImage(1, 1, imageType).getSampleModel());
+    }
+
+    private static int getBytesPerPixel(final SampleModel sampleModel) {
+        final int bits = DataBuffer.getDataTypeSize(sampleModel.getDataType()) * sampleModel.getNumDataElements();
+        return Math.max(1, (bits + Byte.SIZE - 1) / Byte.SIZE);
+    }
+
+    /**
+     * converts images that cannot be written as JPEG to gray scale or 24 bit RGB.
+     * @param tile the image
+     * @param pool provides the converted image and takes <code>tile</code> if converted, may be <code>null</code>
+     * @return <code>tile</code> or the converted image
+     */
+    protected static BufferedImage convertIfNeeded(BufferedImage tile, MCRRasterPool pool) {
         ColorModel colorModel = tile.getColorModel();
         boolean convertToGray = isFakeGrayScale(colorModel) || colorModel.getNumColorComponents() == 1;
         int pixelSize = colorModel.getPixelSize();
@@ -334,14 +514,20 @@ public class MCRImage {
             //no need for conversion
             return tile;
         }
-        final BufferedImage newTile = new BufferedImage(tile.getWidth(), tile.getHeight(),
-            convertToGray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB);
+        final int newType = convertToGray ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        final BufferedImage newTile = pool == null ? new BufferedImage(tile.getWidth(), tile.getHeight(), newType)
+            : pool.borrow(tile.getWidth(), tile.getHeight(), newType);
         Graphics2D graphics2d = newTile.createGraphics();
         try {
+            //a borrowed image is not empty, do not blend with its content
+            graphics2d.setComposite(AlphaComposite.Src);
             graphics2d.drawImage(tile, 0, 0, tile.getWidth(), tile.getHeight(), null);
         } finally {
             graphics2d.dispose();
         }
+        if (pool != null) {
+            pool.release(tile);
+        }
         return newTile;
     }
 
@@ -366,14 +552,34 @@ public class MCRImage {
     }
 
     /**
-     * shrinks the image to 50%.
+     * shrinks the image to 50% using {@link MCRScalingProfile#BILINEAR}.
      * @param image source image
      * @return shrinked image
      */
     protected static BufferedImage scaleBufferedImage(final BufferedImage image) {
+        return scaleBufferedImage(image, MCRScalingProfile.BILINEAR, null);
+    }
+
+    /**
+     * shrinks the image to 50%.
+     * 
+     * Gray and RGB images are scaled directly on their pixel data, other images are drawn with bicubic
+     * interpolation via {@link Graphics2D}.
+     * @param image source image
+     * @param profile the filter to use
+     * @param pool provides the shrinked image, may be <code>null</code>
+     * @return shrinked image
+     */
+    protected static BufferedImage scaleBufferedImage(final BufferedImage image, final MCRScalingProfile profile,
+        final MCRRasterPool pool) {
         LOGGER.debug("Scaling image...");
         final int width = image.getWidth();
         final int height = image.getHeight();
+        final BufferedImage scaled = MCRHalvingScaler.getInstance(profile).scale(image, pool);
+        if (scaled != null) {
+            LOGGER.debug("Scaling done: {}x{}", width, height);
+            return scaled;
+        }
         final int newWidth = (int) Math.ceil(width / 2d);
         final int newHeight = (int) Math.ceil(height / 2d);
         final BufferedImage bicubic = new BufferedImage(newWidth, newHeight, getImageType(image));
@@ -382,7 +588,7 @@ public class MCRImage {
         bg.scale(ZOOM_FACTOR, ZOOM_FACTOR);
         bg.drawImage(image, 0, 0, null);
         bg.dispose();
-        LOGGER.debug("Scaling done: {}x{}", width, height);
+        LOGGER.debug("Scaling done (Graphics2D): {}x{}", width, height);
         return bicubic;
     }
 
@@ -476,6 +682,306 @@ public class MCRImage {
         tileBaseDir = tileDir;
     }
 
+    /**
+     * sets the number of threads used to encode tiles.
+     * 
+     * If more than one thread is used, tiles are encoded in parallel, each thread with its own JPEG writer,
+     * and written to the <code>.iview2</code> file in a fixed order by a single writer thread.
+     * @param threads number of encoder threads, default is 1 (encode on the calling thread)
+     */
+    public void setTileEncoderThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of tile encoder threads must be positive: " + threads);
+        }
+        tileEncoderThreads = threads;
+    }
+
+    /**
+     * sets the number of threads used to decode parts of the image.
+     * 
+     * If more than one thread is used and the image format supports efficient reading of image regions (like TIFF),
+     * every thread uses its own {@link ImageReader} to decode and tile a part of the image.
+     * Memory usage grows with the number of threads.
+     * @param threads number of decoder threads, default is 1 (decode on the calling thread)
+     */
+    public void setDecoderThreads(final int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Number of decoder threads must be positive: " + threads);
+        }
+        decoderThreads = threads;
+    }
+
+    /**
+     * @return the number of threads used to decode parts of the image
+     * @see #setDecoderThreads(int)
+     */
+    protected int getDecoderThreads() {
+        return decoderThreads;
+    }
+
+    /**
+     * sets the filter used to shrink the image for the next zoom level.
+     * @param profile the filter, default is {@link MCRScalingProfile#BILINEAR}
+     */
+    public void setScalingProfile(final MCRScalingProfile profile) {
+        scalingProfile = Objects.requireNonNull(profile, "Scaling profile must not be null");
+    }
+
+    /**
+     * @return the derivate ID the image belongs to
+     */
+    protected String getDerivate() {
+        return derivate;
+    }
+
+    /**
+     * @return the relative path from the derivate root to the image
+     */
+    protected String getImagePath() {
+        return imagePath;
+    }
+
+    /**
+     * @return the filter used to shrink the image for the next zoom level
+     * @see #setScalingProfile(MCRScalingProfile)
+     */
+    protected MCRScalingProfile getScalingProfile() {
+        return scalingProfile;
+    }
+
+    /**
+     * sets where the lowest zoom levels come from, if the image does not fit into memory at once.
+     * 
+     * Reading them from a reduced resolution image avoids stitching all parts of the image together.
+     * @param source the source, default is {@link MCROverviewSource#FULL_RESOLUTION}
+     */
+    public void setOverviewSource(final MCROverviewSource source) {
+        overviewSource = Objects.requireNonNull(source, "Overview source must not be null");
+    }
+
+    /**
+     * @return where the lowest zoom levels come from
+     * @see #setOverviewSource(MCROverviewSource)
+     */
+    protected MCROverviewSource getOverviewSource() {
+        return overviewSource;
+    }
+
+    /**
+     * enables resumable tiling.
+     * 
+     * Parts of the image that are completely tiled are saved below <code>checkpointDir</code>. If the tile process
+     * is aborted, the next call of {@link #tile()} continues with the parts not saved so far, as long as the
+     * image file and the tiling parameters did not change. Checkpoints are removed after the
+     * <code>.iview2</code> file is written. Not every implementation supports checkpoints.
+     * Checkpoints depend on how the image is divided into parts, so set a fixed
+     * {@link #setMemoryBudget(long) memory budget} to resume after a restart with a different heap size.
+     * @param checkpointDir base directory for checkpoints, may be shared by several images,
+     * <code>null</code> disables checkpoints (default)
+     */
+    public void setCheckpointDir(final Path checkpointDir) {
+        checkpointBaseDir = checkpointDir;
+    }
+
+    /**
+     * @return directory for checkpoints of this image or <code>null</code>, if checkpoints are disabled
+     * @see #setCheckpointDir(Path)
+     */
+    protected Path getCheckpointDir() {
+        if (checkpointBaseDir == null) {
+            return null;
+        }
+        final Path iviewFile = getTiledFile(checkpointBaseDir, derivate, imagePath);
+        return iviewFile.resolveSibling(iviewFile.getFileName() + ".checkpoints");
+    }
+
+    /**
+     * keeps large intermediate images outside of the Java heap.
+     * 
+     * Images that grow with the size of the source image, like the stitched image of the lowest zoom levels, are
+     * stored in memory mapped files below {@link #setOffHeapDir(Path)} or, if no directory is set, in direct
+     * memory, which is limited by <code>-XX:MaxDirectMemorySize</code>. Only the remaining images count towards
+     * the {@link #setMemoryBudget(long) memory budget}. Not every implementation supports off heap images.
+     * @param offHeapRasters <code>true</code> to keep large images off heap, default is <code>false</code>
+     */
+    public void setOffHeapRasters(final boolean offHeapRasters) {
+        this.offHeapRasters = offHeapRasters;
+    }
+
+    /**
+     * @return if large intermediate images are kept outside of the Java heap
+     * @see #setOffHeapRasters(boolean)
+     */
+    protected boolean isOffHeapRasters() {
+        return offHeapRasters;
+    }
+
+    /**
+     * sets the directory for temporary, memory mapped files of {@link #setOffHeapRasters(boolean) off heap images}.
+     * 
+     * The files are deleted as soon as they are mapped.
+     * @param offHeapDir an existing directory, <code>null</code> uses direct memory (default)
+     */
+    public void setOffHeapDir(final Path offHeapDir) {
+        this.offHeapDir = offHeapDir;
+    }
+
+    /**
+     * @return directory for memory mapped files of off heap images or <code>null</code> for direct memory
+     * @see #setOffHeapDir(Path)
+     */
+    protected Path getOffHeapDir() {
+        return offHeapDir;
+    }
+
+    /**
+     * sets the amount of memory the tile process should not exceed.
+     * 
+     * The memory budget is used to plan how much of the image is held in memory at once.
+     * By default 75% of the free heap at the start of the tile process are used.
+     * @param memoryBudget memory budget in bytes
+     */
+    public void setMemoryBudget(final long memoryBudget) {
+        if (memoryBudget <= 0) {
+            throw new IllegalArgumentException("Memory budget must be positive: " + memoryBudget);
+        }
+        this.memoryBudget = memoryBudget;
+    }
+
+    /**
+     * @return the memory budget in bytes
+     * @see #setMemoryBudget(long)
+     */
+    protected long getMemoryBudget() {
+        if (memoryBudget > 0) {
+            return memoryBudget;
+        }
+        final Runtime runtime = Runtime.getRuntime();
+        final long freeHeap = runtime.maxMemory() - (runtime.totalMemory() - runtime.freeMemory());
+        return (long) (freeHeap * FREE_HEAP_SHARE);
+    }
+
+    /**
+     * estimates the peak memory usage of {@link #tile()} for this image.
+     * 
+     * Only the header of the image file is read to get the image dimensions and pixel format.
+     * @return estimated memory usage in bytes
+     * @throws IOException if the image file could not be read
+     */
+    public long estimateMemoryUsage() throws IOException {
+        try (ByteChannel bc = Files.newByteChannel(imageFile, StandardOpenOption.READ);
+            ImageInputStream imageInputStream = createImageInputStream(bc)) {
+            final ImageReader imageReader = MCRImage.createImageReader(imageInputStream);
+            if (imageReader == null) {
+                throw new IOException("No ImageReader available for file: " + imageFile);
+            }
+            try {
+                setImageSize(imageReader);
+                return estimateMemoryUsage(imageReader);
+            } finally {
+                imageReader.dispose();
+            }
+        }
+    }
+
+    /**
+     * estimates the peak memory usage of {@link #doTile(ImageReader, MCRStoredZipWriter)}.
+     * 
+     * The image size is already set when this method is called.
+     * @param imageReader image reader with current image at pos 0
+     * @return estimated memory usage in bytes
+     * @throws IOException if the image file could not be read
+     */
+    protected long estimateMemoryUsage(final ImageReader imageReader) throws IOException {
+        final long pixels = (long) getImageWidth() * getImageHeight();
+        //whole image plus all scaled down images
+        return pixels * getBytesPerPixel(imageReader) * 4 / 3;
+    }
+
+    /**
+     * describes the image file and all settings that change the tiles.
+     * 
+     * The fingerprint consists of size, modification time and a CRC-32C checksum of the first and last
+     * 16 KiB of the image file, plus tile size, JPEG quality, {@link #setScalingProfile(MCRScalingProfile) scaling
+     * profile} and {@link #setOverviewSource(MCROverviewSource) overview source}. It is saved in the
+     * <code>.iview2</code> file, see {@link MCRTiledPictureProps#getSourceFingerprint()}.
+     * @return the fingerprint
+     * @throws IOException if the image file could not be read
+     */
+    public String getSourceFingerprint() throws IOException {
+        final long size = Files.size(imageFile);
+        final long modified = Files.getLastModifiedTime(imageFile).toMillis();
+        final CRC32C checksum = new CRC32C();
+        try (FileChannel channel = FileChannel.open(imageFile, StandardOpenOption.READ)) {
+            final ByteBuffer buffer = ByteBuffer.allocate(FINGERPRINT_SAMPLE_SIZE);
+            updateChecksum(checksum, channel, buffer, 0);
+            if (size > FINGERPRINT_SAMPLE_SIZE) {
+                updateChecksum(checksum, channel, buffer, Math.max(FINGERPRINT_SAMPLE_SIZE,
+                    size - FINGERPRINT_SAMPLE_SIZE));
+            }
+        }
+        return String.format(Locale.ROOT, "v1 size=%d modified=%d crc32c=%08x tile=%d quality=%.2f scaling=%s"
+            + " overview=%s", size, modified, checksum.getValue(), TILE_SIZE, JPEG_COMPRESSION_RATE,
+            scalingProfile, overviewSource);
+    }
+
+    private static void updateChecksum(final CRC32C checksum, final FileChannel channel, final ByteBuffer buffer,
+        final long position) throws IOException {
+        buffer.clear();
+        long pos = position;
+        int read;
+        while (buffer.hasRemaining() && (read = channel.read(buffer, pos)) >= 0) {
+            pos += read;
+        }
+        buffer.flip();
+        checksum.update(buffer);
+    }
+
+    /**
+     * checks if the <code>.iview2</code> file was created from the current image file with the current settings.
+     * @return true, if the fingerprint saved in the <code>.iview2</code> file matches
+     * {@link #getSourceFingerprint()}
+     * @throws IOException if the image file could not be read
+     */
+    public boolean isUpToDate() throws IOException {
+        return getUpToDateProperties() != null;
+    }
+
+    /**
+     * @return properties of the existing <code>.iview2</code> file, if it is up to date, <code>null</code> otherwise
+     */
+    private MCRTiledPictureProps getUpToDateProperties() throws IOException {
+        final Path iviewFile = getTiledFile(tileBaseDir, derivate, imagePath);
+        if (!Files.isRegularFile(iviewFile)) {
+            return null;
+        }
+        final MCRTiledPictureProps props;
+        try {
+            props = MCRTiledPictureProps.getInstanceFromFile(iviewFile);
+        } catch (IOException e) {
+            LOGGER.warn("Could not read {}, will tile again.", iviewFile, e);
+            return null;
+        }
+        return getSourceFingerprint().equals(props.getSourceFingerprint()) ? props : null;
+    }
+
+    /**
+     * starts the tile process, unless the <code>.iview2</code> file is {@link #isUpToDate() up to date}.
+     * 
+     * @param eventHandler
+     *          eventHandler to control resources, may be null
+     * @return properties of image and generated or existing tiles
+     * @throws IOException that occurs during tile process
+     */
+    public MCRTiledPictureProps tileIfChanged(MCRTileEventHandler eventHandler) throws IOException {
+        final MCRTiledPictureProps props = getUpToDateProperties();
+        if (props != null) {
+            LOGGER.info("Tiles of {}:{} are up to date.", derivate, imagePath);
+            return props;
+        }
+        return tile(eventHandler);
+    }
+
     /**
      * starts the tile process.
      * 
@@ -497,15 +1003,81 @@ public class MCRImage {
      * @throws IOException that occurs during tile process
      */
     public MCRTiledPictureProps tile(MCRTileEventHandler eventHandler) throws IOException {
+        return tile(eventHandler, NOT_CANCELLED);
+    }
+
+    private MCRTiledPictureProps tile(final MCRTileEventHandler eventHandler, final BooleanSupplier isCancelled)
+        throws IOException {
+        cancelled = isCancelled;
+        final MCRTilingEvents.ImageTiling event = new MCRTilingEvents.ImageTiling();
+        event.begin();
+        tileMetrics = new MCRTileMetrics(0);
+        try {
+            return tileImage(eventHandler);
+        } finally {
+            final MCRTileMetrics metrics = tileMetrics;
+            event.commit(derivate, imagePath, getImageWidth(), getImageHeight(), getImageZoomLevels(),
+                metrics.getTiles(), metrics.getBytes());
+        }
+    }
+
+    /**
+     * starts the tile process on <code>executor</code>.
+     *
+     * Cancelling the returned future stops the tile process before the next tile or mega tile is written and
+     * discards the incomplete <code>.iview2</code> file, an existing <code>.iview2</code> file is kept.
+     * Saved {@link #setCheckpointDir(Path) checkpoints} are kept, so that the image can be tiled later without
+     * starting from scratch.
+     * Use {@link MCRTileEventHandler#tilesWritten(int, int)} to report progress.
+     * @param executor runs the tile process
+     * @param eventHandler eventHandler to control resources and get progress information, may be null
+     * @return completes with the properties of image and generated tiles or with the exception that occurs during
+     * tile process
+     */
+    public CompletableFuture<MCRTiledPictureProps> tileAsync(final Executor executor,
+        final MCRTileEventHandler eventHandler) {
+        final CompletableFuture<MCRTiledPictureProps> future = new CompletableFuture<>();
+        executor.execute(() -> {
+            if (future.isDone()) {
+                return;
+            }
+            try {
+                future.complete(tile(eventHandler, future::isCancelled));
+            } catch (CancellationException e) {
+                LOGGER.info("Tiling of {}:{} cancelled.", derivate, imagePath);
+                future.cancel(false);
+            } catch (IOException | RuntimeException e) {
+                future.completeExceptionally(e);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * throws an exception if the future returned by {@link #tileAsync(Executor, MCRTileEventHandler)} is
+     * cancelled.
+     *
+     * Called before every tile; call it before long running operations, too.
+     * @throws CancellationException if the tile process is cancelled
+     */
+    protected void checkCancelled() {
+        if (cancelled.getAsBoolean()) {
+            throw new CancellationException("Tiling of " + derivate + ":" + imagePath + " was cancelled.");
+        }
+    }
+
+    private MCRTiledPictureProps tileImage(final MCRTileEventHandler eventHandler) throws IOException {
         long start = System.nanoTime();
         LOGGER.info(String.format(Locale.ENGLISH, "Start tiling of %s:%s", derivate, imagePath));
+        sourceFingerprint = getSourceFingerprint();
         //waterMarkFile = ImageIO.read(new File(MCRIview2Props.getProperty("Watermark")));	
         //initialize some basic variables
         if (eventHandler != null) {
             eventHandler.preImageReaderCreated();
         }
         try (ByteChannel bc = Files.newByteChannel(imageFile, StandardOpenOption.READ);
-            ImageInputStream imageInputStream = ImageIO.createImageInputStream(bc)) {
+            ImageInputStream imageInputStream = createImageInputStream(bc)) {
+            imageChannel = bc;
 
             final ImageReader imageReader;
             try {
@@ -519,25 +1091,87 @@ public class MCRImage {
                 throw new IOException("No ImageReader available for file: " + imageFile);
             }
             LOGGER.debug("ImageReader: {}", imageReader.getClass());
-            try (ZipOutputStream zout = getZipOutputStream()) {
+            try {
                 setImageSize(imageReader);
-                doTile(imageReader, zout);
-                writeMetaData(zout);
+                tileMetrics = new MCRTileMetrics(getImageZoomLevels());
+                imageTilesCount.set(0);
+                tileEventHandler = eventHandler;
+                writeIView2File(imageReader);
             } finally {
+                tileEventHandler = null;
                 imageReader.dispose();
             }
+        } finally {
+            imageChannel = null;
         }
         long end = System.nanoTime();
+        final MCRTileMetrics metrics = tileMetrics;
+        metrics.setElapsedNanos(end - start);
         final MCRTiledPictureProps imageProperties = getImageProperties();
         long pixel = imageProperties.getWidth() * imageProperties.getHeight();
         LOGGER.info(() -> String.format(Locale.ENGLISH,
-            "Finished tiling of %s:%s in %.0f ms (%d MPixel/s). ",
-            derivate, imagePath, (end - start) / 1e6, 1000 * pixel / (end - start)));
+            "Finished tiling of %s:%s in %.0f ms (%d MPixel/s): %s",
+            derivate, imagePath, (end - start) / 1e6, 1000 * pixel / (end - start), metrics));
+        if (eventHandler != null) {
+            eventHandler.postImageTiled(metrics);
+        }
         return imageProperties;
     }
 
-    protected void doTile(final ImageReader imageReader, final ZipOutputStream zout) throws IOException {
-        BufferedImage image = getTileOfFile(imageReader, 0, 0, getImageWidth(), getImageHeight());
+    private void writeIView2File(final ImageReader imageReader) throws IOException {
+        final MCRTileMetrics metrics = tileMetrics;
+        try (MCRStoredZipWriter zout = getZipWriter()) {
+            iviewWriter = zout;
+            tileIndex = new MCRTileIndex();
+            rasterPool = new MCRRasterPool(estimateMemoryUsage(imageReader));
+            try (MCRParallelTileWriter tileWriter = createParallelTileWriter(zout)) {
+                parallelTileWriter = tileWriter;
+                doTile(imageReader, zout);
+                if (tileWriter != null) {
+                    tileWriter.flush();
+                    metrics.add(MCRTileMetrics.Phase.WRITE, tileWriter.getWriteNanos());
+                }
+            } finally {
+                parallelTileWriter = null;
+            }
+            final MCRTilingEvents.ArchiveFinalization event = new MCRTilingEvents.ArchiveFinalization();
+            event.begin();
+            metrics.begin(MCRTileMetrics.Phase.WRITE);
+            try {
+                writeMetaData(zout);
+                //must be the last entry, see MCRTileIndex
+                zout.putEntry(MCRTiledPictureProps.TILE_INDEX, tileIndex.toByteArray());
+                zout.finish();
+            } finally {
+                metrics.end();
+            }
+            event.commit(derivate, imagePath, zout);
+        } finally {
+            iviewWriter = null;
+            tileIndex = null;
+            LOGGER.debug("{}", rasterPool);
+            metrics.setPeakRasterBytes(rasterPool == null ? 0 : rasterPool.getPeakBytes());
+            rasterPool = null;
+        }
+        deleteCheckpoints();
+    }
+
+    private void deleteCheckpoints() throws IOException {
+        final Path checkpointDir = getCheckpointDir();
+        if (checkpointDir == null || !Files.isDirectory(checkpointDir)) {
+            return;
+        }
+        LOGGER.debug("Deleting checkpoints in {}", checkpointDir);
+        try (Stream<Path> checkpoints = Files.list(checkpointDir)) {
+            for (Path checkpoint : (Iterable<Path>) checkpoints::iterator) {
+                Files.delete(checkpoint);
+            }
+        }
+        Files.delete(checkpointDir);
+    }
+
+    protected void doTile(final ImageReader imageReader, final MCRStoredZipWriter zout) throws IOException {
+        BufferedImage image = readImage(imageReader, 0, 0, getImageWidth(), getImageHeight());
         final int zoomLevels = getZoomLevels(getImageWidth(), getImageHeight());
         LOGGER.info("Will generate {} zoom levels.", zoomLevels);
         for (int z = zoomLevels; z >= 0; z--) {
@@ -554,11 +1188,194 @@ public class MCRImage {
                 }
             }
             if (z > 0) {
-                image = scaleBufferedImage(image);
+                final BufferedImage scaled = scaleImage(image);
+                releaseImage(image);
+                image = scaled;
             }
         }
     }
 
+    /**
+     * Reads a rectangular area of the current image and converts it, if it cannot be written as JPEG.
+     * @param reader image reader with current image at pos 0
+     * @param x upper left x-coordinate
+     * @param y upper left y-coordinate
+     * @param width width of the area of interest
+     * @param height height of the area of interest
+     * @return area of interest, borrowed from the {@link #getRasterPool() raster pool}
+     * @throws IOException if source file could not be read
+     * @see #getTileOfFile(ImageReader, int, int, int, int, MCRRasterPool)
+     */
+    protected BufferedImage readImage(final ImageReader reader, final int x, final int y, final int width,
+        final int height) throws IOException {
+        final MCRTilingEvents.MegaTileDecode event = new MCRTilingEvents.MegaTileDecode();
+        event.begin();
+        final BufferedImage image;
+        beginPhase(MCRTileMetrics.Phase.DECODE);
+        try {
+            image = readRegion(reader, x, y, width, height, getRasterPool());
+        } finally {
+            endPhase();
+        }
+        event.commit(derivate, imagePath, x, y, image, width, height);
+        return convertImage(image);
+    }
+
+    /**
+     * converts images that cannot be written as JPEG.
+     * @param image the image
+     * @return <code>image</code> or the converted image
+     * @see #convertIfNeeded(BufferedImage, MCRRasterPool)
+     */
+    protected BufferedImage convertImage(final BufferedImage image) {
+        beginPhase(MCRTileMetrics.Phase.CONVERT);
+        try {
+            return convertIfNeeded(image, getRasterPool());
+        } finally {
+            endPhase();
+        }
+    }
+
+    /**
+     * shrinks the image to 50% using the {@link #getScalingProfile() scaling profile}.
+     * @param image source image
+     * @return shrinked image
+     * @see #scaleBufferedImage(BufferedImage, MCRScalingProfile, MCRRasterPool)
+     */
+    protected BufferedImage scaleImage(final BufferedImage image) {
+        final MCRTilingEvents.Scale event = new MCRTilingEvents.Scale();
+        event.begin();
+        final BufferedImage scaled;
+        beginPhase(MCRTileMetrics.Phase.SCALE);
+        try {
+            scaled = scaleBufferedImage(image, getScalingProfile(), getRasterPool());
+        } finally {
+            endPhase();
+        }
+        event.commit(derivate, imagePath, getScalingProfile().name(), image, scaled);
+        return scaled;
+    }
+
+    /**
+     * counts the time until {@link #endPhase()} for <code>phase</code>, pausing the phase currently running on
+     * this thread.
+     * @param phase the phase that is started
+     */
+    protected void beginPhase(final MCRTileMetrics.Phase phase) {
+        tileMetrics.begin(phase);
+    }
+
+    /**
+     * ends the phase started last on this thread by {@link #beginPhase(MCRTileMetrics.Phase)}.
+     */
+    protected void endPhase() {
+        tileMetrics.end();
+    }
+
+    /**
+     * @return time spent in each phase and tiles per zoom level of the current or last call to
+     * {@link #tile(MCRTileEventHandler)}
+     */
+    @SuppressFBWarnings(value = "EI_EXPOSE_REP", justification = "MCRTileMetrics is updated while tiling")
+    public MCRTileMetrics getTileMetrics() {
+        return tileMetrics;
+    }
+
+    private ImageInputStream createImageInputStream(final ByteChannel bc) throws IOException {
+        if (bc instanceof FileChannel) {
+            return MCRChannelImageInputStreamSpi.createInputStream((FileChannel) bc, imageFile);
+        }
+        return ImageIO.createImageInputStream(bc);
+    }
+
+    /**
+     * Creates an additional {@link ImageReader} for the image that is currently tiled.
+     * 
+     * The new reader shares the file channel with the reader passed to {@link #doTile(ImageReader, MCRStoredZipWriter)}
+     * but may be used concurrently. Call {@link ImageReader#dispose()} and close its input when done.
+     * @param template the reader passed to {@link #doTile(ImageReader, MCRStoredZipWriter)}
+     * @return a new image reader or <code>null</code>, if the image is not read from a {@link FileChannel}
+     * @throws IOException if the reader could not be created
+     */
+    protected ImageReader createAdditionalImageReader(final ImageReader template) throws IOException {
+        if (!(imageChannel instanceof FileChannel) || template.getOriginatingProvider() == null) {
+            return null;
+        }
+        final ImageReader reader = template.getOriginatingProvider().createReaderInstance();
+        reader.setInput(MCRChannelImageInputStreamSpi.createInputStream((FileChannel) imageChannel, imageFile),
+            false);
+        return reader;
+    }
+
+    /**
+     * @return reuses images of the same size and type while tiling, <code>null</code> otherwise
+     */
+    protected MCRRasterPool getRasterPool() {
+        return rasterPool;
+    }
+
+    /**
+     * returns an image to the {@link #getRasterPool() raster pool} after all of its tiles are written.
+     * @param image an image that is no longer used, except by tiles passed to
+     * {@link #writeTile(MCRStoredZipWriter, BufferedImage, int, int, int)}
+     * @throws IOException if a previous tile could not be written
+     */
+    protected void releaseImage(final BufferedImage image) throws IOException {
+        final MCRRasterPool pool = rasterPool;
+        if (pool == null || image == null) {
+            return;
+        }
+        if (parallelTileWriter != null) {
+            parallelTileWriter.afterPendingTiles(() -> pool.release(image));
+        } else {
+            pool.release(image);
+        }
+    }
+
+    private MCRParallelTileWriter createParallelTileWriter(final MCRStoredZipWriter zout) {
+        if (tileEncoderThreads < 2) {
+            return null;
+        }
+        return new MCRParallelTileWriter(zout, tileEncoderThreads, MCRImage::createImageWriter, this::encodeTile);
+    }
+
+    /**
+     * encodes a single tile as JPEG.
+     * @param writer image writer, used by the current thread only
+     * @param tileName name of the tile in the <code>.iview2</code> file
+     * @param tile the tile
+     * @return the encoded tile
+     * @throws IOException if the tile could not be encoded
+     */
+    private byte[] encodeTile(final ImageWriter writer, final String tileName, final BufferedImage tile)
+        throws IOException {
+        final MCRTilingEvents.TileEncode event = new MCRTilingEvents.TileEncode();
+        event.begin();
+        final byte[] encoded;
+        beginPhase(MCRTileMetrics.Phase.ENCODE);
+        try {
+            encoded = encodeJpegTile(writer, tile);
+        } finally {
+            endPhase();
+        }
+        event.commit(derivate, imagePath, tileName, tile, encoded.length);
+        return encoded;
+    }
+
+    /**
+     * encodes a single tile as JPEG with the compression quality used for every tile.
+     * @param imgWriter JPEG image writer, reset after use
+     * @param tile the tile to encode
+     * @return the encoded tile
+     * @throws IOException if the tile could not be encoded
+     */
+    protected static byte[] encodeJpegTile(final ImageWriter imgWriter, final BufferedImage tile)
+        throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream(ENCODED_TILE_SIZE);
+        writeImageIoTile(imgWriter, bout, tile);
+        return bout.toByteArray();
+    }
+
     /**
      * @return {@link MCRTiledPictureProps} instance for the current image
      */
@@ -568,6 +1385,7 @@ public class MCRImage {
         picProps.height = getImageHeight();
         picProps.zoomLevel = getImageZoomLevels();
         picProps.tilesCount = imageTilesCount.get();
+        picProps.fingerprint = sourceFingerprint;
         return picProps;
     }
 
@@ -588,50 +1406,111 @@ public class MCRImage {
      *   zoomLevel=""
      * /&gt;
      * </pre>  
-     * @param zout ZipOutputStream of <code>.iview2</code> file
+     * @param zout ZIP writer of <code>.iview2</code> file
      * @throws IOException Exception during ZIP output
      */
-    private void writeMetaData(final ZipOutputStream zout) throws IOException {
-        final ZipEntry ze = new ZipEntry(MCRTiledPictureProps.IMAGEINFO_XML);
-        zout.putNextEntry(ze);
-        try {
-            MCRDerivateTiledPictureProps imageProps = new MCRDerivateTiledPictureProps(derivate, imagePath,
-                imageTilesCount.get(), getImageZoomLevels(), getImageHeight(), getImageWidth());
-            try {
-                ctx.createMarshaller().marshal(imageProps, zout);
-            } catch (JAXBException e) {
-                throw new IOException(e);
-            }
-        } finally {
-            zout.closeEntry();
-        }
+    private void writeMetaData(final MCRStoredZipWriter zout) throws IOException {
+        final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        MCRTiledPictureProps.writeImageInfo(bout, derivate, imagePath, imageTilesCount.get(), getImageZoomLevels(),
+            getImageHeight(), getImageWidth(), sourceFingerprint);
+        zout.putEntry(MCRTiledPictureProps.IMAGEINFO_XML, bout.toByteArray());
     }
 
     /**
      * writes image tile to <code>.iview2</code> file.
-     * @param zout ZipOutputStream of <code>.iview2</code> file
+     * @param zout ZIP writer of <code>.iview2</code> file
      * @param tile image tile to be written
      * @param x x coordinate of tile in current zoom level (x * tile width = x-pixel)
      * @param y y coordinate of tile in current zoom level (y * tile width = y-pixel)
      * @param z zoom level
      * @throws IOException Exception during ZIP output
      */
-    protected void writeTile(final ZipOutputStream zout, final BufferedImage tile, final int x, final int y,
+    protected void writeTile(final MCRStoredZipWriter zout, final BufferedImage tile, final int x, final int y,
         final int z)
         throws IOException {
+        checkCancelled();
         if (tile != null) {
-            try {
-                String tileName = Integer.toString(z) + '/' + y + '/' + x + ".jpg";
-                final ZipEntry ze = new ZipEntry(tileName);
-                zout.putNextEntry(ze);
-                writeImageIoTile(zout, tile);
-                imageTilesCount.incrementAndGet();
-            } finally {
-                zout.closeEntry();
+            String tileName = getTileName(x, y, z);
+            //tiles written to other files, like checkpoints, are not part of the .iview2 file
+            final boolean iviewTile = zout == iviewWriter;
+            final MCRTileIndex index = tileIndex;
+            final MCRTileMetrics metrics = tileMetrics;
+            final MCRStoredZipWriter.EntryListener indexer = iviewTile
+                ? (offset, length) -> {
+                    index.add(z, y, x, offset, length);
+                    metrics.addTile(z, length);
+                    tileWritten();
+                }
+                : null;
+            if (parallelTileWriter != null) {
+                parallelTileWriter.write(zout, tileName, tile, indexer);
+            } else {
+                final byte[] data;
+                synchronized (imageWriter) {
+                    data = encodeTile(imageWriter, tileName, tile);
+                }
+                final long offset;
+                metrics.begin(MCRTileMetrics.Phase.WRITE);
+                try {
+                    offset = zout.putEntry(tileName, data);
+                } finally {
+                    metrics.end();
+                }
+                if (indexer != null) {
+                    indexer.entryWritten(offset, data.length);
+                }
             }
         }
     }
 
+    /**
+     * writes an already encoded image tile to <code>.iview2</code> file.
+     * @param zout ZIP writer of <code>.iview2</code> file
+     * @param data the JPEG encoded tile
+     * @param x x coordinate of tile in current zoom level
+     * @param y y coordinate of tile in current zoom level
+     * @param z zoom level
+     * @throws IOException Exception during ZIP output
+     */
+    protected void writeEncodedTile(final MCRStoredZipWriter zout, final byte[] data, final int x, final int y,
+        final int z) throws IOException {
+        checkCancelled();
+        final MCRTileMetrics metrics = tileMetrics;
+        final long offset;
+        metrics.begin(MCRTileMetrics.Phase.WRITE);
+        try {
+            offset = zout.putEntry(getTileName(x, y, z), data);
+        } finally {
+            metrics.end();
+        }
+        tileIndex.add(z, y, x, offset, data.length);
+        metrics.addTile(z, data.length);
+        tileWritten();
+    }
+
+    private void tileWritten() {
+        final int tiles = imageTilesCount.incrementAndGet();
+        final MCRTileEventHandler eventHandler = tileEventHandler;
+        if (eventHandler != null) {
+            eventHandler.tilesWritten(tiles, getTileCount(getImageWidth(), getImageHeight()));
+        }
+    }
+
+    /**
+     * waits until all tiles passed to {@link #writeTile(MCRStoredZipWriter, BufferedImage, int, int, int)}
+     * are written.
+     * @throws IOException if a tile could not be written
+     */
+    protected void flushTiles() throws IOException {
+        if (parallelTileWriter != null) {
+            parallelTileWriter.flush();
+        }
+    }
+
+    private static String getTileName(final int x, final int y, final int z) {
+        return Integer.toString(z) + '/' + y + '/' + x + ".jpg";
+    }
+
     /**
      * currently unused: adds a watermark image to every generated tile.
      * @param image the image tile
@@ -665,12 +1544,11 @@ public class MCRImage {
     }
 
     /**
-     * creates a {@link ZipOutputStream} to write image tiles and metadata to.
-     * @return write ready ZIP output stream
-     * @throws IOException while creating parent directories of tile file
-     * @throws FileNotFoundException if tile directory or image file does not exist and cannot be created
+     * creates a {@link MCRStoredZipWriter} to write image tiles and metadata to.
+     * @return write ready ZIP writer
+     * @throws IOException while creating parent directories of tile file or the tile file
      */
-    private ZipOutputStream getZipOutputStream() throws IOException {
+    private MCRStoredZipWriter getZipWriter() throws IOException {
         final Path iviewFile = getTiledFile(tileBaseDir, derivate, imagePath);
         LOGGER.info("Saving tiles in {}", iviewFile);
         Path parentDir = iviewFile.getParent();
@@ -678,7 +1556,7 @@ public class MCRImage {
         if (!Files.exists(parentDir)) {
             Files.createDirectories(parentDir);
         }
-        return new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(iviewFile)));
+        return new MCRStoredZipWriter(iviewFile);
     }
 
     /**
@@ -718,12 +1596,12 @@ public class MCRImage {
         imageZoomLevels = imgZoomLevels;
     }
 
-    private void writeImageIoTile(final ZipOutputStream zout, final BufferedImage tile) throws IOException {
-        final ImageWriter imgWriter = imageWriter;
+    private static void writeImageIoTile(final ImageWriter imgWriter, final OutputStream out,
+        final BufferedImage tile) throws IOException {
         if (tile.getType() == BufferedImage.TYPE_CUSTOM) {
             throw new IOException("Do not know how to handle image type 'CUSTOM'");
         }
-        try (ImageOutputStream imageOutputStream = ImageIO.createImageOutputStream(zout)) {
+        try (ImageOutputStream imageOutputStream = new MemoryCacheImageOutputStream(out)) {
             imgWriter.setOutput(imageOutputStream);
             //tile = addWatermark(scaleBufferedImage(tile));
             final IIOImage iioImage = new IIOImage(tile, null, null);
@@ -758,32 +1636,4 @@ public class MCRImage {
         MCRTiledPictureProps props = image.tile(null);
         System.out.println("Tiling complete: " + props);
     }
-
-    @SuppressWarnings("unused")
-    @XmlRootElement(name = "imageinfo")
-    @XmlAccessorType(XmlAccessType.FIELD)
-    private static class MCRDerivateTiledPictureProps extends MCRTiledPictureProps {
-
-        @XmlAttribute
-        private String derivate;
-
-        @XmlAttribute
-        private String path;
-
-        public MCRDerivateTiledPictureProps() {
-            super();
-        }
-
-        public MCRDerivateTiledPictureProps(String derivate, String path, int tilesCount, int zoomLevel, int height,
-            int width) {
-            super();
-            this.derivate = derivate;
-            this.path = path;
-            super.tilesCount = tilesCount;
-            super.height = height;
-            super.width = width;
-            super.zoomLevel = zoomLevel;
-        }
-
-    }
 }
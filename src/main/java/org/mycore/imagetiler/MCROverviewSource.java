@@ -0,0 +1,40 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler;
+
+/**
+ * Sources of the lowest zoom levels, if an image is tiled in parts.
+ *
+ * @see MCRImage#setOverviewSource(MCROverviewSource)
+ */
+public enum MCROverviewSource {
+    /**
+     * default: the lowest zoom levels are scaled down from the full resolution image.
+     */
+    FULL_RESOLUTION,
+    /**
+     * reduced resolution images stored in the source, like the pages of a pyramid TIFF, are used if one matches
+     * the size of a zoom level exactly. TIFF pages must be marked as reduced resolution (NewSubfileType).
+     */
+    EMBEDDED,
+    /**
+     * like {@link #EMBEDDED}, but otherwise only every n-th pixel of every n-th row is read. Fast, but the
+     * lowest zoom levels may show aliasing.
+     */
+    SUBSAMPLED
+}
@@ -0,0 +1,204 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Keeps images that are no longer used, so that images of the same size and type do not need to be allocated again.
+ *
+ * Mega tiles and their scaled down versions are large, short living arrays. Reusing them keeps the garbage
+ * collector from allocating and collecting huge regions for every mega tile.
+ * Borrowed images are not cleared, users have to overwrite every pixel.
+ *
+ * This class is thread safe.
+ */
+public final class MCRRasterPool {
+
+    private final long maxBytes;
+
+    private final Map<Key, ArrayDeque<BufferedImage>> images = new HashMap<>();
+
+    private final Set<BufferedImage> borrowed = Collections.newSetFromMap(new IdentityHashMap<>());
+
+    private long bytes;
+
+    private long borrowedBytes;
+
+    private long peakBytes;
+
+    private long allocations;
+
+    private long reuses;
+
+    /**
+     * creates a new pool.
+     * @param maxBytes maximum size of all images kept by this pool
+     */
+    public MCRRasterPool(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * returns an unused image or allocates a new one.
+     * @param width width of the image
+     * @param height height of the image
+     * @param imageType a {@link BufferedImage#getType()} value other than {@link BufferedImage#TYPE_CUSTOM}
+     * @return an image with undefined content
+     */
+    public BufferedImage borrow(final int width, final int height, final int imageType) {
+        synchronized (this) {
+            final ArrayDeque<BufferedImage> unused = images.get(new Key(width, height, imageType));
+            if (unused != null && !unused.isEmpty()) {
+                final BufferedImage image = unused.pop();
+                final long size = getBytes(image);
+                bytes -= size;
+                reuses++;
+                addBorrowed(image, size);
+                return image;
+            }
+            allocations++;
+        }
+        final BufferedImage image = new BufferedImage(width, height, imageType);
+        synchronized (this) {
+            addBorrowed(image, getBytes(image));
+        }
+        return image;
+    }
+
+    private void addBorrowed(final BufferedImage image, final long size) {
+        borrowed.add(image);
+        borrowedBytes += size;
+        peakBytes = Math.max(peakBytes, borrowedBytes + bytes);
+    }
+
+    /**
+     * returns an image to the pool.
+     *
+     * The image and all of its sub images must not be used afterwards. Sub images, images of type
+     * {@link BufferedImage#TYPE_CUSTOM} and images that do not fit into the pool are ignored.
+     * @param image an image that is no longer used, may be <code>null</code>
+     */
+    public void release(final BufferedImage image) {
+        if (image == null || image.getType() == BufferedImage.TYPE_CUSTOM || image.getRaster().getParent() != null) {
+            return;
+        }
+        final long size = getBytes(image);
+        synchronized (this) {
+            if (borrowed.remove(image)) {
+                borrowedBytes -= size;
+            }
+            if (bytes + size > maxBytes) {
+                return;
+            }
+            final ArrayDeque<BufferedImage> unused = images.computeIfAbsent(
+                new Key(image.getWidth(), image.getHeight(), image.getType()), k -> new ArrayDeque<>());
+            for (BufferedImage pooled : unused) {
+                if (pooled == image) {
+                    //released twice
+                    return;
+                }
+            }
+            unused.push(image);
+            bytes += size;
+        }
+    }
+
+    /**
+     * @return size of the pixel data of <code>image</code> in bytes
+     */
+    public static long getBytes(final BufferedImage image) {
+        final DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+        return (long) dataBuffer.getSize() * dataBuffer.getNumBanks()
+            * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / Byte.SIZE;
+    }
+
+    /**
+     * @return number of images allocated by {@link #borrow(int, int, int)}
+     */
+    public synchronized long getAllocations() {
+        return allocations;
+    }
+
+    /**
+     * @return number of images reused by {@link #borrow(int, int, int)}
+     */
+    public synchronized long getReuses() {
+        return reuses;
+    }
+
+    /**
+     * @return size of all images kept by this pool in bytes
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    /**
+     * @return maximum size of all borrowed images that were not released, plus the images kept by this pool,
+     * in bytes
+     */
+    public synchronized long getPeakBytes() {
+        return peakBytes;
+    }
+
+    @Override
+    public synchronized String toString() {
+        return "MCRRasterPool [allocations=" + allocations + ", reuses=" + reuses + ", bytes=" + bytes
+            + ", peakBytes=" + peakBytes + "]";
+    }
+
+    private static final class Key {
+        private final int width;
+
+        private final int height;
+
+        private final int imageType;
+
+        private Key(final int width, final int height, final int imageType) {
+            this.width = width;
+            this.height = height;
+            this.imageType = imageType;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + imageType;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            final Key other = (Key) obj;
+            return width == other.width && height == other.height && imageType == other.imageType;
+        }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler;
+
+/**
+ * Filters used to shrink an image to 50% for the next zoom level.
+ *
+ * @see MCRImage#setScalingProfile(MCRScalingProfile)
+ */
+public enum MCRScalingProfile {
+    /**
+     * fastest: every pixel is the average of 2x2 source pixels.
+     */
+    BOX,
+    /**
+     * default: a triangle filter over 4x4 source pixels, smoother than {@link #BOX} at moderate cost.
+     */
+    BILINEAR,
+    /**
+     * sharpest: a three lobed Lanczos filter over 12x12 source pixels, about three times slower than
+     * {@link #BILINEAR}.
+     */
+    LANCZOS
+}
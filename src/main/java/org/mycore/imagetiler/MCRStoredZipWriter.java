@@ -0,0 +1,351 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
+
+/**
+ * Writes a ZIP file where every entry is <code>STORED</code> (not compressed).
+ *
+ * JPEG tiles are already compressed, so deflating them costs a lot of CPU for almost no gain.
+ * The CRC and size of every entry is calculated before its local header is written, so no data descriptors are
+ * needed. Output is collected in a large direct buffer and written to a {@link FileChannel}.
+ * Large archives get ZIP64 end records, so any ZIP reader can open them.
+ *
+ * Entries are written to a temporary file next to the ZIP file. {@link #finish()} completes the ZIP file and
+ * moves it to its destination atomically, so readers of an existing ZIP file never see an incomplete one.
+ * Closing the writer without finishing it discards the temporary file. Every writer uses its own temporary file,
+ * so several writers of the same ZIP file never mix their entries; the last one finished wins.
+ *
+ * This class is thread safe.
+ */
+public final class MCRStoredZipWriter implements Closeable {
+
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int END_SIZE = 22;
+
+    private static final int ZIP64_END_SIZE = 56;
+
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final short VERSION_STORED = 10;
+
+    private static final short VERSION_ZIP64 = 45;
+
+    /**
+     * general purpose flag: file names are UTF-8 encoded.
+     */
+    private static final short FLAG_UTF8 = 0x0800;
+
+    private static final short METHOD_STORED = 0;
+
+    private static final long ZIP32_MAX = 0xFFFFFFFFL;
+
+    private static final int ZIP16_MAX = 0xFFFF;
+
+    private final Path file;
+
+    private final Path tempFile;
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer;
+
+    private final ByteBuffer centralDirectory;
+
+    private final ByteArrayOutputStream centralDirectoryBytes = new ByteArrayOutputStream(64 * 1024);
+
+    private final CRC32 crc = new CRC32();
+
+    private final int dosTime;
+
+    private long position;
+
+    private int entries;
+
+    private boolean closed;
+
+    private boolean finished;
+
+    /**
+     * creates a new ZIP file.
+     * @param file the ZIP file, will be replaced by {@link #finish()} if it exists
+     * @throws IOException if the file could not be created
+     */
+    public MCRStoredZipWriter(final Path file) throws IOException {
+        this.file = file;
+        this.tempFile = file.resolveSibling(
+            file.getFileName() + "." + Long.toUnsignedString(ThreadLocalRandom.current().nextLong(), 36) + ".tmp");
+        this.channel = FileChannel.open(tempFile, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        this.centralDirectory = ByteBuffer.allocate(CENTRAL_HEADER_SIZE + ZIP16_MAX + 2 * Long.BYTES + 4)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        this.dosTime = toDosTime(LocalDateTime.now());
+    }
+
+    private static int toDosTime(final LocalDateTime time) {
+        return (time.getYear() - 1980) << 25
+            | time.getMonthValue() << 21
+            | time.getDayOfMonth() << 16
+            | time.getHour() << 11
+            | time.getMinute() << 5
+            | time.getSecond() >> 1;
+    }
+
+    /**
+     * adds a new entry to the ZIP file.
+     * @param name name of the entry
+     * @param data content of the entry
+     * @return position of the first byte of <code>data</code> in the ZIP file
+     * @throws IOException if the entry could not be written
+     */
+    public long putEntry(final String name, final byte[] data) throws IOException {
+        return putEntry(name, data, 0, data.length);
+    }
+
+    /**
+     * adds a new entry to the ZIP file.
+     * @param name name of the entry
+     * @param data content of the entry
+     * @param off offset of the content in <code>data</code>
+     * @param len length of the content
+     * @return position of the first byte of the content in the ZIP file
+     * @throws IOException if the entry could not be written
+     */
+    public synchronized long putEntry(final String name, final byte[] data, final int off, final int len)
+        throws IOException {
+        if (closed) {
+            throw new IOException("ZIP file is already closed: " + file);
+        }
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (nameBytes.length > ZIP16_MAX) {
+            throw new IOException("Entry name is too long: " + name);
+        }
+        crc.reset();
+        crc.update(data, off, len);
+        final int crcValue = (int) crc.getValue();
+        final long headerOffset = position;
+        final int headerLength = LOCAL_HEADER_SIZE + nameBytes.length;
+        if (buffer.remaining() < headerLength) {
+            flushBuffer();
+        }
+        buffer.putInt(LOCAL_HEADER_SIGNATURE)
+            .putShort(VERSION_STORED)
+            .putShort(FLAG_UTF8)
+            .putShort(METHOD_STORED)
+            .putInt(dosTime)
+            .putInt(crcValue)
+            .putInt(len)
+            .putInt(len)
+            .putShort((short) nameBytes.length)
+            .putShort((short) 0)
+            .put(nameBytes);
+        if (buffer.remaining() < len) {
+            flushBuffer();
+        }
+        if (buffer.remaining() < len) {
+            writeFully(ByteBuffer.wrap(data, off, len));
+        } else {
+            buffer.put(data, off, len);
+        }
+        position += headerLength + len;
+        addCentralDirectoryEntry(nameBytes, crcValue, len, headerOffset);
+        return headerOffset + headerLength;
+    }
+
+    private void addCentralDirectoryEntry(final byte[] nameBytes, final int crcValue, final int len,
+        final long headerOffset) {
+        final boolean zip64 = headerOffset >= ZIP32_MAX;
+        centralDirectory.clear();
+        centralDirectory.putInt(CENTRAL_HEADER_SIGNATURE)
+            .putShort(zip64 ? VERSION_ZIP64 : VERSION_STORED)
+            .putShort(zip64 ? VERSION_ZIP64 : VERSION_STORED)
+            .putShort(FLAG_UTF8)
+            .putShort(METHOD_STORED)
+            .putInt(dosTime)
+            .putInt(crcValue)
+            .putInt(len)
+            .putInt(len)
+            .putShort((short) nameBytes.length)
+            .putShort((short) (zip64 ? 2 * Short.BYTES + Long.BYTES : 0))
+            .putShort((short) 0) //comment length
+            .putShort((short) 0) //disk number
+            .putShort((short) 0) //internal attributes
+            .putInt(0) //external attributes
+            .putInt(zip64 ? (int) ZIP32_MAX : (int) headerOffset)
+            .put(nameBytes);
+        if (zip64) {
+            centralDirectory.putShort((short) ZIP64_EXTRA_ID)
+                .putShort((short) Long.BYTES)
+                .putLong(headerOffset);
+        }
+        centralDirectoryBytes.write(centralDirectory.array(), 0, centralDirectory.position());
+        entries++;
+    }
+
+    /**
+     * @return the number of entries written so far
+     */
+    public synchronized int getEntryCount() {
+        return entries;
+    }
+
+    /**
+     * @return the number of bytes written so far
+     */
+    public synchronized long getPosition() {
+        return position;
+    }
+
+    /**
+     * writes the central directory, closes the ZIP file and moves it to its destination.
+     * @throws IOException if the central directory could not be written or the file could not be moved
+     */
+    public synchronized void finish() throws IOException {
+        if (closed) {
+            throw new IOException("ZIP file is already closed: " + file);
+        }
+        closed = true;
+        try {
+            final long centralDirectoryOffset = position;
+            final long centralDirectorySize = centralDirectoryBytes.size();
+            flushBuffer();
+            writeFully(ByteBuffer.wrap(centralDirectoryBytes.toByteArray()));
+            position += centralDirectorySize;
+            writeEnd(centralDirectoryOffset, centralDirectorySize);
+            flushBuffer();
+            channel.force(false);
+            channel.close();
+            Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            finished = true;
+        } finally {
+            if (!finished) {
+                discard();
+            }
+        }
+    }
+
+    /**
+     * discards the ZIP file, unless it is {@link #finish() finished}.
+     * @throws IOException if the temporary file could not be deleted
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        discard();
+    }
+
+    private void discard() throws IOException {
+        try {
+            channel.close();
+        } finally {
+            Files.deleteIfExists(tempFile);
+        }
+    }
+
+    private void writeEnd(final long centralDirectoryOffset, final long centralDirectorySize) {
+        final boolean zip64 = entries > ZIP16_MAX || centralDirectoryOffset >= ZIP32_MAX
+            || centralDirectorySize >= ZIP32_MAX;
+        if (zip64) {
+            final long zip64EndOffset = position;
+            buffer.putInt(ZIP64_END_SIGNATURE)
+                .putLong(ZIP64_END_SIZE - Integer.BYTES - Long.BYTES)
+                .putShort(VERSION_ZIP64)
+                .putShort(VERSION_ZIP64)
+                .putInt(0) //number of this disk
+                .putInt(0) //disk with central directory
+                .putLong(entries)
+                .putLong(entries)
+                .putLong(centralDirectorySize)
+                .putLong(centralDirectoryOffset);
+            buffer.putInt(ZIP64_LOCATOR_SIGNATURE)
+                .putInt(0) //disk with zip64 end record
+                .putLong(zip64EndOffset)
+                .putInt(1); //total number of disks
+            position += ZIP64_END_SIZE + ZIP64_LOCATOR_SIZE;
+        }
+        buffer.putInt(END_SIGNATURE)
+            .putShort((short) 0) //number of this disk
+            .putShort((short) 0) //disk with central directory
+            .putShort((short) Math.min(entries, ZIP16_MAX))
+            .putShort((short) Math.min(entries, ZIP16_MAX))
+            .putInt((int) Math.min(centralDirectorySize, ZIP32_MAX))
+            .putInt((int) Math.min(centralDirectoryOffset, ZIP32_MAX))
+            .putShort((short) 0); //comment length
+        position += END_SIZE;
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        writeFully(buffer);
+        buffer.clear();
+    }
+
+    private void writeFully(final ByteBuffer src) throws IOException {
+        while (src.hasRemaining()) {
+            channel.write(src);
+        }
+    }
+
+    /**
+     * Gets notified when an entry is written.
+     */
+    @FunctionalInterface
+    public interface EntryListener {
+        /**
+         * called after an entry is written.
+         * @param offset position of the entry data in the ZIP file
+         * @param length length of the entry data
+         */
+        void entryWritten(long offset, int length);
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * Caches open {@link MCRTileReader} instances and the content of frequently requested tiles.
+ *
+ * Both caches are split into stripes with their own lock and least recently used eviction, so that concurrent
+ * requests rarely wait for each other. Cached tiles are copied to the heap, so hot tiles stay available even
+ * if the operating system drops the pages of the memory mapped <code>.iview2</code> files.
+ *
+ * Evicted readers are closed. Buffers they returned before remain valid, see {@link MCRTileReader#close()}.
+ * Call {@link #invalidate(Path)} if a <code>.iview2</code> file is tiled again.
+ * <pre>
+ * MCRTileCache cache = new MCRTileCache(256, 64L &lt;&lt; 20);
+ * ByteBuffer jpeg = cache.getTile(iviewFile, z, y, x);
+ * </pre>
+ */
+public final class MCRTileCache implements Closeable {
+
+    private static final int MAX_STRIPES = 16;
+
+    private final Stripe<Path, MCRTileReader>[] readerStripes;
+
+    private final Stripe<TileKey, ByteBuffer>[] tileStripes;
+
+    private final LongAdder readerHits = new LongAdder();
+
+    private final LongAdder readerMisses = new LongAdder();
+
+    private final LongAdder tileHits = new LongAdder();
+
+    private final LongAdder tileMisses = new LongAdder();
+
+    /**
+     * creates a new cache.
+     * @param maxOpenFiles maximum number of cached {@link MCRTileReader} instances
+     * @param maxTileBytes maximum size of all cached tiles in bytes, 0 disables caching of tiles
+     */
+    public MCRTileCache(final int maxOpenFiles, final long maxTileBytes) {
+        if (maxOpenFiles < 1) {
+            throw new IllegalArgumentException("Need to cache at least one file: " + maxOpenFiles);
+        }
+        if (maxTileBytes < 0) {
+            throw new IllegalArgumentException("Tile cache size must not be negative: " + maxTileBytes);
+        }
+        this.readerStripes = createStripes(Math.min(MAX_STRIPES, Integer.highestOneBit(maxOpenFiles)),
+            maxOpenFiles, r -> 1, MCRTileReader::close);
+        this.tileStripes = createStripes(MAX_STRIPES, maxTileBytes, ByteBuffer::capacity, t -> {
+        });
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private static <K, V> Stripe<K, V>[] createStripes(final int count, final long maxWeight,
+        final ToLongFunction<V> weigher, final Consumer<V> evictionListener) {
+        final Stripe<K, V>[] stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe<>(maxWeight / count + (i < maxWeight % count ? 1 : 0), weigher,
+                evictionListener);
+        }
+        return stripes;
+    }
+
+    private static <K, V> Stripe<K, V> getStripe(final Stripe<K, V>[] stripes, final Object key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    /**
+     * returns a cached reader for the given file or opens a new one.
+     * @param iviewFile the <code>.iview2</code> file
+     * @return a reader shared with other threads, do not close it. It is closed once evicted from the cache,
+     * so request it again instead of keeping it
+     * @throws IOException if the file could not be opened
+     */
+    public MCRTileReader getReader(final Path iviewFile) throws IOException {
+        final Path key = iviewFile.toAbsolutePath().normalize();
+        final Stripe<Path, MCRTileReader> stripe = getStripe(readerStripes, key);
+        MCRTileReader reader = stripe.get(key);
+        if (reader != null) {
+            readerHits.increment();
+            return reader;
+        }
+        readerMisses.increment();
+        //open outside of lock, so that other files of this stripe remain available
+        reader = MCRTileReader.open(key);
+        return stripe.putIfAbsent(key, reader);
+    }
+
+    /**
+     * returns a tile.
+     * @param iviewFile the <code>.iview2</code> file
+     * @param z zoom level
+     * @param y row of the tile in zoom level <code>z</code>
+     * @param x column of the tile in zoom level <code>z</code>
+     * @return the encoded tile as read only buffer or <code>null</code>, if there is no such tile
+     * @throws IOException if the tile could not be read
+     * @see MCRTileReader#getTile(int, int, int)
+     */
+    public ByteBuffer getTile(final Path iviewFile, final int z, final int y, final int x) throws IOException {
+        final TileKey key = new TileKey(iviewFile.toAbsolutePath().normalize(), z, y, x);
+        final Stripe<TileKey, ByteBuffer> stripe = getStripe(tileStripes, key);
+        final ByteBuffer cached = stripe.get(key);
+        if (cached != null) {
+            tileHits.increment();
+            return cached.duplicate();
+        }
+        tileMisses.increment();
+        MCRTileReader reader = getReader(key.file);
+        ByteBuffer tile;
+        try {
+            tile = reader.getTile(z, y, x);
+        } catch (IOException e) {
+            if (!reader.isClosed()) {
+                throw e;
+            }
+            //evicted by another thread
+            reader = getReader(key.file);
+            tile = reader.getTile(z, y, x);
+        }
+        if (tile == null || tile.remaining() > stripe.maxWeight) {
+            return tile;
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(tile.remaining());
+        copy.put(tile.duplicate()).flip();
+        return stripe.putIfAbsent(key, copy.asReadOnlyBuffer()).duplicate();
+    }
+
+    /**
+     * removes the given file and all of its tiles from the cache.
+     * @param iviewFile the <code>.iview2</code> file
+     */
+    public void invalidate(final Path iviewFile) {
+        final Path key = iviewFile.toAbsolutePath().normalize();
+        getStripe(readerStripes, key).remove(key::equals).forEach(MCRTileReader::close);
+        for (Stripe<TileKey, ByteBuffer> stripe : tileStripes) {
+            stripe.remove(tileKey -> tileKey.file.equals(key));
+        }
+    }
+
+    /**
+     * @return number of requests served by a cached reader
+     */
+    public long getReaderHits() {
+        return readerHits.sum();
+    }
+
+    /**
+     * @return number of requests that had to open a file
+     */
+    public long getReaderMisses() {
+        return readerMisses.sum();
+    }
+
+    /**
+     * @return number of tiles served from the cache
+     */
+    public long getTileHits() {
+        return tileHits.sum();
+    }
+
+    /**
+     * @return number of tiles read from a file
+     */
+    public long getTileMisses() {
+        return tileMisses.sum();
+    }
+
+    /**
+     * @return size of all cached tiles in bytes
+     */
+    public long getTileBytes() {
+        long bytes = 0;
+        for (Stripe<TileKey, ByteBuffer> stripe : tileStripes) {
+            bytes += stripe.getWeight();
+        }
+        return bytes;
+    }
+
+    /**
+     * removes everything from the cache and closes all cached readers.
+     */
+    @Override
+    public void close() {
+        for (Stripe<TileKey, ByteBuffer> stripe : tileStripes) {
+            stripe.remove(key -> true);
+        }
+        for (Stripe<Path, MCRTileReader> stripe : readerStripes) {
+            stripe.remove(key -> true).forEach(MCRTileReader::close);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "MCRTileCache [readerHits=" + getReaderHits() + ", readerMisses=" + getReaderMisses()
+            + ", tileHits=" + getTileHits() + ", tileMisses=" + getTileMisses() + ", tileBytes=" + getTileBytes()
+            + "]";
+    }
+
+    /**
+     * A least recently used cache limited by the sum of the weight of its values.
+     */
+    private static final class Stripe<K, V> {
+        private final ReentrantLock lock = new ReentrantLock();
+
+        private final LinkedHashMap<K, V> map = new LinkedHashMap<>(16, 0.75f, true);
+
+        private final long maxWeight;
+
+        private final ToLongFunction<V> weigher;
+
+        private final Consumer<V> evictionListener;
+
+        private long weight;
+
+        private Stripe(final long maxWeight, final ToLongFunction<V> weigher, final Consumer<V> evictionListener) {
+            this.maxWeight = maxWeight;
+            this.weigher = weigher;
+            this.evictionListener = evictionListener;
+        }
+
+        private V get(final K key) {
+            lock.lock();
+            try {
+                return map.get(key);
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * @return the value already cached for <code>key</code> or <code>value</code>
+         */
+        private V putIfAbsent(final K key, final V value) {
+            final long valueWeight = weigher.applyAsLong(value);
+            if (valueWeight > maxWeight) {
+                return value;
+            }
+            //values that are evicted or not added
+            final List<V> dropped = new ArrayList<>();
+            lock.lock();
+            try {
+                final V cached = map.get(key);
+                if (cached != null) {
+                    dropped.add(value);
+                    return cached;
+                }
+                map.put(key, value);
+                weight += valueWeight;
+                final Iterator<V> eldest = map.values().iterator();
+                while (weight > maxWeight) {
+                    final V eldestValue = eldest.next();
+                    weight -= weigher.applyAsLong(eldestValue);
+                    eldest.remove();
+                    dropped.add(eldestValue);
+                }
+                return value;
+            } finally {
+                lock.unlock();
+                //outside of lock, so that other keys of this stripe remain available
+                dropped.forEach(evictionListener);
+            }
+        }
+
+        /**
+         * @return removed values
+         */
+        private List<V> remove(final Predicate<K> filter) {
+            final List<V> removed = new ArrayList<>();
+            lock.lock();
+            try {
+                final Iterator<Map.Entry<K, V>> entries = map.entrySet().iterator();
+                while (entries.hasNext()) {
+                    final Map.Entry<K, V> entry = entries.next();
+                    if (filter.test(entry.getKey())) {
+                        weight -= weigher.applyAsLong(entry.getValue());
+                        removed.add(entry.getValue());
+                        entries.remove();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            return removed;
+        }
+
+        private long getWeight() {
+            lock.lock();
+            try {
+                return weight;
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    private static final class TileKey {
+        private final Path file;
+
+        private final int z;
+
+        private final int y;
+
+        private final int x;
+
+        private final int hash;
+
+        private TileKey(final Path file, final int z, final int y, final int x) {
+            this.file = file;
+            this.z = z;
+            this.y = y;
+            this.x = x;
+            this.hash = ((file.hashCode() * 31 + z) * 31 + y) * 31 + x;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(final Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof TileKey)) {
+                return false;
+            }
+            final TileKey other = (TileKey) obj;
+            return x == other.x && y == other.y && z == other.z && file.equals(other.file);
+        }
+    }
+}
@@ -34,4 +34,20 @@ public interface MCRTileEventHandler {
      * Use this method to free resources after creation of ImageReader.
      */
     void postImageReaderCreated();
+
+    /**
+     * Use this method to report progress. Called for every tile of the <code>.iview2</code> file, possibly from
+     * several threads at once.
+     * @param tiles number of tiles written so far
+     * @param tileCount number of tiles of the image, see {@link MCRImage#getTileCount(int, int)}
+     */
+    default void tilesWritten(int tiles, int tileCount) {
+    }
+
+    /**
+     * Use this method to collect the metrics of a successfully tiled image.
+     * @param metrics time spent in every phase of tiling and tiles per zoom level
+     */
+    default void postImageTiled(MCRTileMetrics metrics) {
+    }
 }
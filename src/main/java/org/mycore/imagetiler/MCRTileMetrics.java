@@ -0,0 +1,229 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Time spent in every phase of tiling a single image and the tiles written per zoom level.
+ *
+ * Phase times are summed over all threads, so with several decoder or encoder threads they may exceed the elapsed
+ * time. Phases that run inside another phase on the same thread are not counted twice: the conversion of a region
+ * that is just being decoded counts as {@link Phase#CONVERT} only.
+ *
+ * Get the metrics of an image with {@link MCRImage#getTileMetrics()} or
+ * {@link MCRTileEventHandler#postImageTiled(MCRTileMetrics)}.
+ *
+ * This class is thread safe.
+ */
+public final class MCRTileMetrics {
+
+    private static final int MAX_NESTED_PHASES = 8;
+
+    private final Map<Phase, LongAdder> nanos = new EnumMap<>(Phase.class);
+
+    private final AtomicLongArray tiles;
+
+    private final AtomicLongArray bytes;
+
+    private final ThreadLocal<Clock> clocks = ThreadLocal.withInitial(Clock::new);
+
+    private volatile long elapsedNanos;
+
+    private volatile long peakRasterBytes;
+
+    /**
+     * @param highestZoomLevel the highest zoom level of the image, as returned by
+     *                         {@link MCRImage#getImageZoomLevels()}; {@link #getZoomLevels()} is one more
+     */
+    MCRTileMetrics(final int highestZoomLevel) {
+        for (Phase phase : Phase.values()) {
+            nanos.put(phase, new LongAdder());
+        }
+        tiles = new AtomicLongArray(highestZoomLevel + 1);
+        bytes = new AtomicLongArray(highestZoomLevel + 1);
+    }
+
+    /**
+     * starts <code>phase</code> on the current thread and pauses the phase currently running on it.
+     */
+    void begin(final Phase phase) {
+        final Clock clock = clocks.get();
+        final long now = System.nanoTime();
+        if (clock.depth > 0) {
+            add(clock.phases[clock.depth - 1], now - clock.since);
+        }
+        if (clock.depth == MAX_NESTED_PHASES) {
+            throw new IllegalStateException("Too many nested phases: " + phase);
+        }
+        clock.phases[clock.depth++] = phase;
+        clock.since = now;
+    }
+
+    /**
+     * ends the phase started last on the current thread and resumes the phase it paused.
+     */
+    void end() {
+        final Clock clock = clocks.get();
+        final long now = System.nanoTime();
+        add(clock.phases[--clock.depth], now - clock.since);
+        clock.since = now;
+    }
+
+    /**
+     * adds time spent on another thread that is not tracked by {@link #begin(Phase)}.
+     */
+    void add(final Phase phase, final long phaseNanos) {
+        nanos.get(phase).add(phaseNanos);
+    }
+
+    void addTile(final int zoomLevel, final int tileBytes) {
+        tiles.incrementAndGet(zoomLevel);
+        bytes.addAndGet(zoomLevel, tileBytes);
+    }
+
+    void setElapsedNanos(final long elapsedNanos) {
+        this.elapsedNanos = elapsedNanos;
+    }
+
+    void setPeakRasterBytes(final long peakRasterBytes) {
+        this.peakRasterBytes = peakRasterBytes;
+    }
+
+    /**
+     * @param phase a phase of the tiling process
+     * @return time spent in <code>phase</code> by all threads in nanoseconds
+     */
+    public long getNanos(final Phase phase) {
+        return nanos.get(phase).sum();
+    }
+
+    /**
+     * @return time from the start of tiling to the finished <code>.iview2</code> file in nanoseconds
+     */
+    public long getElapsedNanos() {
+        return elapsedNanos;
+    }
+
+    /**
+     * @return the number of zoom levels, the highest zoom level is one less
+     */
+    public int getZoomLevels() {
+        return tiles.length();
+    }
+
+    /**
+     * @param zoomLevel the zoom level, 0 is the lowest resolution
+     * @return number of tiles written for <code>zoomLevel</code>
+     */
+    public long getTiles(final int zoomLevel) {
+        return tiles.get(zoomLevel);
+    }
+
+    /**
+     * @param zoomLevel the zoom level, 0 is the lowest resolution
+     * @return size of all JPEG encoded tiles of <code>zoomLevel</code> in bytes
+     */
+    public long getBytes(final int zoomLevel) {
+        return bytes.get(zoomLevel);
+    }
+
+    /**
+     * @return number of tiles written for all zoom levels
+     */
+    public long getTiles() {
+        long sum = 0;
+        for (int z = 0; z < tiles.length(); z++) {
+            sum += tiles.get(z);
+        }
+        return sum;
+    }
+
+    /**
+     * @return size of all JPEG encoded tiles in bytes
+     */
+    public long getBytes() {
+        long sum = 0;
+        for (int z = 0; z < bytes.length(); z++) {
+            sum += bytes.get(z);
+        }
+        return sum;
+    }
+
+    /**
+     * Images that are decoded or scaled into images of the raster pool are counted from the time they are
+     * borrowed until they are no longer used by the pool. Buffers internal to image readers are not included.
+     * @return the maximum size of all images held by the raster pool at the same time in bytes
+     */
+    public long getPeakRasterBytes() {
+        return peakRasterBytes;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder(128);
+        for (Phase phase : Phase.values()) {
+            sb.append(phase.name().toLowerCase(Locale.ROOT)).append(' ')
+                .append(getNanos(phase) / 1_000_000).append(" ms, ");
+        }
+        return sb.append(getTiles()).append(" tiles, ").append(getBytes() / 1024).append(" KiB, peak raster memory ")
+            .append(getPeakRasterBytes() / (1024 * 1024)).append(" MiB").toString();
+    }
+
+    /**
+     * A phase of the tiling process.
+     */
+    public enum Phase {
+        /**
+         * reading and decoding the source image, including embedded or subsampled overviews.
+         */
+        DECODE,
+        /**
+         * converting decoded images to an image type that can be written as JPEG.
+         */
+        CONVERT,
+        /**
+         * scaling images down to the next zoom level.
+         */
+        SCALE,
+        /**
+         * encoding tiles as JPEG.
+         */
+        ENCODE,
+        /**
+         * writing encoded tiles to the <code>.iview2</code> file and to checkpoints.
+         */
+        WRITE
+    }
+
+    /**
+     * The phases running on a single thread.
+     */
+    private static final class Clock {
+        private final Phase[] phases = new Phase[MAX_NESTED_PHASES];
+
+        private int depth;
+
+        private long since;
+    }
+}
@@ -0,0 +1,670 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import org.mycore.imagetiler.internal.MCRTileIndex;
+import org.mycore.imagetiler.internal.MCRZipDirectory;
+
+/**
+ * Reads tiles from a <code>.iview2</code> file.
+ *
+ * The file is opened once and memory mapped. Tiles are located by the binary tile index
+ * ({@link MCRTiledPictureProps#TILE_INDEX}) written by {@link MCRImage}. For files without it, the ZIP central
+ * directory is parsed into a table that maps zoom level, row and column of a tile to its position in the file.
+ * Tiles are returned as read only
+ * {@link ByteBuffer} views of the mapped file without copying. Entries that are not <code>STORED</code>, as
+ * written by older versions of {@link MCRImage}, are inflated into a new buffer.
+ *
+ * Instances are thread safe and are meant to be shared by many concurrent readers.
+ * <pre>
+ * try (MCRTileReader reader = MCRTileReader.open(iviewFile)) {
+ *     ByteBuffer jpeg = reader.getTile(0, 0, 0);
+ * }
+ * </pre>
+ */
+public final class MCRTileReader implements Closeable {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final long ZIP32_MAX = 0xFFFFFFFFL;
+
+    private static final int ZIP16_MAX = 0xFFFF;
+
+    private static final int METHOD_STORED = 0;
+
+    private static final int METHOD_DEFLATED = 8;
+
+    /**
+     * size of a memory mapped segment of the file, files larger than this are mapped in several segments.
+     */
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    /**
+     * segments overlap, so that every entry up to this size is within a single segment.
+     */
+    private static final long SEGMENT_OVERLAP = 1L << 26;
+
+    private static final String TILE_SUFFIX = ".jpg";
+
+    private final Path iviewFile;
+
+    private final long fileSize;
+
+    private final long cdOffset;
+
+    private final int cdSize;
+
+    private final int cdEntries;
+
+    private final int zoomLevel;
+
+    private final int[] levelOffset;
+
+    private final int[] levelColumns;
+
+    private final int[] levelRows;
+
+    private final int tileCount;
+
+    /**
+     * binary tile index written by {@link MCRImage}, <code>null</code> if the file has none.
+     */
+    private final ByteBuffer index;
+
+    /**
+     * parsed central directory, read on first use if there is a tile index.
+     */
+    private volatile Directory directory;
+
+    private volatile ByteBuffer[] segments;
+
+    private MCRTileReader(final Path iviewFile, final long fileSize, final ByteBuffer[] segments)
+        throws IOException {
+        this.iviewFile = iviewFile;
+        this.fileSize = fileSize;
+        this.segments = segments;
+        final MCRZipDirectory end;
+        try {
+            end = MCRZipDirectory.readEnd((position, length) -> read(segments, position, length), fileSize);
+        } catch (IOException e) {
+            throw new IOException("Could not read " + iviewFile, e);
+        }
+        if (end.getSize() > Integer.MAX_VALUE || end.getEntries() > end.getSize() / CENTRAL_HEADER_SIZE) {
+            throw new IOException("Unsupported central directory: " + iviewFile);
+        }
+        this.cdOffset = end.getOffset();
+        this.cdSize = (int) end.getSize();
+        this.cdEntries = (int) end.getEntries();
+        this.index = readIndex();
+        if (index == null) {
+            final Directory cd = getDirectory();
+            this.zoomLevel = cd.levelColumns.length - 1;
+            this.levelOffset = cd.levelOffset;
+            this.levelColumns = cd.levelColumns;
+            this.levelRows = cd.levelRows;
+            this.tileCount = cd.tileCount;
+        } else {
+            final ByteBuffer trailer = read(segments, cdOffset - MCRTileIndex.TRAILER_SIZE,
+                MCRTileIndex.TRAILER_SIZE);
+            final int levels = trailer.getInt(4);
+            final ByteBuffer levelTable = read(segments,
+                cdOffset - MCRTileIndex.TRAILER_SIZE - (long) levels * MCRTileIndex.LEVEL_SIZE,
+                levels * MCRTileIndex.LEVEL_SIZE);
+            this.zoomLevel = levels - 1;
+            this.tileCount = trailer.getInt(0);
+            this.levelOffset = new int[levels + 1];
+            this.levelColumns = new int[levels];
+            this.levelRows = new int[levels];
+            for (int z = 0; z < levels; z++) {
+                levelColumns[z] = levelTable.getInt(z * MCRTileIndex.LEVEL_SIZE);
+                levelRows[z] = levelTable.getInt(z * MCRTileIndex.LEVEL_SIZE + Integer.BYTES);
+                levelOffset[z + 1] = levelOffset[z] + levelColumns[z] * levelRows[z];
+            }
+        }
+    }
+
+    /**
+     * opens a <code>.iview2</code> file.
+     * @param iviewFile the <code>.iview2</code> file,
+     *                  see {@link MCRImage#getTiledFile(Path, String, String)}
+     * @return a reader for <code>iviewFile</code>
+     * @throws IOException if the file could not be read or is not a valid ZIP file
+     */
+    public static MCRTileReader open(final Path iviewFile) throws IOException {
+        try (FileChannel channel = FileChannel.open(iviewFile, StandardOpenOption.READ)) {
+            return new MCRTileReader(iviewFile, channel.size(), map(channel));
+        }
+    }
+
+    private static ByteBuffer[] map(final FileChannel channel) throws IOException {
+        final long fileSize = channel.size();
+        final int count = (int) Math.max(1, (fileSize + SEGMENT_SIZE - 1) / SEGMENT_SIZE);
+        final ByteBuffer[] segments = new ByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            final long start = i * SEGMENT_SIZE;
+            final long length = Math.min(fileSize - start, SEGMENT_SIZE + SEGMENT_OVERLAP);
+            segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, length)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        }
+        return segments;
+    }
+
+    /**
+     * returns the binary tile index, if it is the last entry before the central directory.
+     */
+    private ByteBuffer readIndex() throws IOException {
+        final long trailerPos = cdOffset - MCRTileIndex.TRAILER_SIZE;
+        if (trailerPos < 0) {
+            return null;
+        }
+        final ByteBuffer trailer = read(segments, trailerPos, MCRTileIndex.TRAILER_SIZE);
+        final int levels = trailer.getInt(4);
+        if (trailer.getInt(12) != MCRTileIndex.MAGIC || trailer.getInt(8) != MCRTileIndex.VERSION
+            || levels < 0 || levels > Integer.SIZE) {
+            return null;
+        }
+        final long levelTablePos = trailerPos - (long) levels * MCRTileIndex.LEVEL_SIZE;
+        if (levelTablePos < 0) {
+            return null;
+        }
+        final ByteBuffer levelTable = read(segments, levelTablePos, levels * MCRTileIndex.LEVEL_SIZE);
+        long slots = 0;
+        for (int z = 0; z < levels; z++) {
+            slots += (long) levelTable.getInt(z * MCRTileIndex.LEVEL_SIZE)
+                * levelTable.getInt(z * MCRTileIndex.LEVEL_SIZE + Integer.BYTES);
+        }
+        final byte[] name = MCRTiledPictureProps.TILE_INDEX.getBytes(StandardCharsets.UTF_8);
+        final long indexPos = levelTablePos - slots * MCRTileIndex.RECORD_SIZE;
+        final long headerPos = indexPos - LOCAL_HEADER_SIZE - name.length;
+        if (slots > Integer.MAX_VALUE / MCRTileIndex.RECORD_SIZE || headerPos < 0) {
+            return null;
+        }
+        final ByteBuffer header = read(segments, headerPos, LOCAL_HEADER_SIZE + name.length);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE || header.getShort(8) != METHOD_STORED
+            || header.getShort(26) != name.length || header.getShort(28) != 0) {
+            return null;
+        }
+        for (int i = 0; i < name.length; i++) {
+            if (header.get(LOCAL_HEADER_SIZE + i) != name[i]) {
+                return null;
+            }
+        }
+        return read(segments, indexPos, (int) slots * MCRTileIndex.RECORD_SIZE);
+    }
+
+    private Directory getDirectory() throws IOException {
+        Directory cd = directory;
+        if (cd == null) {
+            synchronized (this) {
+                cd = directory;
+                if (cd == null) {
+                    cd = readCentralDirectory();
+                    directory = cd;
+                }
+            }
+        }
+        return cd;
+    }
+
+    private Directory readCentralDirectory() throws IOException {
+        final CentralDirectory cd = new CentralDirectory(cdEntries);
+        final ByteBuffer cdBuffer = read(getSegments(), cdOffset, cdSize);
+        int pos = 0;
+        for (int i = 0; i < cdEntries; i++) {
+            if (cdBuffer.getInt(pos) != CENTRAL_HEADER_SIGNATURE) {
+                throw new IOException("Invalid central directory entry " + i + ": " + iviewFile);
+            }
+            final int entryMethod = Short.toUnsignedInt(cdBuffer.getShort(pos + 10));
+            long entryCompressedSize = Integer.toUnsignedLong(cdBuffer.getInt(pos + 20));
+            long entrySize = Integer.toUnsignedLong(cdBuffer.getInt(pos + 24));
+            final int nameLength = Short.toUnsignedInt(cdBuffer.getShort(pos + 28));
+            final int extraLength = Short.toUnsignedInt(cdBuffer.getShort(pos + 30));
+            final int commentLength = Short.toUnsignedInt(cdBuffer.getShort(pos + 32));
+            long entryHeaderOffset = Integer.toUnsignedLong(cdBuffer.getInt(pos + 42));
+            final int namePos = pos + CENTRAL_HEADER_SIZE;
+            //ZIP64 extra field contains only the values that are set to 0xFFFFFFFF
+            int extraPos = namePos + nameLength;
+            final int extraEnd = extraPos + extraLength;
+            while (extraPos + 4 <= extraEnd) {
+                final int id = Short.toUnsignedInt(cdBuffer.getShort(extraPos));
+                final int length = Short.toUnsignedInt(cdBuffer.getShort(extraPos + 2));
+                if (id == ZIP64_EXTRA_ID) {
+                    int valuePos = extraPos + 4;
+                    if (entrySize == ZIP32_MAX) {
+                        entrySize = cdBuffer.getLong(valuePos);
+                        valuePos += Long.BYTES;
+                    }
+                    if (entryCompressedSize == ZIP32_MAX) {
+                        entryCompressedSize = cdBuffer.getLong(valuePos);
+                        valuePos += Long.BYTES;
+                    }
+                    if (entryHeaderOffset == ZIP32_MAX) {
+                        entryHeaderOffset = cdBuffer.getLong(valuePos);
+                    }
+                }
+                extraPos += 4 + length;
+            }
+            if (entrySize > SEGMENT_OVERLAP || entryCompressedSize > SEGMENT_OVERLAP) {
+                throw new IOException("ZIP entry " + i + " is too large: " + iviewFile);
+            }
+            cd.add(cdBuffer, namePos, nameLength, entryMethod, entryHeaderOffset, (int) entryCompressedSize,
+                (int) entrySize);
+            pos = extraEnd + commentLength;
+        }
+        if (cd.getTableSize() > 2L * cd.tiles + ZIP16_MAX) {
+            throw new IOException("Tile names do not form an image pyramid: " + iviewFile);
+        }
+        return new Directory(cd);
+    }
+
+    /**
+     * returns <code>length</code> bytes at <code>position</code> of the file, without copying if possible.
+     */
+    private ByteBuffer read(final ByteBuffer[] mapped, final long position, final int length)
+        throws IOException {
+        if (position < 0 || length < 0 || position + length > fileSize) {
+            throw new IOException("Invalid position " + position + " in file: " + iviewFile);
+        }
+        final int segmentIndex = (int) (position / SEGMENT_SIZE);
+        final ByteBuffer segment = mapped[segmentIndex];
+        final int pos = (int) (position - segmentIndex * SEGMENT_SIZE);
+        if (pos + length <= segment.limit()) {
+            final ByteBuffer data = segment.duplicate();
+            data.position(pos).limit(pos + length);
+            return data.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        final ByteBuffer copy = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        long current = position;
+        while (copy.hasRemaining()) {
+            final int currentIndex = (int) (current / SEGMENT_SIZE);
+            final ByteBuffer data = mapped[currentIndex].duplicate();
+            data.position((int) (current - currentIndex * SEGMENT_SIZE));
+            data.limit(data.position() + Math.min(copy.remaining(), (int) (SEGMENT_SIZE - data.position())));
+            current += data.remaining();
+            copy.put(data);
+        }
+        copy.clear();
+        return copy;
+    }
+
+    private ByteBuffer[] getSegments() throws IOException {
+        final ByteBuffer[] mapped = segments;
+        if (mapped == null) {
+            throw new IOException("Reader is already closed: " + iviewFile);
+        }
+        return mapped;
+    }
+
+    /**
+     * returns a tile.
+     * @param z zoom level
+     * @param y row of the tile in zoom level <code>z</code>
+     * @param x column of the tile in zoom level <code>z</code>
+     * @return the encoded tile as read only buffer or <code>null</code>, if there is no such tile
+     * @throws IOException if the tile could not be read
+     */
+    public ByteBuffer getTile(final int z, final int y, final int x) throws IOException {
+        final int slot = getSlot(z, y, x);
+        if (slot < 0) {
+            return null;
+        }
+        if (index == null) {
+            return readEntry(directory, slot);
+        }
+        final int recordPos = slot * MCRTileIndex.RECORD_SIZE;
+        final long offset = index.getLong(recordPos);
+        return offset < 0 ? null
+            : read(getSegments(), offset, index.getInt(recordPos + Long.BYTES)).asReadOnlyBuffer();
+    }
+
+    /**
+     * returns an entry of the ZIP file, like {@link MCRTiledPictureProps#IMAGEINFO_XML}.
+     * @param name name of the entry
+     * @return the content of the entry as read only buffer or <code>null</code>, if there is no such entry
+     * @throws IOException if the entry could not be read
+     */
+    public ByteBuffer getEntry(final String name) throws IOException {
+        final Directory cd = getDirectory();
+        final Integer slot = cd.otherEntries.get(name);
+        if (slot != null) {
+            return readEntry(cd, slot);
+        }
+        final int[] zyx = new int[3];
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        if (parseTileName(ByteBuffer.wrap(nameBytes), 0, nameBytes.length, zyx)) {
+            return getTile(zyx[0], zyx[1], zyx[2]);
+        }
+        return null;
+    }
+
+    /**
+     * checks if a tile is present.
+     * @param z zoom level
+     * @param y row of the tile in zoom level <code>z</code>
+     * @param x column of the tile in zoom level <code>z</code>
+     * @return true, if {@link #getTile(int, int, int)} would return a tile
+     */
+    public boolean hasTile(final int z, final int y, final int x) {
+        final int slot = getSlot(z, y, x);
+        if (slot < 0) {
+            return false;
+        }
+        return index == null ? directory.headerOffset[slot] >= 0
+            : index.getLong(slot * MCRTileIndex.RECORD_SIZE) >= 0;
+    }
+
+    /**
+     * @return number of tiles in the file
+     */
+    public int getTileCount() {
+        return tileCount;
+    }
+
+    /**
+     * @return the highest zoom level
+     */
+    public int getZoomLevel() {
+        return zoomLevel;
+    }
+
+    /**
+     * @return the <code>.iview2</code> file
+     */
+    public Path getFile() {
+        return iviewFile;
+    }
+
+    /**
+     * releases the memory mapped file.
+     *
+     * Buffers returned before remain valid, the mapping is removed once they are garbage collected.
+     */
+    @Override
+    public void close() {
+        segments = null;
+    }
+
+    /**
+     * @return true, if {@link #close()} was called
+     */
+    boolean isClosed() {
+        return segments == null;
+    }
+
+    private int getSlot(final int z, final int y, final int x) {
+        if (z < 0 || z > zoomLevel || y < 0 || y >= levelRows[z] || x < 0 || x >= levelColumns[z]) {
+            return -1;
+        }
+        return levelOffset[z] + y * levelColumns[z] + x;
+    }
+
+    private ByteBuffer readEntry(final Directory cd, final int slot) throws IOException {
+        final long header = cd.headerOffset[slot];
+        if (header < 0) {
+            return null;
+        }
+        final ByteBuffer[] mapped = getSegments();
+        final int segmentIndex = (int) (header / SEGMENT_SIZE);
+        final ByteBuffer segment = mapped[segmentIndex];
+        final int headerPos = (int) (header - segmentIndex * SEGMENT_SIZE);
+        if (headerPos + LOCAL_HEADER_SIZE > segment.limit() || segment.getInt(headerPos) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header at " + header + ": " + iviewFile);
+        }
+        final int dataPos = headerPos + LOCAL_HEADER_SIZE + Short.toUnsignedInt(segment.getShort(headerPos + 26))
+            + Short.toUnsignedInt(segment.getShort(headerPos + 28));
+        final int length = cd.compressedSize[slot];
+        if (dataPos + length > segment.limit()) {
+            throw new IOException("ZIP entry at " + header + " exceeds file: " + iviewFile);
+        }
+        final ByteBuffer data = segment.duplicate();
+        data.position(dataPos).limit(dataPos + length);
+        switch (cd.method[slot]) {
+            case METHOD_STORED:
+                return data.slice().asReadOnlyBuffer();
+            case METHOD_DEFLATED:
+                return inflate(data, cd.size[slot], header);
+            default:
+                throw new IOException("Unsupported compression method " + cd.method[slot] + " of entry at " + header
+                    + ": " + iviewFile);
+        }
+    }
+
+    private ByteBuffer inflate(final ByteBuffer data, final int length, final long header) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            final ByteBuffer inflated = ByteBuffer.allocate(length);
+            while (inflated.hasRemaining() && !inflater.finished()) {
+                if (inflater.inflate(inflated) == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+            }
+            if (inflated.hasRemaining()) {
+                throw new IOException("Truncated ZIP entry at " + header + ": " + iviewFile);
+            }
+            inflated.flip();
+            return inflated.asReadOnlyBuffer();
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid ZIP entry at " + header + ": " + iviewFile, e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    /**
+     * parses tile names like <code>z/y/x.jpg</code>.
+     */
+    private static boolean parseTileName(final ByteBuffer buffer, final int pos, final int length,
+        final int[] zyx) {
+        final int end = pos + length - TILE_SUFFIX.length();
+        if (end <= pos) {
+            return false;
+        }
+        for (int i = 0; i < TILE_SUFFIX.length(); i++) {
+            if (buffer.get(end + i) != TILE_SUFFIX.charAt(i)) {
+                return false;
+            }
+        }
+        int part = 0;
+        int value = 0;
+        int digits = 0;
+        for (int i = pos; i < end; i++) {
+            final byte b = buffer.get(i);
+            if (b >= '0' && b <= '9' && digits < 9) {
+                value = value * 10 + b - '0';
+                digits++;
+            } else if (b == '/' && digits > 0 && part < 2) {
+                zyx[part++] = value;
+                value = 0;
+                digits = 0;
+            } else {
+                return false;
+            }
+        }
+        if (part != 2 || digits == 0) {
+            return false;
+        }
+        zyx[2] = value;
+        return true;
+    }
+
+    /**
+     * position of all entries, tiles are ordered by zoom level, row and column.
+     */
+    private static final class Directory {
+        private final int[] levelOffset;
+
+        private final int[] levelColumns;
+
+        private final int[] levelRows;
+
+        private final long[] headerOffset;
+
+        private final int[] compressedSize;
+
+        private final int[] size;
+
+        private final byte[] method;
+
+        private final Map<String, Integer> otherEntries = new HashMap<>();
+
+        private final int tileCount;
+
+        private Directory(final CentralDirectory cd) {
+            final int levels = cd.maxZ + 1;
+            this.levelOffset = new int[levels + 1];
+            this.levelColumns = new int[levels];
+            this.levelRows = new int[levels];
+            for (int z = 0; z < levels; z++) {
+                levelColumns[z] = cd.maxX[z] + 1;
+                levelRows[z] = cd.maxY[z] + 1;
+                levelOffset[z + 1] = levelOffset[z] + levelColumns[z] * levelRows[z];
+            }
+            final int slots = levelOffset[levels] + cd.otherEntries.size();
+            this.headerOffset = new long[slots];
+            this.compressedSize = new int[slots];
+            this.size = new int[slots];
+            this.method = new byte[slots];
+            Arrays.fill(headerOffset, -1);
+            for (int i = 0; i < cd.tiles; i++) {
+                final int z = cd.tileZ[i];
+                final int slot = levelOffset[z] + cd.tileY[i] * levelColumns[z] + cd.tileX[i];
+                setEntry(slot, cd, cd.tileEntry[i]);
+            }
+            this.tileCount = cd.tiles;
+            int slot = levelOffset[levels];
+            for (Map.Entry<String, Integer> entry : cd.otherEntries.entrySet()) {
+                setEntry(slot, cd, entry.getValue());
+                otherEntries.put(entry.getKey(), slot++);
+            }
+        }
+
+        private void setEntry(final int slot, final CentralDirectory cd, final int entry) {
+            headerOffset[slot] = cd.headerOffset[entry];
+            compressedSize[slot] = cd.compressedSize[entry];
+            size[slot] = cd.size[entry];
+            method[slot] = (byte) cd.method[entry];
+        }
+    }
+
+    /**
+     * entries of the central directory in primitive arrays.
+     */
+    private static final class CentralDirectory {
+        private final long[] headerOffset;
+
+        private final int[] compressedSize;
+
+        private final int[] size;
+
+        private final int[] method;
+
+        private final int[] tileZ;
+
+        private final int[] tileY;
+
+        private final int[] tileX;
+
+        private final int[] tileEntry;
+
+        private final Map<String, Integer> otherEntries = new HashMap<>();
+
+        private final int[] zyx = new int[3];
+
+        private int[] maxX = new int[0];
+
+        private int[] maxY = new int[0];
+
+        private int maxZ = -1;
+
+        private int entries;
+
+        private int tiles;
+
+        private CentralDirectory(final int capacity) {
+            headerOffset = new long[capacity];
+            compressedSize = new int[capacity];
+            size = new int[capacity];
+            method = new int[capacity];
+            tileZ = new int[capacity];
+            tileY = new int[capacity];
+            tileX = new int[capacity];
+            tileEntry = new int[capacity];
+        }
+
+        private long getTableSize() {
+            long tableSize = 0;
+            for (int z = 0; z <= maxZ; z++) {
+                tableSize += (maxX[z] + 1L) * (maxY[z] + 1L);
+            }
+            return tableSize;
+        }
+
+        private void add(final ByteBuffer cdBuffer, final int namePos, final int nameLength, final int entryMethod,
+            final long entryHeaderOffset, final int entryCompressedSize, final int entrySize) {
+            final int entry = entries++;
+            headerOffset[entry] = entryHeaderOffset;
+            compressedSize[entry] = entryCompressedSize;
+            size[entry] = entrySize;
+            method[entry] = entryMethod;
+            if (!parseTileName(cdBuffer, namePos, nameLength, zyx) || zyx[0] > ZIP16_MAX) {
+                final byte[] name = new byte[nameLength];
+                for (int i = 0; i < nameLength; i++) {
+                    name[i] = cdBuffer.get(namePos + i);
+                }
+                otherEntries.put(new String(name, StandardCharsets.UTF_8), entry);
+                return;
+            }
+            final int z = zyx[0];
+            if (z > maxZ) {
+                maxX = Arrays.copyOf(maxX, z + 1);
+                maxY = Arrays.copyOf(maxY, z + 1);
+                maxZ = z;
+            }
+            maxY[z] = Math.max(maxY[z], zyx[1]);
+            maxX[z] = Math.max(maxX[z], zyx[2]);
+            tileZ[tiles] = z;
+            tileY[tiles] = zyx[1];
+            tileX[tiles] = zyx[2];
+            tileEntry[tiles] = entry;
+            tiles++;
+        }
+    }
+}
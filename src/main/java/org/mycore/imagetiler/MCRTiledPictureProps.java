@@ -17,17 +17,32 @@
  */
 package org.mycore.imagetiler;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.URI;
-import java.nio.file.FileSystem;
-import java.nio.file.FileSystems;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.util.Collections;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
 
-import javax.xml.transform.stream.StreamSource;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+
+import org.mycore.imagetiler.internal.MCRZipDirectory;
 
 import jakarta.xml.bind.JAXBContext;
 import jakarta.xml.bind.JAXBException;
@@ -38,6 +53,9 @@ import jakarta.xml.bind.annotation.XmlRootElement;
 
 /**
  * The <code>MCRTiledPictureProps</code> gives access to a bunch of properties referring to a {@link MCRImage} instance.
+ *
+ * <code>imageinfo.xml</code> is read and written with StAX. The JAXB annotations are kept for applications that
+ * use {@link #getJaxbContext()}, JAXB is not needed otherwise.
  * @author Thomas Scheffler (yagee)
  *
  */
@@ -45,14 +63,20 @@ import jakarta.xml.bind.annotation.XmlRootElement;
 @XmlAccessorType(XmlAccessType.FIELD)
 public class MCRTiledPictureProps {
 
-    private static final JAXBContext jaxbContext;
+    private static final XMLInputFactory XML_INPUT_FACTORY;
+
+    private static final XMLOutputFactory XML_OUTPUT_FACTORY = XMLOutputFactory.newFactory();
+
+    /**
+     * XML declaration as written by JAXB.
+     */
+    private static final byte[] XML_DECLARATION = "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>"
+        .getBytes(StandardCharsets.US_ASCII);
 
     static {
-        try {
-            jaxbContext = JAXBContext.newInstance(MCRTiledPictureProps.class);
-        } catch (JAXBException e) {
-            throw new ExceptionInInitializerError(e);
-        }
+        XML_INPUT_FACTORY = XMLInputFactory.newFactory();
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        XML_INPUT_FACTORY.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
     }
 
     /**
@@ -60,6 +84,11 @@ public class MCRTiledPictureProps {
      */
     public static final String IMAGEINFO_XML = "imageinfo.xml";
 
+    /**
+     * file name of the binary tile index inside .iview2 file
+     */
+    public static final String TILE_INDEX = "tileindex.bin";
+
     @XmlAttribute(name = "tiles")
     protected int tilesCount;
 
@@ -72,6 +101,12 @@ public class MCRTiledPictureProps {
     @XmlAttribute
     protected int zoomLevel;
 
+    /**
+     * describes the source image and tiler settings, see {@link MCRImage#getSourceFingerprint()}.
+     */
+    @XmlAttribute
+    protected String fingerprint;
+
     /**
      * gets properties of the given <code>.iview2</code> file.
      * Use {@link MCRImage#getTiledFile(Path, String, String)} to get the {@link Path} instance of the <code>.iview2</code> file.
@@ -92,11 +127,123 @@ public class MCRTiledPictureProps {
      * @throws IOException Exceptions occurs while accessing <code>iviewFile</code>.
      */
     public static MCRTiledPictureProps getInstanceFromFile(Path iviewFile) throws IOException {
-        URI uri = URI.create("jar:" + iviewFile.toUri());
-        try (FileSystem zipFileSystem = FileSystems.newFileSystem(uri, Collections.emptyMap(),
-            MCRTiledPictureProps.class.getClassLoader())) {
-            Path iviewFileRoot = zipFileSystem.getRootDirectories().iterator().next();
-            return getInstanceFromDirectory(iviewFileRoot);
+        final byte[] imageInfo;
+        try (FileChannel channel = FileChannel.open(iviewFile, StandardOpenOption.READ)) {
+            imageInfo = MCRZipDirectory.readEntry(channel, IMAGEINFO_XML);
+        } catch (NoSuchFileException e) {
+            throw e;
+        } catch (IOException e) {
+            throw new IOException("Could not read " + IMAGEINFO_XML + " of " + iviewFile, e);
+        }
+        if (imageInfo == null) {
+            throw new NoSuchFileException(iviewFile + "!/" + IMAGEINFO_XML);
+        }
+        return readImageInfo(new ByteArrayInputStream(imageInfo));
+    }
+
+    /**
+     * gets properties of many <code>.iview2</code> files in parallel.
+     * @param iviewFiles the IView2 files
+     * @return properties of every file in the order of <code>iviewFiles</code>
+     * @throws IOException if any of the files could not be read
+     * @see #getInstanceFromFile(Path)
+     */
+    public static Map<Path, MCRTiledPictureProps> getInstancesFromFiles(Collection<Path> iviewFiles)
+        throws IOException {
+        final List<MCRTiledPictureProps> props;
+        try {
+            props = iviewFiles.parallelStream()
+                .map(iviewFile -> {
+                    try {
+                        return getInstanceFromFile(iviewFile);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                })
+                .collect(Collectors.toList());
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        final Map<Path, MCRTiledPictureProps> result = new LinkedHashMap<>();
+        int i = 0;
+        for (Path iviewFile : iviewFiles) {
+            result.put(iviewFile, props.get(i++));
+        }
+        return result;
+    }
+
+    /**
+     * reads the attributes of the <code>imageinfo</code> element with a streaming parser.
+     */
+    static MCRTiledPictureProps readImageInfo(InputStream imageInfo) throws IOException {
+        try {
+            final XMLStreamReader reader = XML_INPUT_FACTORY.createXMLStreamReader(imageInfo);
+            try {
+                while (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    if (!reader.hasNext()) {
+                        throw new IOException("Missing root element in " + IMAGEINFO_XML);
+                    }
+                }
+                if (!"imageinfo".equals(reader.getLocalName())) {
+                    throw new IOException("Unexpected root element in " + IMAGEINFO_XML + ": " + reader.getName());
+                }
+                final MCRTiledPictureProps props = new MCRTiledPictureProps();
+                props.tilesCount = getIntAttribute(reader, "tiles");
+                props.height = getIntAttribute(reader, "height");
+                props.width = getIntAttribute(reader, "width");
+                props.zoomLevel = getIntAttribute(reader, "zoomLevel");
+                props.fingerprint = reader.getAttributeValue(null, "fingerprint");
+                return props;
+            } finally {
+                reader.close();
+            }
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * writes <code>imageinfo.xml</code>.
+     * @param out target stream, is not closed
+     * @param derivate the derivate ID, may be null
+     * @param path the image path, may be null
+     * @param fingerprint the source fingerprint, may be null
+     */
+    static void writeImageInfo(OutputStream out, String derivate, String path, int tilesCount, int zoomLevel,
+        int height, int width, String fingerprint) throws IOException {
+        out.write(XML_DECLARATION);
+        try {
+            final XMLStreamWriter writer = XML_OUTPUT_FACTORY.createXMLStreamWriter(out, "UTF-8");
+            writer.writeEmptyElement("imageinfo");
+            if (derivate != null) {
+                writer.writeAttribute("derivate", derivate);
+            }
+            if (path != null) {
+                writer.writeAttribute("path", path);
+            }
+            writer.writeAttribute("tiles", Integer.toString(tilesCount));
+            writer.writeAttribute("height", Integer.toString(height));
+            writer.writeAttribute("width", Integer.toString(width));
+            writer.writeAttribute("zoomLevel", Integer.toString(zoomLevel));
+            if (fingerprint != null) {
+                writer.writeAttribute("fingerprint", fingerprint);
+            }
+            writer.writeEndDocument();
+            writer.close();
+        } catch (XMLStreamException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static int getIntAttribute(XMLStreamReader reader, String name) throws IOException {
+        final String value = reader.getAttributeValue(null, name);
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IOException("Invalid value of attribute " + name + " in " + IMAGEINFO_XML + ": " + value, e);
         }
     }
 
@@ -110,17 +257,18 @@ public class MCRTiledPictureProps {
     public static MCRTiledPictureProps getInstanceFromDirectory(Path iviewFileRoot) throws IOException {
         Path imageInfoPath = iviewFileRoot.resolve(IMAGEINFO_XML);
         try (InputStream zin = Files.newInputStream(imageInfoPath)) {
-            try {
-                StreamSource is = new StreamSource(zin);
-                return jaxbContext.createUnmarshaller().unmarshal(is, MCRTiledPictureProps.class).getValue();
-            } catch (JAXBException e) {
-                throw new IOException(e);
-            }
+            return readImageInfo(zin);
         }
     }
 
+    /**
+     * returns a JAXB context for this class.
+     *
+     * Requires JAXB API and implementation on the class or module path, which are optional dependencies.
+     * @return the JAXB context, created on first call
+     */
     public static JAXBContext getJaxbContext() {
-        return jaxbContext;
+        return JaxbContextHolder.JAXB_CONTEXT;
     }
 
     /**
@@ -151,9 +299,30 @@ public class MCRTiledPictureProps {
         return zoomLevel;
     }
 
+    /**
+     * @return the fingerprint of the source image and tiler settings or <code>null</code>, if the
+     * <code>.iview2</code> file was written by an older version
+     * @see MCRImage#isUpToDate()
+     */
+    public String getSourceFingerprint() {
+        return fingerprint;
+    }
+
     @Override
     public String toString() {
         return "MCRTiledPictureProps [tilesCount=" + tilesCount + ", height=" + height + ", width=" + width
             + ", zoomLevel=" + zoomLevel + "]";
     }
+
+    private static final class JaxbContextHolder {
+        private static final JAXBContext JAXB_CONTEXT;
+
+        static {
+            try {
+                JAXB_CONTEXT = JAXBContext.newInstance(MCRTiledPictureProps.class);
+            } catch (JAXBException e) {
+                throw new ExceptionInInitializerError(e);
+            }
+        }
+    }
 }
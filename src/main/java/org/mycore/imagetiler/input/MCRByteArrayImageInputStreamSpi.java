@@ -0,0 +1,56 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.input;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Optional;
+
+import javax.imageio.spi.ImageInputStreamSpi;
+import javax.imageio.stream.ImageInputStream;
+
+import org.mycore.imagetiler.input.impl.MCRByteBufferInputStream;
+
+/**
+ * Creates an {@link ImageInputStream} reading a <code>byte[]</code> without copying it.
+ */
+public class MCRByteArrayImageInputStreamSpi extends ImageInputStreamSpi {
+
+    public MCRByteArrayImageInputStreamSpi() {
+        super("MyCoRe Community (http://www.mycore.org)",
+            Optional.ofNullable(
+                MCRByteArrayImageInputStreamSpi.class.getPackage().getImplementationVersion()).orElse("1.0"),
+            byte[].class);
+    }
+
+    @Override
+    public String getDescription(Locale locale) {
+        return "byte[] ImageInputStream";
+    }
+
+    @Override
+    public ImageInputStream createInputStreamInstance(Object input, boolean useCache, File cacheDir) {
+        if (!getInputClass().isInstance(input)) {
+            throw new IllegalArgumentException("invalid input");
+        }
+        return new MCRByteBufferInputStream(ByteBuffer.wrap((byte[]) input));
+    }
+
+}
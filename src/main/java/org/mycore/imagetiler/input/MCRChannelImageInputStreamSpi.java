@@ -24,18 +24,54 @@ import java.io.InputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
 import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Locale;
 import java.util.Optional;
+import java.util.Set;
 
 import javax.imageio.spi.ImageInputStreamSpi;
 import javax.imageio.stream.FileCacheImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.MemoryCacheImageInputStream;
 
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 import org.mycore.imagetiler.input.impl.MCRFileChannelInputStream;
+import org.mycore.imagetiler.input.impl.MCRPositionalReadInputStream;
+import org.mycore.imagetiler.input.impl.MCRSeekableChannelInputStream;
 
 public class MCRChannelImageInputStreamSpi extends ImageInputStreamSpi {
 
+    /**
+     * system property that chooses how a {@link FileChannel} is read, one of {@link Mode}, ignoring case
+     */
+    public static final String MODE_PROPERTY = "MCR.ImageTiler.ChannelInput";
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final Set<String> NETWORK_FILE_SYSTEMS = Set.of("cifs", "smbfs", "smb2", "smb3", "9p", "afs",
+        "ceph", "glusterfs", "lustre", "gpfs", "davfs", "fuse.sshfs", "fuse.glusterfs", "fuse.ceph", "fuse.s3fs");
+
+    /**
+     * How a {@link FileChannel} is read.
+     */
+    public enum Mode {
+        /**
+         * {@link #READ} for files on network file systems, {@link #MAP} otherwise
+         */
+        AUTO,
+        /**
+         * maps the file into memory, see {@link MCRFileChannelInputStream}
+         */
+        MAP,
+        /**
+         * reads into a direct buffer, see {@link MCRPositionalReadInputStream}
+         */
+        READ
+    }
+
     public MCRChannelImageInputStreamSpi() {
         super("MyCoRe Community (http://www.mycore.org)",
             Optional.ofNullable(
@@ -55,7 +91,9 @@ public class MCRChannelImageInputStreamSpi extends ImageInputStreamSpi {
             throw new IllegalArgumentException("invalid input");
         }
         if (input instanceof FileChannel) {
-            return new MCRFileChannelInputStream((FileChannel) input);
+            return createInputStream((FileChannel) input, null);
+        } else if (input instanceof SeekableByteChannel && isSeekable((SeekableByteChannel) input)) {
+            return new MCRSeekableChannelInputStream((SeekableByteChannel) input);
         } else {
             InputStream is = Channels.newInputStream((ReadableByteChannel) input);
 
@@ -72,4 +110,60 @@ public class MCRChannelImageInputStreamSpi extends ImageInputStreamSpi {
         }
     }
 
+    /**
+     * Creates a stream for the given file as configured by {@link #MODE_PROPERTY}.
+     * @param channel the file, starting at its current position
+     * @param file path of the file, used by {@link Mode#AUTO} to detect network file systems, may be
+     *             <code>null</code>
+     * @return a new stream that does not close <code>channel</code>
+     * @throws IOException if the size of the file could not be determined
+     */
+    public static ImageInputStream createInputStream(FileChannel channel, Path file) throws IOException {
+        return getMode(file) == Mode.READ ? new MCRPositionalReadInputStream(channel)
+            : new MCRFileChannelInputStream(channel);
+    }
+
+    /**
+     * @param file path of the file, may be <code>null</code>
+     * @return {@link Mode#MAP} or {@link Mode#READ}
+     */
+    static Mode getMode(Path file) {
+        final String property = System.getProperty(MODE_PROPERTY, Mode.AUTO.name());
+        Mode mode;
+        try {
+            mode = Mode.valueOf(property.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOGGER.warn("Unknown value of {}: {}", MODE_PROPERTY, property);
+            mode = Mode.AUTO;
+        }
+        if (mode != Mode.AUTO) {
+            return mode;
+        }
+        return file != null && isNetworkFileSystem(file) ? Mode.READ : Mode.MAP;
+    }
+
+    /**
+     * Channels of entries of zip file systems, for example, cannot change their position.
+     */
+    private static boolean isSeekable(SeekableByteChannel channel) {
+        try {
+            channel.position(channel.position());
+            return true;
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.debug("Channel does not support seeking, caching whole channel: {}", channel.getClass());
+            return false;
+        }
+    }
+
+    private static boolean isNetworkFileSystem(Path file) {
+        try {
+            final String type = Files.getFileStore(file).type().toLowerCase(Locale.ROOT);
+            final boolean network = type.startsWith("nfs") || NETWORK_FILE_SYSTEMS.contains(type);
+            LOGGER.debug("File system of {}: {}, network: {}", file, type, network);
+            return network;
+        } catch (IOException | UnsupportedOperationException e) {
+            LOGGER.debug("Could not determine file system of {}", file, e);
+            return false;
+        }
+    }
 }
@@ -0,0 +1,88 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.input.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * Reads a {@link ByteBuffer} without copying it.
+ *
+ * The stream starts at the current position of the buffer and ends at its limit. Position and limit of the buffer
+ * are not changed.
+ */
+public class MCRByteBufferInputStream extends ImageInputStreamImpl {
+    private ByteBuffer buffer;
+
+    /**
+     * @param input the buffer, only its remaining bytes are read
+     */
+    public MCRByteBufferInputStream(ByteBuffer input) {
+        if (input == null) {
+            throw new IllegalArgumentException("input is null");
+        }
+        this.buffer = input.slice();
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= buffer.limit()) {
+            return -1; //EOF
+        }
+        return buffer.get((int) streamPos++) & 0xff; //convert signed byte to int (0-255)
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException(
+                "off=" + off + " and len=" + len + " do not work with array length: " + b.length);
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        checkClosed();
+        bitOffset = 0;
+
+        if (streamPos >= buffer.limit()) {
+            return -1; //EOF
+        }
+        buffer.position((int) streamPos);
+        len = Math.min(len, buffer.remaining());
+        buffer.get(b, off, len);
+        streamPos += len;
+        return len;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        buffer = null;
+    }
+
+    @Override
+    public long length() {
+        return buffer == null ? -1 : buffer.limit();
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.input.impl;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Keeps direct buffers of a fixed size that are no longer used.
+ *
+ * Direct buffers are expensive to allocate and are freed by the garbage collector only, so streams return their
+ * buffer on close. This class is thread safe.
+ */
+final class MCRDirectBufferPool {
+
+    private final int bufferSize;
+
+    private final int maxBuffers;
+
+    private final ArrayDeque<ByteBuffer> buffers = new ArrayDeque<>();
+
+    private long allocations;
+
+    /**
+     * @param bufferSize capacity of every buffer
+     * @param maxBuffers number of unused buffers kept
+     */
+    MCRDirectBufferPool(final int bufferSize, final int maxBuffers) {
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+    }
+
+    /**
+     * @return a cleared buffer with undefined content
+     */
+    ByteBuffer borrow() {
+        synchronized (this) {
+            final ByteBuffer buffer = buffers.poll();
+            if (buffer != null) {
+                return buffer.clear();
+            }
+            allocations++;
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * @param buffer a buffer returned by {@link #borrow()} that is no longer used, may be <code>null</code>
+     */
+    void release(final ByteBuffer buffer) {
+        if (buffer == null) {
+            return;
+        }
+        synchronized (this) {
+            if (buffers.size() < maxBuffers) {
+                buffers.push(buffer);
+            }
+        }
+    }
+
+    /**
+     * @return capacity of every buffer
+     */
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @return number of buffers allocated so far
+     */
+    synchronized long getAllocations() {
+        return allocations;
+    }
+}
@@ -15,10 +15,8 @@
  * You should have received a copy of the GNU General Public License
  * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
  */
-
 package org.mycore.imagetiler.input.impl;
 
-import java.io.EOFException;
 import java.io.IOException;
 import java.nio.ByteOrder;
 import java.nio.MappedByteBuffer;
@@ -26,44 +24,77 @@ import java.nio.channels.FileChannel;
 
 import javax.imageio.stream.ImageInputStreamImpl;
 
-import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
 
-@SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "Cannot copy FileChannel!")
+/**
+ * Reads a {@link FileChannel} via memory mapped windows.
+ *
+ * At most <code>maxWindows</code> windows of <code>windowSize</code> bytes are mapped at once, so that seeking
+ * between a few positions does not map the file again and again. Reading sequentially loads the next window in
+ * advance.
+ *
+ * @author Thomas Scheffler (yagee)
+ */
 public class MCRFileChannelInputStream extends ImageInputStreamImpl {
-    private FileChannel input;
+    /**
+     * default size of a mapped window: 32 MiB
+     */
+    public static final int DEFAULT_WINDOW_SIZE = 32 << 20;
+
+    /**
+     * default number of windows kept mapped
+     */
+    public static final int DEFAULT_MAX_WINDOWS = 4;
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final long size;
 
-    private long mappedPos, mappedUpperBound;
+    private MCRMappedWindows windows;
 
-    private MappedByteBuffer mappingBuffer;
+    private MappedByteBuffer window;
 
+    private long windowStart, windowEnd;
+
+    /**
+     * Reads the file with {@link #DEFAULT_WINDOW_SIZE}, {@link #DEFAULT_MAX_WINDOWS} and read-ahead.
+     * @param input the file, starting at its current position
+     * @throws IOException if the size of the file could not be determined
+     */
     public MCRFileChannelInputStream(FileChannel input) throws IOException {
+        this(input, DEFAULT_WINDOW_SIZE, DEFAULT_MAX_WINDOWS, true);
+    }
+
+    /**
+     * @param input the file, starting at its current position
+     * @param windowSize number of bytes mapped at once
+     * @param maxWindows number of windows kept mapped
+     * @param readAhead if the next window should be loaded in advance while reading sequentially
+     * @throws IOException if the size of the file could not be determined
+     */
+    public MCRFileChannelInputStream(FileChannel input, int windowSize, int maxWindows, boolean readAhead)
+        throws IOException {
         if (input == null) {
             throw new IllegalArgumentException("input is null");
         }
         if (!input.isOpen()) {
             throw new IllegalArgumentException("image FileChannel is not open");
         }
-        this.input = input;
-        long inputPos = input.position();
-        this.streamPos = this.flushedPos = inputPos;
-        long size = input.size() - inputPos;
-        long mappingSize = Math.min(Integer.MAX_VALUE, size);
-        this.mappedPos = 0;
-        this.mappedUpperBound = mappingSize;
-        this.mappingBuffer = input.map(FileChannel.MapMode.READ_ONLY, streamPos, mappingSize);
+        this.streamPos = this.flushedPos = input.position();
+        this.size = input.size();
+        this.windows = new MCRMappedWindows(input, size, windowSize, maxWindows, readAhead);
     }
 
     @Override
     public int read() throws IOException {
         checkClosed();
         bitOffset = 0;
-        prepareRead(1);
-
-        if (mappingBuffer.remaining() < 1) {
+        if (!prepareRead()) {
             return -1; //EOF
         }
 
-        int value = mappingBuffer.get() & 0xff; //convert signed byte to int (0-255)
+        int value = window.get() & 0xff; //convert signed byte to int (0-255)
         streamPos++;
         return value;
     }
@@ -81,114 +112,127 @@ public class MCRFileChannelInputStream extends ImageInputStreamImpl {
         checkClosed();
         bitOffset = 0;
 
-        prepareRead(len);
-        int bytesLeft = mappingBuffer.remaining();
-
-        if (bytesLeft < 1) {
-            return -1; //EOF
-        } else if (len > bytesLeft) {
-            len = bytesLeft; //do not read over end of file
+        int read = 0;
+        //continue in the next window: ImageInputStreamImpl.readInt() and alike expect complete reads
+        while (read < len && prepareRead()) {
+            int n = Math.min(len - read, window.remaining());
+            window.get(b, off + read, n);
+            streamPos += n;
+            read += n;
         }
-
-        mappingBuffer.get(b, off, len);
-        streamPos += len;
-        return len;
+        return read == 0 ? -1 : read; //-1 on EOF
     }
 
     /**
-     * Checks if boundaries are sufficient to read len bytes.
-     * Will move the mapping region if needed.
+     * Moves to the window containing the stream position.
+     * @return false on EOF
      */
-    private void prepareRead(int len) throws IOException {
-        if (streamPos < mappedPos || streamPos + len >= mappedUpperBound) {
-            mappedPos = streamPos;
-            long mappingSize = Math.min(input.size() - mappedPos, Integer.MAX_VALUE);
-            mappedUpperBound = mappedPos + mappingSize;
-            mappingBuffer = input.map(FileChannel.MapMode.READ_ONLY, mappedPos, mappingSize);
-            mappingBuffer.order(super.getByteOrder());
+    private boolean prepareRead() throws IOException {
+        if (streamPos >= size) {
+            return false;
         }
+        if (window == null || streamPos < windowStart || streamPos >= windowEnd) {
+            window = windows.get(streamPos);
+            window.order(getByteOrder());
+            windowStart = windows.getStart(streamPos);
+            windowEnd = windowStart + window.capacity();
+        }
+        window.position((int) (streamPos - windowStart));
+        return true;
+    }
+
+    /**
+     * @return number of windows mapped so far
+     */
+    int getMappings() {
+        return windows.getMappings();
     }
 
     @Override
     public void close() throws IOException {
         super.close();
-        input = null;
+        LOGGER.debug("Closing stream: {}", windows);
+        window = null;
+        windows = null;
     }
 
     @Override
     public void setByteOrder(ByteOrder byteOrder) {
         super.setByteOrder(byteOrder);
-        mappingBuffer.order(byteOrder);
+        if (window != null) {
+            window.order(byteOrder);
+        }
     }
 
     @Override
     public long length() {
-        try {
-            return input.size();
-        } catch (IOException e) {
-            return -1;
-        }
+        return size;
     }
 
     //--overwrite methods for better performance
 
-    @Override
-    public void seek(long pos) throws IOException {
-        super.seek(pos);
-        if (pos >= mappedPos && pos < mappedUpperBound) {
-            //Seek within buffer -> change position
-            mappingBuffer.position((int) (pos - mappedPos));
-        } else {
-            //Seek outside buffer -> prepare read
-            int len = (int) Math.min(input.size() - pos, Integer.MAX_VALUE);
-            prepareRead(len);
-        }
-    }
-
     @Override
     public void readFully(short[] s, int off, int len) throws IOException {
-        readFully(off, len, s.length, Short.BYTES, () -> mappingBuffer.asShortBuffer().get(s, off, len));
+        if (!readFully(off, len, s.length, Short.BYTES, () -> window.asShortBuffer().get(s, off, len))) {
+            super.readFully(s, off, len);
+        }
     }
 
     @Override
     public void readFully(char[] c, int off, int len) throws IOException {
-        readFully(off, len, c.length, Character.BYTES, () -> mappingBuffer.asCharBuffer().get(c, off, len));
+        if (!readFully(off, len, c.length, Character.BYTES, () -> window.asCharBuffer().get(c, off, len))) {
+            super.readFully(c, off, len);
+        }
     }
 
     @Override
     public void readFully(int[] i, int off, int len) throws IOException {
-        readFully(off, len, i.length, Integer.BYTES, () -> mappingBuffer.asIntBuffer().get(i, off, len));
+        if (!readFully(off, len, i.length, Integer.BYTES, () -> window.asIntBuffer().get(i, off, len))) {
+            super.readFully(i, off, len);
+        }
     }
 
     @Override
     public void readFully(long[] l, int off, int len) throws IOException {
-        readFully(off, len, l.length, Long.BYTES, () -> mappingBuffer.asLongBuffer().get(l, off, len));
+        if (!readFully(off, len, l.length, Long.BYTES, () -> window.asLongBuffer().get(l, off, len))) {
+            super.readFully(l, off, len);
+        }
     }
 
     @Override
     public void readFully(float[] f, int off, int len) throws IOException {
-        readFully(off, len, f.length, Float.BYTES, () -> mappingBuffer.asFloatBuffer().get(f, off, len));
+        if (!readFully(off, len, f.length, Float.BYTES, () -> window.asFloatBuffer().get(f, off, len))) {
+            super.readFully(f, off, len);
+        }
     }
 
     @Override
     public void readFully(double[] d, int off, int len) throws IOException {
-        readFully(off, len, d.length, Double.BYTES, () -> mappingBuffer.asDoubleBuffer().get(d, off, len));
+        if (!readFully(off, len, d.length, Double.BYTES, () -> window.asDoubleBuffer().get(d, off, len))) {
+            super.readFully(d, off, len);
+        }
     }
 
-    private void readFully(int off, int len, int arrLength, int byteSize, ReadOperation op) throws IOException {
+    /**
+     * Reads directly from the current window.
+     * @return false, if the data is not within a single window and has to be read byte-wise
+     */
+    private boolean readFully(int off, int len, int arrLength, int byteSize, ReadOperation op) throws IOException {
         if (off < 0 || len < 0 || off + len > arrLength) {
             throw new IndexOutOfBoundsException(
                 "off=" + off + " and len=" + len + " do not work with array length: " + arrLength);
         } else if (len == 0) {
-            return;
+            return true;
         }
-        int byteLen = byteSize * len;
-        prepareRead(byteLen);
-        if (mappingBuffer.remaining() < byteLen) {
-            throw new EOFException();
+        checkClosed();
+        long byteLen = (long) byteSize * len;
+        if (!prepareRead() || window.remaining() < byteLen) {
+            return false;
         }
         op.read();
-        seek(streamPos + byteLen); //update position
+        bitOffset = 0;
+        streamPos += byteLen;
+        return true;
     }
 
     private interface ReadOperation {
@@ -0,0 +1,182 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.input.impl;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Maps a file in windows of a fixed size and keeps the most recently used windows mapped.
+ *
+ * Windows start at multiples of the window size, so that jumping between a few positions, like TIFF readers do
+ * between directories and strips, reuses the windows mapped before. If windows are read one after the other, the
+ * next window is mapped in advance and loaded into memory on a helper thread.
+ *
+ * This class is not thread safe.
+ */
+final class MCRMappedWindows {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final FileChannel channel;
+
+    private final long size;
+
+    private final int windowSize;
+
+    private final boolean readAhead;
+
+    private final Map<Long, MappedByteBuffer> windows;
+
+    private long lastIndex = -1;
+
+    private int mappings;
+
+    private int prefetches;
+
+    /**
+     * @param channel the file
+     * @param size size of the file
+     * @param windowSize size of every window but the last one
+     * @param maxWindows number of windows kept mapped, including the window mapped in advance
+     * @param readAhead if the next window should be loaded in advance
+     */
+    MCRMappedWindows(final FileChannel channel, final long size, final int windowSize, final int maxWindows,
+        final boolean readAhead) {
+        if (windowSize < 1) {
+            throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+        }
+        if (maxWindows < 1) {
+            throw new IllegalArgumentException("Need at least one window: " + maxWindows);
+        }
+        this.channel = channel;
+        this.size = size;
+        this.windowSize = windowSize;
+        this.readAhead = readAhead && maxWindows > 1;
+        this.windows = new LinkedHashMap<>(maxWindows * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, MappedByteBuffer> eldest) {
+                return size() > maxWindows;
+            }
+        };
+    }
+
+    /**
+     * @param pos a position within the file
+     * @return the window containing <code>pos</code>, its position is undefined
+     * @throws IOException if the window could not be mapped
+     */
+    MappedByteBuffer get(final long pos) throws IOException {
+        final long index = pos / windowSize;
+        MappedByteBuffer window = windows.get(index);
+        if (window == null) {
+            window = map(index);
+        }
+        if (readAhead && index == lastIndex + 1) {
+            prefetch(index + 1);
+        }
+        lastIndex = index;
+        return window;
+    }
+
+    /**
+     * @param pos a position within the file
+     * @return the file position of the first byte of the window containing <code>pos</code>
+     */
+    long getStart(final long pos) {
+        return pos / windowSize * windowSize;
+    }
+
+    /**
+     * @return number of windows mapped so far, including windows mapped in advance
+     */
+    int getMappings() {
+        return mappings;
+    }
+
+    /**
+     * @return number of windows mapped in advance
+     */
+    int getPrefetches() {
+        return prefetches;
+    }
+
+    private MappedByteBuffer map(final long index) throws IOException {
+        final long start = index * windowSize;
+        final MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, start,
+            Math.min(windowSize, size - start));
+        mappings++;
+        windows.put(index, window);
+        return window;
+    }
+
+    private void prefetch(final long index) throws IOException {
+        if (index * windowSize >= size || windows.containsKey(index)) {
+            return;
+        }
+        final MappedByteBuffer window = map(index);
+        prefetches++;
+        ReadAhead.EXECUTOR.execute(() -> {
+            //touches every page, so that the reading thread does not wait for the disk
+            window.load();
+        });
+    }
+
+    @Override
+    public String toString() {
+        return "MCRMappedWindows [windowSize=" + windowSize + ", mappings=" + mappings + ", prefetches="
+            + prefetches + "]";
+    }
+
+    /**
+     * Loads windows in advance, shared by all files.
+     */
+    private static final class ReadAhead {
+        private static final int THREADS = 2;
+
+        private static final AtomicInteger THREAD_COUNTER = new AtomicInteger();
+
+        private static final ExecutorService EXECUTOR = createExecutor();
+
+        private static ExecutorService createExecutor() {
+            final ThreadPoolExecutor executor = new ThreadPoolExecutor(THREADS, THREADS, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(), r -> {
+                    final Thread t = new Thread(r, "MCRMappedReadAhead-" + THREAD_COUNTER.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+            executor.allowCoreThreadTimeOut(true);
+            LOGGER.debug("Loading mapped windows in advance with up to {} threads.", THREADS);
+            return executor;
+        }
+    }
+}
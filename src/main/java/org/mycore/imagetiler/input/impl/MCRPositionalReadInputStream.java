@@ -0,0 +1,165 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.input.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Reads a {@link FileChannel} with positional reads into a direct buffer.
+ *
+ * Unlike {@link MCRFileChannelInputStream} the file is not mapped into memory. Network file systems often stall on
+ * page faults of mapped files and mapped pages count towards the memory limit of containers. This stream reads
+ * {@value #BUFFER_SIZE} bytes at once and does not change the position of the channel, so that several streams
+ * may read the same channel concurrently. Buffers are reused after {@link #close()}.
+ */
+@SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "Cannot copy FileChannel!")
+public class MCRPositionalReadInputStream extends ImageInputStreamImpl {
+    /**
+     * number of bytes read from the file at once
+     */
+    public static final int BUFFER_SIZE = 256 << 10;
+
+    private static final MCRDirectBufferPool BUFFERS = new MCRDirectBufferPool(BUFFER_SIZE, 16);
+
+    private final FileChannel input;
+
+    private final long size;
+
+    private ByteBuffer buffer;
+
+    private long bufferStart;
+
+    /**
+     * @param input the file, starting at its current position
+     * @throws IOException if the size of the file could not be determined
+     */
+    public MCRPositionalReadInputStream(FileChannel input) throws IOException {
+        if (input == null) {
+            throw new IllegalArgumentException("input is null");
+        }
+        if (!input.isOpen()) {
+            throw new IllegalArgumentException("image FileChannel is not open");
+        }
+        this.input = input;
+        this.streamPos = this.flushedPos = input.position();
+        this.size = input.size();
+        this.buffer = BUFFERS.borrow();
+        buffer.limit(0);
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (!fill()) {
+            return -1; //EOF
+        }
+
+        int value = buffer.get((int) (streamPos - bufferStart)) & 0xff; //convert signed byte to int (0-255)
+        streamPos++;
+        return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException(
+                "off=" + off + " and len=" + len + " do not work with array length: " + b.length);
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        checkClosed();
+        bitOffset = 0;
+
+        int read = 0;
+        while (read < len && streamPos < size) {
+            int n;
+            if (len - read >= buffer.capacity() && !isBuffered()) {
+                //large reads go directly to the array
+                n = input.read(ByteBuffer.wrap(b, off + read, (int) Math.min(len - read, size - streamPos)),
+                    streamPos);
+            } else if (fill()) {
+                buffer.position((int) (streamPos - bufferStart));
+                n = Math.min(len - read, buffer.remaining());
+                buffer.get(b, off + read, n);
+            } else {
+                n = -1;
+            }
+            if (n < 0) {
+                break; //file was truncated
+            }
+            streamPos += n;
+            read += n;
+        }
+        return read == 0 ? -1 : read; //-1 on EOF
+    }
+
+    private boolean isBuffered() {
+        return streamPos >= bufferStart && streamPos < bufferStart + buffer.limit();
+    }
+
+    /**
+     * Reads the buffer starting at the stream position, if it does not contain the stream position.
+     * @return false on EOF
+     */
+    private boolean fill() throws IOException {
+        if (isBuffered()) {
+            return true;
+        }
+        if (streamPos >= size) {
+            return false;
+        }
+        buffer.clear();
+        bufferStart = streamPos;
+        while (buffer.hasRemaining() && bufferStart + buffer.position() < size) {
+            if (input.read(buffer, bufferStart + buffer.position()) < 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer.hasRemaining();
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        BUFFERS.release(buffer);
+        buffer = null;
+    }
+
+    @Override
+    public long length() {
+        return size;
+    }
+
+    /**
+     * @return number of direct buffers allocated by all instances so far
+     */
+    static long getBufferAllocations() {
+        return BUFFERS.getAllocations();
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.input.impl;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Reads a {@link SeekableByteChannel} in blocks and keeps the most recently used blocks.
+ *
+ * Channels of zip file systems or custom storages cannot be mapped into memory. Instead of copying the whole
+ * channel into a cache file or onto the heap, like {@link javax.imageio.stream.FileCacheImageInputStream} does,
+ * this stream seeks the channel and keeps at most <code>maxBlocks</code> blocks of <code>blockSize</code> bytes.
+ */
+@SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "Cannot copy SeekableByteChannel!")
+public class MCRSeekableChannelInputStream extends ImageInputStreamImpl {
+    /**
+     * default size of a block: 64 KiB
+     */
+    public static final int DEFAULT_BLOCK_SIZE = 64 << 10;
+
+    /**
+     * default number of blocks kept
+     */
+    public static final int DEFAULT_MAX_BLOCKS = 64;
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private final SeekableByteChannel input;
+
+    private final long size;
+
+    private final int blockSize;
+
+    private final Map<Long, byte[]> blocks;
+
+    private byte[] block;
+
+    private long blockIndex = -1;
+
+    private int reads;
+
+    /**
+     * Reads the channel with {@link #DEFAULT_BLOCK_SIZE} and {@link #DEFAULT_MAX_BLOCKS}.
+     * @param input the channel, starting at its current position
+     * @throws IOException if the size of the channel could not be determined
+     */
+    public MCRSeekableChannelInputStream(SeekableByteChannel input) throws IOException {
+        this(input, DEFAULT_BLOCK_SIZE, DEFAULT_MAX_BLOCKS);
+    }
+
+    /**
+     * @param input the channel, starting at its current position
+     * @param blockSize number of bytes read at once
+     * @param maxBlocks number of blocks kept
+     * @throws IOException if the size of the channel could not be determined
+     */
+    public MCRSeekableChannelInputStream(SeekableByteChannel input, int blockSize, int maxBlocks)
+        throws IOException {
+        if (input == null) {
+            throw new IllegalArgumentException("input is null");
+        }
+        if (!input.isOpen()) {
+            throw new IllegalArgumentException("image channel is not open");
+        }
+        if (blockSize < 1 || maxBlocks < 1) {
+            throw new IllegalArgumentException("blockSize=" + blockSize + " and maxBlocks=" + maxBlocks
+                + " must be positive");
+        }
+        this.input = input;
+        this.streamPos = this.flushedPos = input.position();
+        this.size = input.size();
+        this.blockSize = blockSize;
+        this.blocks = new LinkedHashMap<>(maxBlocks * 2, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(final Map.Entry<Long, byte[]> eldest) {
+                return size() > maxBlocks;
+            }
+        };
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (!prepareRead()) {
+            return -1; //EOF
+        }
+
+        int value = block[(int) (streamPos % blockSize)] & 0xff; //convert signed byte to int (0-255)
+        streamPos++;
+        return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException(
+                "off=" + off + " and len=" + len + " do not work with array length: " + b.length);
+        }
+        if (len == 0) {
+            return 0;
+        }
+
+        checkClosed();
+        bitOffset = 0;
+
+        int read = 0;
+        while (read < len && prepareRead()) {
+            int blockOffset = (int) (streamPos % blockSize);
+            int n = Math.min(len - read, block.length - blockOffset);
+            System.arraycopy(block, blockOffset, b, off + read, n);
+            streamPos += n;
+            read += n;
+        }
+        return read == 0 ? -1 : read; //-1 on EOF
+    }
+
+    /**
+     * Moves to the block containing the stream position.
+     * @return false on EOF
+     */
+    private boolean prepareRead() throws IOException {
+        if (streamPos >= size) {
+            return false;
+        }
+        long index = streamPos / blockSize;
+        if (index != blockIndex) {
+            byte[] cached = blocks.get(index);
+            block = cached == null ? readBlock(index) : cached;
+            blockIndex = index;
+        }
+        return streamPos % blockSize < block.length;
+    }
+
+    private byte[] readBlock(long index) throws IOException {
+        long start = index * blockSize;
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(blockSize, size - start));
+        input.position(start);
+        while (buffer.hasRemaining()) {
+            if (input.read(buffer) < 0) {
+                break; //channel was truncated
+            }
+        }
+        reads++;
+        byte[] data = buffer.hasRemaining() ? Arrays.copyOf(buffer.array(), buffer.position()) : buffer.array();
+        blocks.put(index, data);
+        return data;
+    }
+
+    /**
+     * @return number of blocks read from the channel so far
+     */
+    int getBlockReads() {
+        return reads;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        LOGGER.debug("Closing stream after reading {} blocks of {} bytes.", reads, blockSize);
+        blocks.clear();
+        block = null;
+    }
+
+    @Override
+    public long length() {
+        return size;
+    }
+}
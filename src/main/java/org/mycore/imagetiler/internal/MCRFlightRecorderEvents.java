@@ -0,0 +1,319 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.awt.image.BufferedImage;
+
+import org.mycore.imagetiler.MCRRasterPool;
+import org.mycore.imagetiler.MCRStoredZipWriter;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Threshold;
+
+/**
+ * Java Flight Recorder events of the image tiler.
+ *
+ * Events are created for every operation, but their fields are only computed and the events are only committed if
+ * the event is enabled in the running recording. Without a recording, the JIT removes them completely.
+ * Only used through {@link MCRTilingEvents}, so that this class is not loaded if the <code>jdk.jfr</code> module
+ * is missing.
+ */
+final class MCRFlightRecorderEvents {
+
+    private static final String CATEGORY = "MyCoRe";
+
+    private static final String SUB_CATEGORY = "Image Tiler";
+
+    private MCRFlightRecorderEvents() {
+    }
+
+    /**
+     * Tiling of an image from opening the image file to the finished <code>.iview2</code> file.
+     */
+    @Name("org.mycore.imagetiler.ImageTiling")
+    @Label("Image Tiling")
+    @Category({ CATEGORY, SUB_CATEGORY })
+    @StackTrace(false)
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Fields are read by the flight recorder")
+    static final class ImageTiling extends Event {
+        @Label("Derivate")
+        private String derivate;
+
+        @Label("Path")
+        private String path;
+
+        @Label("Width")
+        private int width;
+
+        @Label("Height")
+        private int height;
+
+        @Label("Zoom Levels")
+        private int zoomLevels;
+
+        @Label("Tiles")
+        private long tiles;
+
+        @Label("Tile Bytes")
+        @Description("Size of all JPEG encoded tiles")
+        @DataAmount
+        private long bytes;
+
+        /**
+         * ends the event and commits it, if it is enabled.
+         * @param derivate derivate ID
+         * @param path path of the image in the derivate
+         * @param width width of the image or 0, if the image could not be read
+         * @param height height of the image or 0, if the image could not be read
+         * @param zoomLevels highest zoom level
+         * @param tiles number of tiles written
+         * @param bytes size of the tiles written
+         */
+        void commit(final String derivate, final String path, final int width, final int height,
+            final int zoomLevels, final long tiles, final long bytes) {
+            end();
+            if (shouldCommit()) {
+                this.derivate = derivate;
+                this.path = path;
+                this.width = width;
+                this.height = height;
+                this.zoomLevels = zoomLevels;
+                this.tiles = tiles;
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Reading and decoding a region of the source image: a mega tile, the whole image or a reduced resolution
+     * overview.
+     */
+    @Name("org.mycore.imagetiler.MegaTileDecode")
+    @Label("Mega Tile Decode")
+    @Category({ CATEGORY, SUB_CATEGORY })
+    @StackTrace(false)
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Fields are read by the flight recorder")
+    static final class MegaTileDecode extends Event {
+        @Label("Derivate")
+        private String derivate;
+
+        @Label("Path")
+        private String path;
+
+        @Label("X")
+        @Description("Left edge of the region in source pixels")
+        private int x;
+
+        @Label("Y")
+        @Description("Upper edge of the region in source pixels")
+        private int y;
+
+        @Label("Width")
+        @Description("Width of the decoded image")
+        private int width;
+
+        @Label("Height")
+        @Description("Height of the decoded image")
+        private int height;
+
+        @Label("Raster Bytes")
+        @DataAmount
+        private long bytes;
+
+        /**
+         * ends the event and commits it, if it is enabled.
+         * @param derivate derivate ID
+         * @param path path of the image in the derivate
+         * @param x left edge of the region
+         * @param y upper edge of the region
+         * @param image the decoded image, or <code>null</code> if the region was decoded in bands
+         * @param width width of the decoded region
+         * @param height height of the decoded region
+         */
+        void commit(final String derivate, final String path, final int x, final int y,
+            final BufferedImage image, final int width, final int height) {
+            end();
+            if (shouldCommit()) {
+                this.derivate = derivate;
+                this.path = path;
+                this.x = x;
+                this.y = y;
+                this.width = width;
+                this.height = height;
+                this.bytes = image == null ? 0 : MCRRasterPool.getBytes(image);
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Scaling an image down to the next zoom level.
+     */
+    @Name("org.mycore.imagetiler.Scale")
+    @Label("Scale")
+    @Category({ CATEGORY, SUB_CATEGORY })
+    @StackTrace(false)
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Fields are read by the flight recorder")
+    static final class Scale extends Event {
+        @Label("Derivate")
+        private String derivate;
+
+        @Label("Path")
+        private String path;
+
+        @Label("Profile")
+        private String profile;
+
+        @Label("Source Width")
+        private int sourceWidth;
+
+        @Label("Source Height")
+        private int sourceHeight;
+
+        @Label("Raster Bytes")
+        @Description("Size of the scaled image")
+        @DataAmount
+        private long bytes;
+
+        /**
+         * ends the event and commits it, if it is enabled.
+         * @param derivate derivate ID
+         * @param path path of the image in the derivate
+         * @param profile name of the scaling profile
+         * @param source the image that was scaled
+         * @param scaled the scaled image
+         */
+        void commit(final String derivate, final String path, final String profile,
+            final BufferedImage source, final BufferedImage scaled) {
+            end();
+            if (shouldCommit()) {
+                this.derivate = derivate;
+                this.path = path;
+                this.profile = profile;
+                this.sourceWidth = source.getWidth();
+                this.sourceHeight = source.getHeight();
+                this.bytes = MCRRasterPool.getBytes(scaled);
+                commit();
+            }
+        }
+    }
+
+    /**
+     * JPEG encoding of a single tile.
+     *
+     * As an image has thousands of tiles, only tiles that took at least 10 ms are recorded by default.
+     */
+    @Name("org.mycore.imagetiler.TileEncode")
+    @Label("Tile Encode")
+    @Category({ CATEGORY, SUB_CATEGORY })
+    @StackTrace(false)
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Fields are read by the flight recorder")
+    @Threshold("10 ms")
+    static final class TileEncode extends Event {
+        @Label("Derivate")
+        private String derivate;
+
+        @Label("Path")
+        private String path;
+
+        @Label("Tile")
+        @Description("Name of the tile in the .iview2 file: zoom level/y/x.jpg")
+        private String tile;
+
+        @Label("Width")
+        private int width;
+
+        @Label("Height")
+        private int height;
+
+        @Label("Encoded Bytes")
+        @DataAmount
+        private long bytes;
+
+        /**
+         * ends the event and commits it, if it is enabled.
+         * @param derivate derivate ID
+         * @param path path of the image in the derivate
+         * @param tileName name of the tile
+         * @param image the tile
+         * @param bytes size of the encoded tile
+         */
+        void commit(final String derivate, final String path, final String tileName,
+            final BufferedImage image, final long bytes) {
+            end();
+            if (shouldCommit()) {
+                this.derivate = derivate;
+                this.path = path;
+                this.tile = tileName;
+                this.width = image.getWidth();
+                this.height = image.getHeight();
+                this.bytes = bytes;
+                commit();
+            }
+        }
+    }
+
+    /**
+     * Writing metadata, tile index and ZIP central directory of the <code>.iview2</code> file.
+     */
+    @Name("org.mycore.imagetiler.ArchiveFinalization")
+    @Label("Archive Finalization")
+    @Category({ CATEGORY, SUB_CATEGORY })
+    @StackTrace(false)
+    @SuppressFBWarnings(value = "URF_UNREAD_FIELD", justification = "Fields are read by the flight recorder")
+    static final class ArchiveFinalization extends Event {
+        @Label("Derivate")
+        private String derivate;
+
+        @Label("Path")
+        private String path;
+
+        @Label("Entries")
+        private int entries;
+
+        @Label("File Size")
+        @DataAmount
+        private long bytes;
+
+        /**
+         * ends the event and commits it, if it is enabled.
+         * @param derivate derivate ID
+         * @param path path of the image in the derivate
+         * @param zout the closed ZIP writer of the <code>.iview2</code> file
+         */
+        void commit(final String derivate, final String path, final MCRStoredZipWriter zout) {
+            end();
+            if (shouldCommit()) {
+                this.derivate = derivate;
+                this.path = path;
+                this.entries = zout.getEntryCount();
+                this.bytes = zout.getPosition();
+                commit();
+            }
+        }
+    }
+}
@@ -0,0 +1,455 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.function.DoubleUnaryOperator;
+import java.util.stream.IntStream;
+
+import org.mycore.imagetiler.MCRRasterPool;
+import org.mycore.imagetiler.MCRScalingProfile;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Shrinks images to 50% by working directly on the arrays of their {@link DataBuffer}.
+ *
+ * The filter is applied separately to rows and columns with fixed point weights. As the scale factor is always
+ * 0.5, every target pixel uses the same weights. Images with more than {@link #PARALLEL_THRESHOLD} target pixels
+ * are scaled in bands of rows on the common {@link java.util.concurrent.ForkJoinPool}.
+ *
+ * Supported are gray scale images with 8 bit per pixel and RGB images with 8 bit per sample, with or without
+ * alpha channel. Alpha is composed on black. Other images are not scaled, see {@link #scale(BufferedImage)}.
+ *
+ * This class is thread safe.
+ */
+public final class MCRHalvingScaler {
+
+    /**
+     * target images with more pixels are scaled by more than one thread.
+     */
+    private static final int PARALLEL_THRESHOLD = 1 << 18;
+
+    private static final int BAND_HEIGHT = 32;
+
+    private static final int WEIGHT_BITS = 10;
+
+    private static final int ROUNDING = 1 << (2 * WEIGHT_BITS - 1);
+
+    private static final int LANCZOS_LOBES = 3;
+
+    private static final MCRHalvingScaler BOX = new MCRHalvingScaler(2, d -> 1);
+
+    private static final MCRHalvingScaler BILINEAR = new MCRHalvingScaler(4, d -> 1 - Math.abs(d) / 2);
+
+    private static final MCRHalvingScaler LANCZOS = new MCRHalvingScaler(4 * LANCZOS_LOBES,
+        d -> sinc(d / 2) * sinc(d / (2 * LANCZOS_LOBES)));
+
+    /**
+     * number of source pixels per target pixel and dimension.
+     */
+    private final int taps;
+
+    /**
+     * number of source pixels before the two source pixels that are covered by the target pixel.
+     */
+    private final int before;
+
+    private final int[] weights;
+
+    /**
+     * @param taps an even number of source pixels
+     * @param filter gets the distance of a source pixel to the center of the target pixel in source pixels
+     */
+    private MCRHalvingScaler(final int taps, final DoubleUnaryOperator filter) {
+        this.taps = taps;
+        this.before = taps / 2 - 1;
+        final double[] values = new double[taps];
+        double sum = 0;
+        for (int k = 0; k < taps; k++) {
+            values[k] = filter.applyAsDouble(k - before - 0.5);
+            sum += values[k];
+        }
+        this.weights = new int[taps];
+        int weightSum = 0;
+        for (int k = 0; k < taps; k++) {
+            weights[k] = (int) Math.round(values[k] / sum * (1 << WEIGHT_BITS));
+            weightSum += weights[k];
+        }
+        //the weights of the two center pixels correct rounding errors
+        final int error = (1 << WEIGHT_BITS) - weightSum;
+        weights[before] += error / 2;
+        weights[before + 1] += error - error / 2;
+    }
+
+    /**
+     * @param profile the filter to use
+     * @return a scaler that uses the given filter
+     */
+    @SuppressFBWarnings(value = "MS_EXPOSE_REP", justification = "Scalers are immutable")
+    public static MCRHalvingScaler getInstance(final MCRScalingProfile profile) {
+        switch (profile) {
+            case BOX:
+                return BOX;
+            case LANCZOS:
+                return LANCZOS;
+            case BILINEAR:
+            default:
+                return BILINEAR;
+        }
+    }
+
+    private static double sinc(final double x) {
+        if (x == 0) {
+            return 1;
+        }
+        final double px = Math.PI * x;
+        return Math.sin(px) / px;
+    }
+
+    /**
+     * returns the number of source rows above and below a band of rows that change its scaled rows.
+     * @return an even number, so the band with these rows scales to rows of the whole scaled image
+     */
+    public int getContextRows() {
+        return before + before % 2;
+    }
+
+    /**
+     * shrinks the image to 50%.
+     *
+     * Odd widths and heights are rounded up.
+     * @param image source image
+     * @return a {@link BufferedImage#TYPE_BYTE_GRAY} or {@link BufferedImage#TYPE_INT_RGB} image or
+     * <code>null</code>, if the type of <code>image</code> is not supported
+     */
+    public BufferedImage scale(final BufferedImage image) {
+        return scale(image, null);
+    }
+
+    /**
+     * shrinks the image to 50% into an image borrowed from <code>pool</code>.
+     * @param image source image
+     * @param pool provides the target image, may be <code>null</code>
+     * @return a {@link BufferedImage#TYPE_BYTE_GRAY} or {@link BufferedImage#TYPE_INT_RGB} image or
+     * <code>null</code>, if the type of <code>image</code> is not supported
+     * @see #scale(BufferedImage)
+     */
+    public BufferedImage scale(final BufferedImage image, final MCRRasterPool pool) {
+        final Source source = Source.of(image);
+        if (source == null) {
+            return null;
+        }
+        final int width = (image.getWidth() + 1) / 2;
+        final int height = (image.getHeight() + 1) / 2;
+        final int type = source.channels == 1 ? BufferedImage.TYPE_BYTE_GRAY : BufferedImage.TYPE_INT_RGB;
+        final BufferedImage scaled = pool == null ? new BufferedImage(width, height, type)
+            : pool.borrow(width, height, type);
+        final DataBuffer target = scaled.getRaster().getDataBuffer();
+        final int bands = (height + BAND_HEIGHT - 1) / BAND_HEIGHT;
+        IntStream bandStream = IntStream.range(0, bands);
+        if ((long) width * height > PARALLEL_THRESHOLD) {
+            bandStream = bandStream.parallel();
+        }
+        bandStream.forEach(band -> scaleRows(source, target, width, band * BAND_HEIGHT,
+            Math.min(height, (band + 1) * BAND_HEIGHT)));
+        return scaled;
+    }
+
+    private void scaleRows(final Source source, final DataBuffer target, final int width, final int fromRow,
+        final int toRow) {
+        final int channels = source.channels;
+        //every row is padded by copies of its first and last pixel
+        final int rowLength = (source.width + taps) * channels;
+        final int[][] rows = new int[taps][rowLength];
+        final int[] rowY = new int[taps];
+        Arrays.fill(rowY, -1);
+        final int[] sum = new int[rowLength];
+        for (int y = fromRow; y < toRow; y++) {
+            Arrays.fill(sum, 0);
+            for (int k = 0; k < taps; k++) {
+                final int sourceY = Math.max(0, Math.min(source.height - 1, 2 * y - before + k));
+                //sourceY of all taps are consecutive, so they never share a slot
+                final int slot = sourceY % taps;
+                final int[] row = rows[slot];
+                if (rowY[slot] != sourceY) {
+                    source.unpack(sourceY, row, before * channels);
+                    pad(row, channels, before, source.width);
+                    rowY[slot] = sourceY;
+                }
+                final int weight = weights[k];
+                for (int i = 0; i < rowLength; i++) {
+                    sum[i] += weight * row[i];
+                }
+            }
+            if (channels == 1) {
+                writeGray(sum, ((DataBufferByte) target).getData(), y * width, width);
+            } else {
+                writeRgb(sum, ((DataBufferInt) target).getData(), y * width, width);
+            }
+        }
+    }
+
+    private static void pad(final int[] row, final int channels, final int before, final int width) {
+        final int last = (before + width - 1) * channels;
+        for (int c = 0; c < channels; c++) {
+            final int first = row[before * channels + c];
+            for (int i = c; i < before * channels; i += channels) {
+                row[i] = first;
+            }
+            final int lastValue = row[last + c];
+            for (int i = last + channels + c; i < row.length; i += channels) {
+                row[i] = lastValue;
+            }
+        }
+    }
+
+    private void writeGray(final int[] sum, final byte[] target, final int offset, final int width) {
+        for (int x = 0; x < width; x++) {
+            final int base = 2 * x;
+            int value = ROUNDING;
+            for (int k = 0; k < taps; k++) {
+                value += weights[k] * sum[base + k];
+            }
+            target[offset + x] = (byte) clamp(value >> (2 * WEIGHT_BITS));
+        }
+    }
+
+    private void writeRgb(final int[] sum, final int[] target, final int offset, final int width) {
+        for (int x = 0; x < width; x++) {
+            int base = 6 * x;
+            int red = ROUNDING;
+            int green = ROUNDING;
+            int blue = ROUNDING;
+            for (int k = 0; k < taps; k++) {
+                final int weight = weights[k];
+                red += weight * sum[base];
+                green += weight * sum[base + 1];
+                blue += weight * sum[base + 2];
+                base += 3;
+            }
+            target[offset + x] = clamp(red >> (2 * WEIGHT_BITS)) << 16 | clamp(green >> (2 * WEIGHT_BITS)) << 8
+                | clamp(blue >> (2 * WEIGHT_BITS));
+        }
+    }
+
+    private static int clamp(final int value) {
+        return value < 0 ? 0 : Math.min(value, 0xFF);
+    }
+
+    @Override
+    public String toString() {
+        return "MCRHalvingScaler [weights=" + Arrays.toString(weights) + "]";
+    }
+
+    /**
+     * Reads rows of a source image as gray or RGB values.
+     */
+    private abstract static class Source {
+        protected final int width;
+
+        protected final int height;
+
+        protected final int channels;
+
+        protected Source(final int width, final int height, final int channels) {
+            this.width = width;
+            this.height = height;
+            this.channels = channels;
+        }
+
+        /**
+         * @return a source for the image or <code>null</code>, if the image type is not supported
+         */
+        static Source of(final BufferedImage image) {
+            final WritableRaster raster = image.getRaster();
+            final SampleModel sampleModel = raster.getSampleModel();
+            final DataBuffer dataBuffer = raster.getDataBuffer();
+            if (dataBuffer.getNumBanks() != 1) {
+                return null;
+            }
+            switch (image.getType()) {
+                case BufferedImage.TYPE_BYTE_GRAY:
+                case BufferedImage.TYPE_3BYTE_BGR:
+                case BufferedImage.TYPE_4BYTE_ABGR:
+                case BufferedImage.TYPE_4BYTE_ABGR_PRE:
+                    return new ByteSource(image, (ComponentSampleModel) sampleModel,
+                        ((DataBufferByte) dataBuffer).getData(), getOffset(raster));
+                case BufferedImage.TYPE_INT_RGB:
+                case BufferedImage.TYPE_INT_BGR:
+                case BufferedImage.TYPE_INT_ARGB:
+                case BufferedImage.TYPE_INT_ARGB_PRE:
+                    return new IntSource(image, (SinglePixelPackedSampleModel) sampleModel,
+                        ((DataBufferInt) dataBuffer).getData(), getOffset(raster));
+                default:
+                    return null;
+            }
+        }
+
+        /**
+         * @return position of the first pixel in the data array, as images may share their data
+         */
+        private static int getOffset(final WritableRaster raster) {
+            final SampleModel sampleModel = raster.getSampleModel();
+            final int x = -raster.getSampleModelTranslateX();
+            final int y = -raster.getSampleModelTranslateY();
+            final int stride;
+            final int pixelStride;
+            if (sampleModel instanceof ComponentSampleModel) {
+                stride = ((ComponentSampleModel) sampleModel).getScanlineStride();
+                pixelStride = ((ComponentSampleModel) sampleModel).getPixelStride();
+            } else {
+                stride = ((SinglePixelPackedSampleModel) sampleModel).getScanlineStride();
+                pixelStride = 1;
+            }
+            return raster.getDataBuffer().getOffset() + y * stride + x * pixelStride;
+        }
+
+        /**
+         * writes the samples of row <code>y</code> to <code>row</code>, starting at <code>offset</code>.
+         */
+        abstract void unpack(int y, int[] row, int offset);
+    }
+
+    /**
+     * Gray, BGR and ABGR images with a byte per sample.
+     */
+    private static final class ByteSource extends Source {
+        private final byte[] data;
+
+        private final int offset;
+
+        private final int stride;
+
+        private final int pixelStride;
+
+        private final int[] bandOffsets;
+
+        private final boolean premultiply;
+
+        private ByteSource(final BufferedImage image, final ComponentSampleModel sampleModel, final byte[] data,
+            final int offset) {
+            super(image.getWidth(), image.getHeight(), sampleModel.getNumBands() == 1 ? 1 : 3);
+            this.data = data;
+            this.offset = offset;
+            this.stride = sampleModel.getScanlineStride();
+            this.pixelStride = sampleModel.getPixelStride();
+            this.bandOffsets = sampleModel.getBandOffsets();
+            this.premultiply = sampleModel.getNumBands() == 4 && !image.isAlphaPremultiplied();
+        }
+
+        @Override
+        void unpack(final int y, final int[] row, final int rowOffset) {
+            int pos = offset + y * stride;
+            int i = rowOffset;
+            if (channels == 1) {
+                final int end = pos + width * pixelStride;
+                final int gray = bandOffsets[0];
+                for (; pos < end; pos += pixelStride) {
+                    row[i++] = data[pos + gray] & 0xFF;
+                }
+                return;
+            }
+            final int red = bandOffsets[0];
+            final int green = bandOffsets[1];
+            final int blue = bandOffsets[2];
+            if (!premultiply) {
+                for (int x = 0; x < width; x++, pos += pixelStride) {
+                    row[i++] = data[pos + red] & 0xFF;
+                    row[i++] = data[pos + green] & 0xFF;
+                    row[i++] = data[pos + blue] & 0xFF;
+                }
+                return;
+            }
+            final int alpha = bandOffsets[3];
+            for (int x = 0; x < width; x++, pos += pixelStride) {
+                final int a = data[pos + alpha] & 0xFF;
+                row[i++] = (data[pos + red] & 0xFF) * a / 0xFF;
+                row[i++] = (data[pos + green] & 0xFF) * a / 0xFF;
+                row[i++] = (data[pos + blue] & 0xFF) * a / 0xFF;
+            }
+        }
+    }
+
+    /**
+     * RGB and ARGB images with a pixel per int.
+     */
+    private static final class IntSource extends Source {
+        private final int[] data;
+
+        private final int offset;
+
+        private final int stride;
+
+        private final int redShift;
+
+        private final int greenShift;
+
+        private final int blueShift;
+
+        private final int alphaShift;
+
+        private final boolean premultiply;
+
+        private IntSource(final BufferedImage image, final SinglePixelPackedSampleModel sampleModel,
+            final int[] data, final int offset) {
+            super(image.getWidth(), image.getHeight(), 3);
+            this.data = data;
+            this.offset = offset;
+            this.stride = sampleModel.getScanlineStride();
+            final int[] bitOffsets = sampleModel.getBitOffsets();
+            this.redShift = bitOffsets[0];
+            this.greenShift = bitOffsets[1];
+            this.blueShift = bitOffsets[2];
+            this.alphaShift = bitOffsets.length == 4 ? bitOffsets[3] : -1;
+            this.premultiply = alphaShift >= 0 && !image.isAlphaPremultiplied();
+        }
+
+        @Override
+        void unpack(final int y, final int[] row, final int rowOffset) {
+            final int start = offset + y * stride;
+            final int end = start + width;
+            int i = rowOffset;
+            if (!premultiply) {
+                for (int pos = start; pos < end; pos++) {
+                    final int pixel = data[pos];
+                    row[i++] = pixel >>> redShift & 0xFF;
+                    row[i++] = pixel >>> greenShift & 0xFF;
+                    row[i++] = pixel >>> blueShift & 0xFF;
+                }
+                return;
+            }
+            for (int pos = start; pos < end; pos++) {
+                final int pixel = data[pos];
+                final int a = pixel >>> alphaShift & 0xFF;
+                row[i++] = (pixel >>> redShift & 0xFF) * a / 0xFF;
+                row[i++] = (pixel >>> greenShift & 0xFF) * a / 0xFF;
+                row[i++] = (pixel >>> blueShift & 0xFF) * a / 0xFF;
+            }
+        }
+    }
+}
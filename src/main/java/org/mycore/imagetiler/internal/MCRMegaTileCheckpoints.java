@@ -0,0 +1,248 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.awt.Graphics;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import javax.imageio.ImageIO;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.imagetiler.MCRRasterPool;
+import org.mycore.imagetiler.MCRStoredZipWriter;
+
+/**
+ * Saves completely tiled mega tiles, so that an aborted tile process can continue where it stopped.
+ *
+ * Every mega tile is saved as a ZIP file holding its encoded tiles, named like in the <code>.iview2</code> file,
+ * and its reduced version as a lossless PNG image. A checkpoint is only valid for the source and tiling
+ * parameters described by the fingerprint passed to {@link #open(Path, String)} and for the mega tile geometry
+ * saved with the checkpoints, see {@link #saveGeometry(String)}.
+ */
+final class MCRMegaTileCheckpoints {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final String FINGERPRINT_FILE = "fingerprint.txt";
+
+    private static final String GEOMETRY_FILE = "geometry.txt";
+
+    private static final String REDUCED_TILE_PREFIX = "reduced-";
+
+    private static final String REDUCED_TILE_SUFFIX = ".png";
+
+    private final Path dir;
+
+    private MCRMegaTileCheckpoints(final Path dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * opens the checkpoint directory and removes all checkpoints of a different source or tiling parameters.
+     * @param dir checkpoint directory of the image, created if needed
+     * @param fingerprint describes the source and all parameters that influence the tiles
+     * @return the checkpoints of the image
+     * @throws IOException if the directory could not be read or written
+     */
+    static MCRMegaTileCheckpoints open(final Path dir, final String fingerprint) throws IOException {
+        final Path fingerprintFile = dir.resolve(FINGERPRINT_FILE);
+        if (Files.isDirectory(dir)) {
+            final boolean valid = Files.exists(fingerprintFile)
+                && fingerprint.equals(new String(Files.readAllBytes(fingerprintFile), StandardCharsets.UTF_8));
+            if (!valid) {
+                LOGGER.info("Removing outdated checkpoints in {}", dir);
+                try (Stream<Path> files = Files.list(dir)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        Files.delete(file);
+                    }
+                }
+            }
+        } else {
+            Files.createDirectories(dir);
+        }
+        if (!Files.exists(fingerprintFile)) {
+            Files.write(fingerprintFile, fingerprint.getBytes(StandardCharsets.UTF_8));
+        } else {
+            try (Stream<Path> files = Files.list(dir)) {
+                final long saved = files.filter(MCRMegaTileCheckpoints::isMegaTile).count();
+                LOGGER.info("Resuming with {} saved mega tiles from {}", saved, dir);
+            }
+        }
+        return new MCRMegaTileCheckpoints(dir);
+    }
+
+    private static boolean isMegaTile(final Path file) {
+        return file.getFileName().toString().endsWith(".zip");
+    }
+
+    /**
+     * @return the geometry of the saved mega tiles or <code>null</code>, if no geometry was saved yet
+     * @throws IOException if the geometry could not be read
+     */
+    String loadGeometry() throws IOException {
+        final Path geometryFile = dir.resolve(GEOMETRY_FILE);
+        if (!Files.exists(geometryFile)) {
+            return null;
+        }
+        return new String(Files.readAllBytes(geometryFile), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * saves the geometry of the mega tiles and removes all mega tiles saved with another geometry.
+     * @param geometry the geometry of the mega tiles, see {@link MCRMegaTilePlanner.Plan#getGeometry()}
+     * @throws IOException if the geometry could not be saved
+     */
+    void saveGeometry(final String geometry) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            for (Path file : (Iterable<Path>) files.filter(MCRMegaTileCheckpoints::isMegaTile)::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.write(dir.resolve(GEOMETRY_FILE), geometry.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * @return true, if mega tile (x, y) was saved
+     */
+    boolean exists(final int x, final int y) {
+        return Files.exists(getFile(x, y));
+    }
+
+    /**
+     * creates a ZIP writer for the tiles of mega tile (x, y).
+     * @return the ZIP writer, {@link #commit(MCRStoredZipWriter, int, int, BufferedImage)} saves it
+     * @throws IOException if the file could not be created
+     */
+    MCRStoredZipWriter create(final int x, final int y) throws IOException {
+        return new MCRStoredZipWriter(getFile(x, y));
+    }
+
+    /**
+     * adds the reduced mega tile, closes <code>checkpoint</code> and makes it visible to
+     * {@link #exists(int, int)}.
+     * @param checkpoint the ZIP writer returned by {@link #create(int, int)} for mega tile (x, y),
+     * all tiles have to be written already
+     * @param reducedTile the mega tile scaled down to the lowest zoom level of the mega tile phase
+     * @throws IOException if the checkpoint could not be saved
+     */
+    void commit(final MCRStoredZipWriter checkpoint, final int x, final int y, final BufferedImage reducedTile)
+        throws IOException {
+        try (MCRStoredZipWriter zip = checkpoint) {
+            final ByteArrayOutputStream bout = new ByteArrayOutputStream();
+            if (!ImageIO.write(reducedTile, "png", bout)) {
+                throw new IOException("Cannot save image of type " + reducedTile.getType() + " as PNG.");
+            }
+            zip.putEntry(REDUCED_TILE_PREFIX + reducedTile.getType() + REDUCED_TILE_SUFFIX, bout.toByteArray());
+            zip.finish();
+        }
+    }
+
+    /**
+     * passes all tiles of mega tile (x, y) to <code>consumer</code>.
+     * @param pool provides the reduced mega tile, may be <code>null</code>
+     * @return the reduced mega tile
+     * @throws IOException if the checkpoint could not be read
+     */
+    BufferedImage restore(final int x, final int y, final TileConsumer consumer, final MCRRasterPool pool)
+        throws IOException {
+        final BufferedImage reducedTile = read(x, y, consumer, pool, true);
+        if (reducedTile == null) {
+            throw new IOException("Checkpoint of mega tile (" + x + "," + y + ") is incomplete.");
+        }
+        return reducedTile;
+    }
+
+    /**
+     * passes all tiles of mega tile (x, y) to <code>consumer</code>.
+     * @throws IOException if the checkpoint could not be read
+     */
+    void copyTiles(final int x, final int y, final TileConsumer consumer) throws IOException {
+        read(x, y, consumer, null, false);
+    }
+
+    private BufferedImage read(final int x, final int y, final TileConsumer consumer, final MCRRasterPool pool,
+        final boolean withReducedTile) throws IOException {
+        BufferedImage reducedTile = null;
+        try (ZipFile zipFile = new ZipFile(getFile(x, y).toFile())) {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                final byte[] data;
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    data = is.readAllBytes();
+                }
+                final String name = entry.getName();
+                if (name.startsWith(REDUCED_TILE_PREFIX)) {
+                    if (!withReducedTile) {
+                        continue;
+                    }
+                    final int imageType = Integer.parseInt(
+                        name.substring(REDUCED_TILE_PREFIX.length(), name.length() - REDUCED_TILE_SUFFIX.length()));
+                    reducedTile = readImage(data, imageType, pool);
+                    continue;
+                }
+                //z/y/x.jpg
+                final String[] parts = name.substring(0, name.length() - ".jpg".length()).split("/");
+                consumer.accept(data, Integer.parseInt(parts[2]), Integer.parseInt(parts[1]),
+                    Integer.parseInt(parts[0]));
+            }
+        }
+        return reducedTile;
+    }
+
+    private static BufferedImage readImage(final byte[] data, final int imageType, final MCRRasterPool pool)
+        throws IOException {
+        final BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+        if (image.getType() == imageType) {
+            return image;
+        }
+        final BufferedImage converted = pool == null
+            ? new BufferedImage(image.getWidth(), image.getHeight(), imageType)
+            : pool.borrow(image.getWidth(), image.getHeight(), imageType);
+        final Graphics graphics = converted.getGraphics();
+        try {
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return converted;
+    }
+
+    private Path getFile(final int x, final int y) {
+        return dir.resolve("megatile-" + x + "-" + y + ".zip");
+    }
+
+    /**
+     * Receives the encoded tiles of a saved mega tile.
+     */
+    @FunctionalInterface
+    interface TileConsumer {
+        void accept(byte[] data, int x, int y, int z) throws IOException;
+    }
+}
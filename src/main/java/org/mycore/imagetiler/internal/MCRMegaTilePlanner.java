@@ -0,0 +1,349 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.imagetiler.MCRImage;
+
+/**
+ * Plans the size of the mega tiles used by {@link MCRMemSaveImage}.
+ *
+ * A mega tile covers <code>2^zoomLevelsPerStep</code> tiles of the lowest zoom level it is tiled down to in
+ * both directions, or a multiple of it. So mega tiles may be band shaped, e.g. cover the whole width of a panorama.
+ * The planner chooses the layout with the fewest mega tiles whose estimated memory usage fits into the
+ * memory budget. Wide bands are preferred, as formats like JPEG or PNG decode every region from the top.
+ * If the source is stored in blocks, like the tiles or strips of a TIFF file, layouts that decode fewer blocks
+ * more than once are preferred.
+ */
+final class MCRMegaTilePlanner {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int TILE_SIZE = MCRImage.getTileSize();
+
+    private static final double GIGA_PIXEL = 1e9;
+
+    private static final Pattern GEOMETRY_PATTERN = Pattern.compile("(\\d{1,9})x(\\d{1,9})/(\\d{1,2})");
+
+    private MCRMegaTilePlanner() {
+    }
+
+    /**
+     * plans the mega tiles of an image.
+     * @param width width of the image
+     * @param height height of the image
+     * @param blockWidth width of the blocks the source is stored in or <code>1</code>, if unknown
+     * @param blockHeight height of the blocks the source is stored in or <code>1</code>, if unknown
+     * @param bytesPerPixel bytes per pixel of a decoded mega tile
+     * @param lastPhaseBytesPerPixel bytes per pixel of the stitched image of all reduced mega tiles
+     * @param memoryBudget memory available for tiling in bytes
+     * @param parallelMegaTiles number of mega tiles in memory at the same time
+     * @return the plan with the fewest mega tiles that fits into the budget or, if no plan fits,
+     * the plan with the lowest memory usage. The raster of a mega tile always fits into a single Java array.
+     */
+    static Plan plan(final int width, final int height, final int blockWidth, final int blockHeight,
+        final int bytesPerPixel, final int lastPhaseBytesPerPixel, final long memoryBudget,
+        final int parallelMegaTiles) {
+        final Layout layout = new Layout(width, height, blockWidth, blockHeight, bytesPerPixel,
+            lastPhaseBytesPerPixel, parallelMegaTiles);
+        if ((double) width * height > GIGA_PIXEL) {
+            LOGGER.info("GigaPIXEL!!!!");
+        }
+        final int maxStep = Math.max(1, MCRImage.getZoomLevels(width, height));
+        Plan best = null;
+        Plan smallest = null;
+        for (int step = 1; step <= maxStep; step++) {
+            final Plan square = new Plan(step, 1, 1, layout);
+            if (!square.isAllocatable()) {
+                break;
+            }
+            if (smallest == null || square.memoryUsage < smallest.memoryUsage) {
+                smallest = square;
+            }
+            if (square.memoryUsage > memoryBudget) {
+                continue;
+            }
+            final Plan candidate = widestBand(square, layout, memoryBudget);
+            if (best == null || isBetter(candidate, best, parallelMegaTiles)) {
+                best = candidate;
+            }
+        }
+        if (best == null) {
+            final long minMemoryUsage = smallest.memoryUsage;
+            LOGGER.warn(() -> String.format(Locale.ENGLISH,
+                "Image of %dx%d pixel does not fit into memory budget of %.1f MB, need at least %.1f MB.",
+                width, height, memoryBudget / 1e6, minMemoryUsage / 1e6));
+            return smallest;
+        }
+        return best;
+    }
+
+    /**
+     * recreates a plan from its {@link Plan#getGeometry() geometry}, e.g. to resume tiling with the mega tiles
+     * of an earlier run. The other parameters are the same as for
+     * {@link #plan(int, int, int, int, int, int, long, int)}.
+     * @param geometry the geometry of the plan
+     * @return the plan or <code>null</code>, if <code>geometry</code> is not a valid geometry for the image
+     */
+    static Plan plan(final int width, final int height, final int blockWidth, final int blockHeight,
+        final int bytesPerPixel, final int lastPhaseBytesPerPixel, final int parallelMegaTiles,
+        final String geometry) {
+        final Matcher matcher = GEOMETRY_PATTERN.matcher(geometry.trim());
+        if (!matcher.matches()) {
+            return null;
+        }
+        final int megaTileWidth = Integer.parseInt(matcher.group(1));
+        final int megaTileHeight = Integer.parseInt(matcher.group(2));
+        final int step = Integer.parseInt(matcher.group(3));
+        if (step < 1 || step > Math.max(1, MCRImage.getZoomLevels(width, height))) {
+            return null;
+        }
+        final int unit = TILE_SIZE << step;
+        if (megaTileWidth % unit != 0 || megaTileHeight % unit != 0) {
+            return null;
+        }
+        final Layout layout = new Layout(width, height, blockWidth, blockHeight, bytesPerPixel,
+            lastPhaseBytesPerPixel, parallelMegaTiles);
+        final Plan plan = new Plan(step, megaTileWidth / unit, megaTileHeight / unit, layout);
+        return plan.isAllocatable() ? plan : null;
+    }
+
+    /**
+     * widens the square mega tiles of <code>square</code> to bands that still fit into the budget.
+     */
+    private static Plan widestBand(final Plan square, final Layout layout, final long memoryBudget) {
+        final int step = square.zoomLevelsPerStep;
+        final int columns = square.xcount;
+        final int rows = square.ycount;
+        final Plan fullWidth = new Plan(step, columns, 1, layout);
+        if (fullWidth.fits(memoryBudget)) {
+            Plan band = fullWidth;
+            for (int b = 2; b <= rows; b++) {
+                final Plan higher = new Plan(step, columns, b, layout);
+                if (!higher.fits(memoryBudget)) {
+                    break;
+                }
+                band = higher;
+            }
+            return band;
+        }
+        Plan band = square;
+        for (int a = 2; a < columns; a++) {
+            final Plan wider = new Plan(step, a, 1, layout);
+            if (!wider.fits(memoryBudget)) {
+                break;
+            }
+            band = wider;
+        }
+        return band;
+    }
+
+    private static boolean isBetter(final Plan candidate, final Plan best, final int parallelMegaTiles) {
+        final int candidateCount = candidate.getMegaTileCount();
+        final int bestCount = best.getMegaTileCount();
+        if (parallelMegaTiles > 1 && candidateCount != bestCount
+            && (candidateCount < parallelMegaTiles || bestCount < parallelMegaTiles)) {
+            //keep all threads busy
+            return candidateCount > bestCount;
+        }
+        if (candidate.decodedPixels != best.decodedPixels) {
+            //blocks at mega tile borders are decoded more than once
+            return candidate.decodedPixels < best.decodedPixels;
+        }
+        if (candidateCount != bestCount) {
+            return candidateCount < bestCount;
+        }
+        return candidate.memoryUsage < best.memoryUsage;
+    }
+
+    /**
+     * The size of the mega tiles of an image.
+     */
+    static final class Plan {
+        private final int zoomLevelsPerStep;
+
+        private final int megaTileWidth;
+
+        private final int megaTileHeight;
+
+        private final int xcount;
+
+        private final int ycount;
+
+        private final long memoryUsage;
+
+        private final long decodedPixels;
+
+        private final long rasterBytes;
+
+        private Plan(final int zoomLevelsPerStep, final int columns, final int rows, final Layout layout) {
+            final int width = layout.width;
+            final int height = layout.height;
+            final int bytesPerPixel = layout.bytesPerPixel;
+            this.zoomLevelsPerStep = zoomLevelsPerStep;
+            final int unit = TILE_SIZE << zoomLevelsPerStep;
+            this.megaTileWidth = unit * columns;
+            this.megaTileHeight = unit * rows;
+            this.xcount = (int) Math.ceil((double) width / megaTileWidth);
+            this.ycount = (int) Math.ceil((double) height / megaTileHeight);
+            this.rasterBytes = (long) Math.min(width, megaTileWidth) * Math.min(height, megaTileHeight)
+                * bytesPerPixel;
+            //mega tile plus all scaled down images
+            final long megaTileBytes = rasterBytes * 4 / 3;
+            final long redWidth = (long) Math.ceil(width / (double) (1 << zoomLevelsPerStep));
+            final long redHeight = (long) Math.ceil(height / (double) (1 << zoomLevelsPerStep));
+            final long lastPhaseBytes = Math.max(redWidth, redHeight) > TILE_SIZE
+                ? redWidth * redHeight * layout.lastPhaseBytesPerPixel * 4 / 3
+                : 0;
+            this.memoryUsage = megaTileBytes * Math.min(layout.parallelMegaTiles, xcount * ycount) + lastPhaseBytes;
+            this.decodedPixels = getDecodedLength(width, megaTileWidth, layout.blockWidth)
+                * getDecodedLength(height, megaTileHeight, layout.blockHeight);
+        }
+
+        /**
+         * @return true, if the raster of a mega tile fits into a single Java array
+         */
+        private boolean isAllocatable() {
+            return rasterBytes <= Integer.MAX_VALUE;
+        }
+
+        private boolean fits(final long memoryBudget) {
+            return memoryUsage <= memoryBudget && isAllocatable();
+        }
+
+        /**
+         * @return number of pixels in one dimension that are decoded, if every mega tile decodes all blocks
+         * it touches
+         */
+        private static long getDecodedLength(final int size, final int megaTileSize, final int blockSize) {
+            long blocks = 0;
+            for (int start = 0; start < size; start += megaTileSize) {
+                final int end = Math.min(size, start + megaTileSize);
+                blocks += (end + blockSize - 1) / blockSize - start / blockSize;
+            }
+            return blocks * Math.min(size, blockSize);
+        }
+
+        /**
+         * @return size of the mega tiles and zoom levels per step, everything that changes the tiles of a mega tile
+         */
+        String getGeometry() {
+            return String.format(Locale.ROOT, "%dx%d/%d", megaTileWidth, megaTileHeight, zoomLevelsPerStep);
+        }
+
+        /**
+         * @return number of zoom levels tiled from a mega tile before the reduced mega tiles are stitched
+         */
+        int getZoomLevelsPerStep() {
+            return zoomLevelsPerStep;
+        }
+
+        /**
+         * @return width of a mega tile in pixel
+         */
+        int getMegaTileWidth() {
+            return megaTileWidth;
+        }
+
+        /**
+         * @return height of a mega tile in pixel
+         */
+        int getMegaTileHeight() {
+            return megaTileHeight;
+        }
+
+        /**
+         * @return number of mega tiles in a row
+         */
+        int getXCount() {
+            return xcount;
+        }
+
+        /**
+         * @return number of mega tiles in a column
+         */
+        int getYCount() {
+            return ycount;
+        }
+
+        /**
+         * @return total number of mega tiles
+         */
+        int getMegaTileCount() {
+            return xcount * ycount;
+        }
+
+        /**
+         * @return number of pixels decoded to read all mega tiles, including blocks decoded more than once
+         */
+        long getDecodedPixels() {
+            return decodedPixels;
+        }
+
+        /**
+         * @return estimated peak memory usage in bytes
+         */
+        long getMemoryUsage() {
+            return memoryUsage;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ENGLISH,
+                "%d mega tiles of %dx%d pixel, %d zoom levels per step, %.1f MB, %.1f MPixel decoded",
+                getMegaTileCount(), megaTileWidth, megaTileHeight, zoomLevelsPerStep, memoryUsage / 1e6,
+                decodedPixels / 1e6);
+        }
+    }
+
+    /**
+     * The image properties a plan depends on.
+     */
+    private static final class Layout {
+        private final int width;
+
+        private final int height;
+
+        private final int blockWidth;
+
+        private final int blockHeight;
+
+        private final int bytesPerPixel;
+
+        private final int lastPhaseBytesPerPixel;
+
+        private final int parallelMegaTiles;
+
+        private Layout(final int width, final int height, final int blockWidth, final int blockHeight,
+            final int bytesPerPixel, final int lastPhaseBytesPerPixel, final int parallelMegaTiles) {
+            this.width = width;
+            this.height = height;
+            this.blockWidth = Math.max(1, blockWidth);
+            this.blockHeight = Math.max(1, blockHeight);
+            this.bytesPerPixel = bytesPerPixel;
+            this.lastPhaseBytesPerPixel = lastPhaseBytesPerPixel;
+            this.parallelMegaTiles = parallelMegaTiles;
+        }
+    }
+}
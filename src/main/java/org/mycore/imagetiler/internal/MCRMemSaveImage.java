@@ -21,14 +21,23 @@ package org.mycore.imagetiler.internal;
 import java.awt.Graphics;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Path;
-import java.util.zip.ZipOutputStream;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
 
 import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import org.mycore.imagetiler.MCRImage;
+import org.mycore.imagetiler.MCRStoredZipWriter;
+import org.mycore.imagetiler.MCRTileMetrics;
 
 /**
  * Uses a special fast and memory saving algorithm to tile images.
@@ -41,9 +50,9 @@ import org.mycore.imagetiler.MCRImage;
 public class MCRMemSaveImage extends MCRImage {
     private static final Logger LOGGER = LogManager.getLogger();
 
-    private static final short MIN_STEP = 3;
+    private MCRMegaTilePlanner.Plan megaTilePlan;
 
-    private int megaTileSize;
+    private MCRMegaTileCheckpoints checkpoints;
 
     /**
      * for internal use only: uses required properties to instantiate.
@@ -64,96 +73,526 @@ public class MCRMemSaveImage extends MCRImage {
         return null;
     }
 
-    private static short getZoomLevelPerStep(final int width, final int height) {
-        final int zoomLevels = getZoomLevels(width, height);
-        if (width * height > 1e9) {
-            LOGGER.info("GigaPIXEL!!!!");
-        }
-        return (short) Math.max(MIN_STEP, (int) Math.ceil(zoomLevels / 2d));
-    }
-
     private static void stichTiles(final BufferedImage stitchImage, final BufferedImage tileImage,
         final int x, final int y) {
+        if (stitchImage.getType() == tileImage.getType() && tileImage.getType() != BufferedImage.TYPE_CUSTOM) {
+            stitchImage.getRaster().setDataElements(x, y, tileImage.getRaster());
+            return;
+        }
         final Graphics graphics = stitchImage.getGraphics();
-        graphics.drawImage(tileImage, x, y, null);
+        try {
+            graphics.drawImage(tileImage, x, y, null);
+        } finally {
+            graphics.dispose();
+        }
     }
 
     @Override
-    protected void doTile(final ImageReader imageReader, final ZipOutputStream zout) throws IOException {
-        final int redWidth = (int) Math.ceil(getImageWidth() / ((double) megaTileSize / TILE_SIZE));
-        final int redHeight = (int) Math.ceil(getImageHeight() / ((double) megaTileSize / TILE_SIZE));
+    protected void doTile(final ImageReader imageReader, final MCRStoredZipWriter zout) throws IOException {
+        megaTilePlan = planMegaTiles(imageReader);
+        final Path checkpointDir = getCheckpointDir();
+        checkpoints = checkpointDir == null ? null : MCRMegaTileCheckpoints.open(checkpointDir, getFingerprint());
+        if (checkpoints != null) {
+            megaTilePlan = resumePlan(imageReader, megaTilePlan);
+        }
+        if (checkpoints == null && isStreaming(imageReader, megaTilePlan)) {
+            LOGGER.info("Decoding image once instead of {} mega tiles.", megaTilePlan.getMegaTileCount());
+            //converting, scaling and writing tiles is done while decoding and counted separately
+            final MCRTilingEvents.MegaTileDecode event = new MCRTilingEvents.MegaTileDecode();
+            event.begin();
+            beginPhase(MCRTileMetrics.Phase.DECODE);
+            try {
+                new MCRStreamingPyramid(getImageWidth(), getImageHeight(), getImageZoomLevels(), getRasterPool(),
+                    new StreamingOutput(zout)).tile(imageReader);
+            } finally {
+                endPhase();
+            }
+            event.commit(getDerivate(), getImagePath(), 0, 0, null, getImageWidth(), getImageHeight());
+            return;
+        }
+        final int reduction = 1 << megaTilePlan.getZoomLevelsPerStep();
+        final int redWidth = (int) Math.ceil(getImageWidth() / (double) reduction);
+        final int redHeight = (int) Math.ceil(getImageHeight() / (double) reduction);
         if (LOGGER.isDebugEnabled()) {
             LOGGER.debug(() -> "reduced size: " + redWidth + "x" + redHeight);
         }
         final int stopOnZoomLevel = getZoomLevels(redWidth, redHeight);
-        final boolean lastPhaseNeeded = Math.max(redWidth, redHeight) > TILE_SIZE;
-        //prepare empty image for the last phase of tiling process
-        BufferedImage lastPhaseImage = lastPhaseNeeded
-            ? new BufferedImage(redWidth, redHeight, getBufferedImageType(imageReader))
+        //lowest zoom levels are either read from a reduced resolution image or stitched from the mega tiles
+        final boolean lastPhaseNeeded = Math.max(redWidth, redHeight) > TILE_SIZE
+            && !tileOverview(imageReader, zout, megaTilePlan.getZoomLevelsPerStep() + 1);
+        //image for the last phase of tiling process, filled with the reduced mega tiles
+        final LastPhase lastPhase = lastPhaseNeeded
+            ? new LastPhase(imageReader, redWidth, redHeight, megaTilePlan.getMegaTileWidth() / reduction,
+                megaTilePlan.getMegaTileHeight() / reduction)
             : null;
 
-        final int xcount = (int) Math.ceil((float) getImageWidth() / (float) megaTileSize);
-        final int ycount = (int) Math.ceil((float) getImageHeight() / (float) megaTileSize);
-        final int imageZoomLevels = getImageZoomLevels();
-        final int zoomFactor = megaTileSize / TILE_SIZE;
-
-        for (int x = 0; x < xcount; x++) {
+        final int xcount = megaTilePlan.getXCount();
+        final int ycount = megaTilePlan.getYCount();
+        final boolean parallel = getDecoderThreads() > 1 && xcount * ycount > 1 && isRegionCapable(imageReader)
+            && tileInParallel(imageReader, zout, xcount, ycount, stopOnZoomLevel, lastPhase);
+        if (!parallel) {
+            //row by row, so that strips and tiles of the source are read in file order
             for (int y = 0; y < ycount; y++) {
-                LOGGER.debug("create new mega tile ({},{})", x, y);
-                final int xpos = x * megaTileSize;
-                final int width = Math.min(megaTileSize, getImageWidth() - xpos);
-                final int ypos = y * megaTileSize;
-                final int height = Math.min(megaTileSize, getImageHeight() - ypos);
-                final BufferedImage megaTile = MCRImage.getTileOfFile(imageReader, xpos, ypos, width, height);
-                LOGGER.debug("megaTile create - start tiling");
-                // stitch
-                final BufferedImage tile = writeTiles(zout, megaTile, x, y, imageZoomLevels, zoomFactor,
-                    stopOnZoomLevel);
-                if (lastPhaseNeeded) {
-                    stichTiles(lastPhaseImage, tile, x * TILE_SIZE, y * TILE_SIZE);
+                for (int x = 0; x < xcount; x++) {
+                    tileMegaTile(imageReader, zout, x, y, stopOnZoomLevel, lastPhase);
                 }
             }
         }
-        if (lastPhaseNeeded) {
-            lastPhaseImage = scaleBufferedImage(lastPhaseImage);
-            final int lastPhaseZoomLevels = getZoomLevels(lastPhaseImage.getHeight(), lastPhaseImage.getWidth());
-            writeTiles(zout, lastPhaseImage, 0, 0, lastPhaseZoomLevels, 0, 0);
+        if (lastPhase != null) {
+            lastPhase.tile(zout, stopOnZoomLevel);
         }
     }
 
-    @Override
-    protected void handleSizeChanged() {
-        super.handleSizeChanged();
-        final short zoomLevelAtATime = getZoomLevelPerStep(getImageWidth(), getImageHeight());
-        setZoomLevelPerStep(zoomLevelAtATime);
-        LOGGER.debug(() -> "Using mega tile size of " + megaTileSize + "px for image sized " + getImageWidth() + "x"
-            + getImageHeight());
+    /**
+     * Writes the lowest zoom levels from a reduced resolution image, if {@link #getOverviewSource()} allows it.
+     * @param halvings number of times the image is halved for the highest of these zoom levels
+     * @return false, if the lowest zoom levels have to be scaled down from the mega tiles
+     */
+    private boolean tileOverview(final ImageReader imageReader, final MCRStoredZipWriter zout, final int halvings)
+        throws IOException {
+        final MCROverviewReader overviewReader = MCROverviewReader.find(imageReader, getImageWidth(),
+            getImageHeight(), halvings, getOverviewSource());
+        if (overviewReader == null) {
+            return false;
+        }
+        LOGGER.info("Reading lowest zoom levels from a reduced resolution image.");
+        final MCRTilingEvents.MegaTileDecode event = new MCRTilingEvents.MegaTileDecode();
+        event.begin();
+        final BufferedImage decoded;
+        beginPhase(MCRTileMetrics.Phase.DECODE);
+        try {
+            decoded = overviewReader.read(imageReader);
+        } finally {
+            endPhase();
+        }
+        event.commit(getDerivate(), getImagePath(), 0, 0, decoded, decoded.getWidth(), decoded.getHeight());
+        BufferedImage overview = convertImage(decoded);
+        for (int i = 0; i < overviewReader.getRemainingHalvings(); i++) {
+            final BufferedImage scaled = scaleImage(overview);
+            releaseImage(overview);
+            overview = scaled;
+        }
+        final int overviewZoomLevels = getZoomLevels(overview.getWidth(), overview.getHeight());
+        releaseImage(writeTiles(zout, overview, 0, 0, overviewZoomLevels, 0, 0, 0));
+        return true;
+    }
+
+    /**
+     * @return the plan saved with the checkpoints, so that saved mega tiles are reused even if the memory budget
+     * changed, or <code>plan</code>, if no plan was saved
+     */
+    private MCRMegaTilePlanner.Plan resumePlan(final ImageReader imageReader, final MCRMegaTilePlanner.Plan plan)
+        throws IOException {
+        final String geometry = checkpoints.loadGeometry();
+        if (geometry != null) {
+            final MCRMegaTilePlanner.Plan savedPlan = planMegaTiles(imageReader, geometry);
+            if (savedPlan != null) {
+                LOGGER.info("Resuming with saved plan: {}", savedPlan);
+                return savedPlan;
+            }
+            LOGGER.warn("Ignoring invalid mega tile geometry {} of checkpoints in {}", geometry,
+                getCheckpointDir());
+        }
+        checkpoints.saveGeometry(plan.getGeometry());
+        return plan;
     }
 
-    private void setZoomLevelPerStep(final short zoomLevel) {
-        megaTileSize = MCRImage.TILE_SIZE * (int) Math.pow(2, zoomLevel); //4096x4096 if 4
+    private MCRMegaTilePlanner.Plan planMegaTiles(final ImageReader imageReader) throws IOException {
+        return planMegaTiles(imageReader, null);
     }
 
-    private BufferedImage writeTiles(final ZipOutputStream zout, final BufferedImage megaTile, final int x,
-        final int y, final int imageZoomLevels, final int zoomFactor, final int stopOnZoomLevel) throws IOException {
+    /**
+     * @param geometry geometry of an earlier plan to restore or <code>null</code> to plan the mega tiles
+     * @return the plan or <code>null</code>, if <code>geometry</code> is invalid
+     */
+    private MCRMegaTilePlanner.Plan planMegaTiles(final ImageReader imageReader, final String geometry)
+        throws IOException {
+        final int parallelMegaTiles = getDecoderThreads() > 1 && isRegionCapable(imageReader)
+            ? getDecoderThreads()
+            : 1;
+        //TIFF readers report the size of tiles or strips, other readers the size of the image
+        final boolean blockAware = isRegionCapable(imageReader);
+        final int blockWidth = blockAware ? imageReader.getTileWidth(0) : 1;
+        final int blockHeight = blockAware ? imageReader.getTileHeight(0) : 1;
+        final int bytesPerPixel = getBytesPerPixel(imageReader);
+        final int lastPhaseBytesPerPixel = isOffHeapRasters() ? 0 : getBytesPerPixel(getBufferedImageType(imageReader));
+        final MCRMegaTilePlanner.Plan plan = geometry == null
+            ? MCRMegaTilePlanner.plan(getImageWidth(), getImageHeight(), blockWidth, blockHeight, bytesPerPixel,
+                lastPhaseBytesPerPixel, getMemoryBudget(), parallelMegaTiles)
+            : MCRMegaTilePlanner.plan(getImageWidth(), getImageHeight(), blockWidth, blockHeight, bytesPerPixel,
+                lastPhaseBytesPerPixel, parallelMegaTiles, geometry);
+        LOGGER.debug("Using {} for image sized {}x{} stored in blocks of {}x{}", plan, getImageWidth(),
+            getImageHeight(), blockWidth, blockHeight);
+        return plan;
+    }
+
+    /**
+     * Reads a mega tile, writes all of its tiles and adds the mega tile scaled to the lowest zoom level to
+     * <code>lastPhase</code>.
+     */
+    private void tileMegaTile(final ImageReader imageReader, final MCRStoredZipWriter zout, final int x,
+        final int y, final int stopOnZoomLevel, final LastPhase lastPhase) throws IOException {
+        final BufferedImage reducedTile = tileMegaTile(imageReader, zout, x, y, stopOnZoomLevel);
+        if (lastPhase != null) {
+            lastPhase.add(reducedTile, x, y);
+        }
+        releaseImage(reducedTile);
+    }
+
+    /**
+     * Reads a mega tile, writes all of its tiles and returns the mega tile scaled to the lowest zoom level.
+     */
+    private BufferedImage tileMegaTile(final ImageReader imageReader, final MCRStoredZipWriter zout, final int x,
+        final int y, final int stopOnZoomLevel) throws IOException {
+        checkCancelled();
+        final MCRMegaTileCheckpoints.TileConsumer tileCopier = (data, tx, ty, tz) -> writeEncodedTile(zout, data,
+            tx, ty, tz);
+        if (checkpoints != null && checkpoints.exists(x, y)) {
+            LOGGER.debug("restore mega tile ({},{}) from checkpoint", x, y);
+            return checkpoints.restore(x, y, tileCopier, getRasterPool());
+        }
+        LOGGER.debug("create new mega tile ({},{})", x, y);
+        final int megaTileWidth = megaTilePlan.getMegaTileWidth();
+        final int megaTileHeight = megaTilePlan.getMegaTileHeight();
+        final int xpos = x * megaTileWidth;
+        final int width = Math.min(megaTileWidth, getImageWidth() - xpos);
+        final int ypos = y * megaTileHeight;
+        final int height = Math.min(megaTileHeight, getImageHeight() - ypos);
+        final BufferedImage megaTile = readImage(imageReader, xpos, ypos, width, height);
+        LOGGER.debug("megaTile create - start tiling");
+        if (checkpoints == null) {
+            return writeTiles(zout, megaTile, x, y, getImageZoomLevels(), megaTileWidth / TILE_SIZE,
+                megaTileHeight / TILE_SIZE, stopOnZoomLevel);
+        }
+        //tiles are written to the checkpoint first and copied when the mega tile is complete
+        final MCRStoredZipWriter checkpoint = checkpoints.create(x, y);
+        final BufferedImage reducedTile;
+        try {
+            reducedTile = writeTiles(checkpoint, megaTile, x, y, getImageZoomLevels(), megaTileWidth / TILE_SIZE,
+                megaTileHeight / TILE_SIZE, stopOnZoomLevel);
+            flushTiles();
+        } catch (IOException | RuntimeException e) {
+            checkpoint.close();
+            throw e;
+        }
+        checkpoints.commit(checkpoint, x, y, reducedTile);
+        checkpoints.copyTiles(x, y, tileCopier);
+        return reducedTile;
+    }
+
+    /**
+     * @return describes the image file and every tiling parameter that changes the tiles, the geometry of the
+     * mega tiles is saved separately
+     */
+    private String getFingerprint() throws IOException {
+        return String.format(Locale.ROOT, "%s%n%dx%d%n", getSourceFingerprint(), getImageWidth(),
+            getImageHeight());
+    }
+
+    /**
+     * Tiles all mega tiles on a {@link ForkJoinPool} where every worker thread uses its own {@link ImageReader}.
+     * @return false, if the image cannot be read by more than one thread
+     */
+    private boolean tileInParallel(final ImageReader imageReader, final MCRStoredZipWriter zout,
+        final int xcount, final int ycount, final int stopOnZoomLevel, final LastPhase lastPhase)
+        throws IOException {
+        final ImageReader firstReader = createAdditionalImageReader(imageReader);
+        if (firstReader == null) {
+            LOGGER.debug("Cannot create additional image readers, decoding on a single thread.");
+            return false;
+        }
+        final int threads = Math.min(getDecoderThreads(), xcount * ycount);
+        LOGGER.info("Decoding {} mega tiles with {} threads.", xcount * ycount, threads);
+        final Queue<ImageReader> workerReaders = new ConcurrentLinkedQueue<>();
+        workerReaders.add(firstReader);
+        final Queue<ImageReader> unusedReaders = new ConcurrentLinkedQueue<>(workerReaders);
+        final ThreadLocal<ImageReader> workerReader = ThreadLocal.withInitial(() -> {
+            final ImageReader unusedReader = unusedReaders.poll();
+            if (unusedReader != null) {
+                return unusedReader;
+            }
+            try {
+                final ImageReader reader = createAdditionalImageReader(imageReader);
+                workerReaders.add(reader);
+                return reader;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+        final ForkJoinPool pool = new ForkJoinPool(threads);
+        final MegaTileTask task = new MegaTileTask(0, xcount * ycount, xcount,
+            (x, y) -> tileMegaTile(workerReader.get(), zout, x, y, stopOnZoomLevel, lastPhase));
+        try {
+            pool.invoke(task);
+            return true;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            //other mega tiles may still be decoded if one failed: stop them before the readers are disposed
+            task.cancel(true);
+            pool.shutdownNow();
+            awaitTermination(pool);
+            for (ImageReader reader : workerReaders) {
+                final Object input = reader.getInput();
+                reader.dispose();
+                if (input instanceof ImageInputStream) {
+                    ((ImageInputStream) input).close();
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits until all running tasks of <code>pool</code> are finished, even if the current thread is interrupted.
+     */
+    private static void awaitTermination(final ForkJoinPool pool) {
+        boolean interrupted = false;
+        while (!pool.isTerminated()) {
+            try {
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static boolean isRegionCapable(final ImageReader imageReader) throws IOException {
+        final String formatName = imageReader.getFormatName().toLowerCase(Locale.ROOT);
+        return formatName.startsWith("tif") || imageReader.isImageTiled(0);
+    }
+
+    /**
+     * @return true, if the image should be decoded once instead of reading several mega tiles
+     */
+    private static boolean isStreaming(final ImageReader imageReader, final MCRMegaTilePlanner.Plan plan)
+        throws IOException {
+        return plan.getMegaTileCount() > 1 && MCRStreamingPyramid.isSupported(imageReader);
+    }
+
+    @Override
+    protected long estimateMemoryUsage(final ImageReader imageReader) throws IOException {
+        final MCRMegaTilePlanner.Plan plan = planMegaTiles(imageReader);
+        if (getCheckpointDir() == null && isStreaming(imageReader, plan)) {
+            return MCRStreamingPyramid.estimateMemoryUsage(getImageWidth(), getBytesPerPixel(imageReader));
+        }
+        return plan.getMemoryUsage();
+    }
+
+    /**
+     * Writes all tiles of the mega tile and of its scaled down versions up to <code>stopOnZoomLevel</code>.
+     * @return the mega tile scaled down to <code>stopOnZoomLevel</code>
+     */
+    private BufferedImage writeTiles(final MCRStoredZipWriter zout, final BufferedImage megaTile, final int x,
+        final int y, final int imageZoomLevels, final int zoomFactorX, final int zoomFactorY,
+        final int stopOnZoomLevel) throws IOException {
         final int tWidth = megaTile.getWidth();
         final int tHeight = megaTile.getHeight();
-        BufferedImage tile = null;
         final int txCount = (int) Math.ceil((float) tWidth / (float) TILE_SIZE);
         final int tyCount = (int) Math.ceil((float) tHeight / (float) TILE_SIZE);
         for (int tx = 0; tx < txCount; tx++) {
             for (int ty = 0; ty < tyCount; ty++) {
-                tile = getTileOfImage(megaTile, tx, ty);
-                final int realX = zoomFactor * x + tx;
-                final int realY = zoomFactor * y + ty;
+                final BufferedImage tile = getTileOfImage(megaTile, tx, ty);
+                final int realX = zoomFactorX * x + tx;
+                final int realY = zoomFactorY * y + ty;
                 writeTile(zout, tile, realX, realY, imageZoomLevels);
             }
         }
         if (imageZoomLevels > stopOnZoomLevel) {
-            tile = scaleBufferedImage(megaTile);
-            return writeTiles(zout, tile, x, y, imageZoomLevels - 1, zoomFactor / 2, stopOnZoomLevel);
+            final BufferedImage scaled = scaleImage(megaTile);
+            releaseImage(megaTile);
+            return writeTiles(zout, scaled, x, y, imageZoomLevels - 1, zoomFactorX / 2, zoomFactorY / 2,
+                stopOnZoomLevel);
+        }
+        return megaTile;
+    }
+
+    /**
+     * Writes the tiles of a {@link MCRStreamingPyramid} to the <code>.iview2</code> file.
+     */
+    private final class StreamingOutput implements MCRStreamingPyramid.Output {
+        private final MCRStoredZipWriter zout;
+
+        /**
+         * tiles of higher zoom levels are not written.
+         */
+        private final int maxZoomLevel;
+
+        private StreamingOutput(final MCRStoredZipWriter zout) {
+            this(zout, Integer.MAX_VALUE);
+        }
+
+        private StreamingOutput(final MCRStoredZipWriter zout, final int maxZoomLevel) {
+            this.zout = zout;
+            this.maxZoomLevel = maxZoomLevel;
+        }
+
+        @Override
+        public BufferedImage convert(final BufferedImage band) {
+            return convertImage(band);
+        }
+
+        @Override
+        public BufferedImage scale(final BufferedImage image) {
+            return scaleImage(image);
+        }
+
+        @Override
+        public int getScaleContext() {
+            return MCRHalvingScaler.getInstance(getScalingProfile()).getContextRows();
+        }
+
+        @Override
+        public void writeTile(final BufferedImage tile, final int x, final int y, final int z) throws IOException {
+            if (z > maxZoomLevel) {
+                return;
+            }
+            MCRMemSaveImage.this.writeTile(zout, tile, x, y, z);
+        }
+
+        @Override
+        public void release(final BufferedImage image) throws IOException {
+            releaseImage(image);
+        }
+    }
+
+    /**
+     * The image of the lowest zoom levels, stitched together from the reduced mega tiles.
+     */
+    private final class LastPhase {
+        private final ImageReader imageReader;
+
+        private final int width;
+
+        private final int height;
+
+        private final int stitchWidth;
+
+        private final int stitchHeight;
+
+        /**
+         * created with the first reduced mega tile, if not off heap.
+         */
+        private BufferedImage image;
+
+        /**
+         * created with the first reduced mega tile, if off heap.
+         */
+        private MCROffHeapImage offHeapImage;
+
+        private LastPhase(final ImageReader imageReader, final int width, final int height, final int stitchWidth,
+            final int stitchHeight) {
+            this.imageReader = imageReader;
+            this.width = width;
+            this.height = height;
+            this.stitchWidth = stitchWidth;
+            this.stitchHeight = stitchHeight;
+        }
+
+        /**
+         * adds the reduced mega tile at position (x, y), may be called by several threads.
+         */
+        private synchronized void add(final BufferedImage reducedTile, final int x, final int y)
+            throws IOException {
+            if (image == null && offHeapImage == null) {
+                create(reducedTile);
+            }
+            if (offHeapImage != null) {
+                offHeapImage.setRect(x * stitchWidth, y * stitchHeight, reducedTile);
+            } else {
+                stichTiles(image, reducedTile, x * stitchWidth, y * stitchHeight);
+            }
+        }
+
+        /**
+         * creates the image with the type of the reduced mega tiles.
+         */
+        private void create(final BufferedImage reducedTile) throws IOException {
+            final int imageType = reducedTile.getType() == BufferedImage.TYPE_CUSTOM
+                ? getBufferedImageType(imageReader)
+                : reducedTile.getType();
+            if (isOffHeapRasters()) {
+                offHeapImage = MCROffHeapImage.create(width, height, imageType, getOffHeapDir());
+                if (offHeapImage != null) {
+                    LOGGER.debug("Stitching reduced mega tiles in {}", offHeapImage);
+                    return;
+                }
+                LOGGER.warn("Cannot store image of {}x{} pixel and type {} off heap.", width, height, imageType);
+            }
+            image = new BufferedImage(width, height, imageType);
+        }
+
+        /**
+         * writes the tiles of all zoom levels below <code>zoomLevel</code>, the zoom level of this image.
+         */
+        private synchronized void tile(final MCRStoredZipWriter zout, final int zoomLevel) throws IOException {
+            if (image != null) {
+                final BufferedImage scaled = scaleImage(image);
+                final int lastPhaseZoomLevels = getZoomLevels(scaled.getHeight(), scaled.getWidth());
+                releaseImage(writeTiles(zout, scaled, 0, 0, lastPhaseZoomLevels, 0, 0, 0));
+                return;
+            }
+            //copies bands of rows to the heap, tiles of zoomLevel were written with the mega tiles
+            final MCRStreamingPyramid pyramid = new MCRStreamingPyramid(width, height, zoomLevel, getRasterPool(),
+                new StreamingOutput(zout, zoomLevel - 1));
+            for (int y = 0; y < height; y += TILE_SIZE) {
+                final BufferedImage band = getRasterPool().borrow(width, Math.min(TILE_SIZE, height - y),
+                    offHeapImage.getType());
+                offHeapImage.getRows(y, band);
+                pyramid.addRows(band);
+            }
+        }
+    }
+
+    /**
+     * Tiles a single mega tile.
+     */
+    @FunctionalInterface
+    private interface MegaTileProcessor {
+        void process(int x, int y) throws IOException;
+    }
+
+    /**
+     * Tiles a range of mega tiles, splitting the range until a single mega tile is left.
+     */
+    private static final class MegaTileTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+
+        private final int to;
+
+        private final int xcount;
+
+        private final transient MegaTileProcessor processor;
+
+        private MegaTileTask(final int from, final int to, final int xcount, final MegaTileProcessor processor) {
+            this.from = from;
+            this.to = to;
+            this.xcount = xcount;
+            this.processor = processor;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                if (getPool().isShutdown()) {
+                    //another mega tile failed
+                    return;
+                }
+                try {
+                    processor.process(from % xcount, from / xcount);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                return;
+            }
+            final int middle = (from + to) >>> 1;
+            invokeAll(new MegaTileTask(from, middle, xcount, processor),
+                new MegaTileTask(middle, to, xcount, processor));
         }
-        return tile;
     }
 
 }
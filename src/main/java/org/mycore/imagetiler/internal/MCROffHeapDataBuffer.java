@@ -0,0 +1,195 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A {@link DataBuffer} with a single bank that is stored outside of the Java heap.
+ *
+ * The elements are stored in direct memory or in a memory mapped, temporary file. Large buffers are split into
+ * segments of 1 GiB, so that buffers of more than 2 GiB are possible. Besides single elements, consecutive
+ * elements are copied from and to arrays with {@link #getElems(int, Object, int, int)} and
+ * {@link #setElems(int, Object, int, int)}. Copying distinct elements from several threads is safe.
+ */
+final class MCROffHeapDataBuffer extends DataBuffer {
+
+    private static final int SEGMENT_BITS = 30;
+
+    private static final int SEGMENT_SIZE = 1 << SEGMENT_BITS;
+
+    private final int shift;
+
+    private final ByteBuffer[] segments;
+
+    private MCROffHeapDataBuffer(final int dataType, final int size, final ByteBuffer[] segments) {
+        super(dataType, size);
+        this.shift = Integer.numberOfTrailingZeros(getDataTypeSize(dataType) / Byte.SIZE);
+        this.segments = segments;
+    }
+
+    /**
+     * allocates a new buffer with undefined content.
+     * @param dataType {@link DataBuffer#TYPE_BYTE}, {@link DataBuffer#TYPE_USHORT} or {@link DataBuffer#TYPE_INT}
+     * @param size number of elements
+     * @param dir directory for a temporary, memory mapped file, <code>null</code> to use direct memory
+     * @return the buffer
+     * @throws IOException if the temporary file could not be created
+     */
+    static MCROffHeapDataBuffer allocate(final int dataType, final int size, final Path dir) throws IOException {
+        if (dataType != TYPE_BYTE && dataType != TYPE_USHORT && dataType != TYPE_INT) {
+            throw new IllegalArgumentException("Unsupported data type: " + dataType);
+        }
+        final long bytes = (long) size * getDataTypeSize(dataType) / Byte.SIZE;
+        final ByteBuffer[] segments = new ByteBuffer[(int) ((bytes + SEGMENT_SIZE - 1) >>> SEGMENT_BITS)];
+        if (dir == null) {
+            for (int i = 0; i < segments.length; i++) {
+                segments[i] = ByteBuffer.allocateDirect(getSegmentSize(bytes, i));
+            }
+        } else {
+            final Path file = Files.createTempFile(dir, "MCROffHeapDataBuffer", ".raster");
+            //the file is deleted on close, mapped segments stay valid
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)) {
+                for (int i = 0; i < segments.length; i++) {
+                    segments[i] = channel.map(FileChannel.MapMode.READ_WRITE, (long) i << SEGMENT_BITS,
+                        getSegmentSize(bytes, i));
+                }
+            }
+        }
+        for (ByteBuffer segment : segments) {
+            segment.order(ByteOrder.nativeOrder());
+        }
+        return new MCROffHeapDataBuffer(dataType, size, segments);
+    }
+
+    private static int getSegmentSize(final long bytes, final int segment) {
+        return (int) Math.min(SEGMENT_SIZE, bytes - ((long) segment << SEGMENT_BITS));
+    }
+
+    /**
+     * @return size of all elements in bytes
+     */
+    long getBytes() {
+        return (long) getSize() << shift;
+    }
+
+    @Override
+    public int getElem(final int bank, final int i) {
+        final long pos = (long) (i + getOffset()) << shift;
+        final ByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)];
+        final int index = (int) (pos & (SEGMENT_SIZE - 1));
+        switch (dataType) {
+            case TYPE_BYTE:
+                return segment.get(index) & 0xff;
+            case TYPE_USHORT:
+                return segment.getShort(index) & 0xffff;
+            default:
+                return segment.getInt(index);
+        }
+    }
+
+    @Override
+    public void setElem(final int bank, final int i, final int val) {
+        final long pos = (long) (i + getOffset()) << shift;
+        final ByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)];
+        final int index = (int) (pos & (SEGMENT_SIZE - 1));
+        switch (dataType) {
+            case TYPE_BYTE:
+                segment.put(index, (byte) val);
+                break;
+            case TYPE_USHORT:
+                segment.putShort(index, (short) val);
+                break;
+            default:
+                segment.putInt(index, val);
+                break;
+        }
+    }
+
+    /**
+     * copies consecutive elements into an array.
+     * @param i index of the first element
+     * @param array a <code>byte[]</code>, <code>short[]</code> or <code>int[]</code> matching the data type
+     * @param offset index of the first element in <code>array</code>
+     * @param length number of elements
+     */
+    void getElems(final int i, final Object array, final int offset, final int length) {
+        copy(i, array, offset, length, false);
+    }
+
+    /**
+     * copies consecutive elements from an array.
+     * @param i index of the first element
+     * @param array a <code>byte[]</code>, <code>short[]</code> or <code>int[]</code> matching the data type
+     * @param offset index of the first element in <code>array</code>
+     * @param length number of elements
+     */
+    void setElems(final int i, final Object array, final int offset, final int length) {
+        copy(i, array, offset, length, true);
+    }
+
+    private void copy(final int i, final Object array, final int offset, final int length, final boolean put) {
+        if (i < 0 || length < 0 || i + length > getSize()) {
+            throw new IndexOutOfBoundsException("i=" + i + " and length=" + length + " exceed size " + getSize());
+        }
+        long pos = (long) (i + getOffset()) << shift;
+        int done = 0;
+        while (done < length) {
+            //rows may span two segments
+            final int index = (int) (pos & (SEGMENT_SIZE - 1));
+            final ByteBuffer segment = segments[(int) (pos >>> SEGMENT_BITS)].duplicate()
+                .order(ByteOrder.nativeOrder());
+            segment.position(index);
+            final int n = Math.min(length - done, segment.remaining() >> shift);
+            switch (dataType) {
+                case TYPE_BYTE:
+                    if (put) {
+                        segment.put((byte[]) array, offset + done, n);
+                    } else {
+                        segment.get((byte[]) array, offset + done, n);
+                    }
+                    break;
+                case TYPE_USHORT:
+                    if (put) {
+                        segment.asShortBuffer().put((short[]) array, offset + done, n);
+                    } else {
+                        segment.asShortBuffer().get((short[]) array, offset + done, n);
+                    }
+                    break;
+                default:
+                    if (put) {
+                        segment.asIntBuffer().put((int[]) array, offset + done, n);
+                    } else {
+                        segment.asIntBuffer().get((int[]) array, offset + done, n);
+                    }
+                    break;
+            }
+            done += n;
+            pos += (long) n << shift;
+        }
+    }
+}
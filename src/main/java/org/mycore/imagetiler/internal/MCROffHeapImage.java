@@ -0,0 +1,192 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.awt.AlphaComposite;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.PixelInterleavedSampleModel;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.stream.IntStream;
+
+/**
+ * An image of a standard {@link BufferedImage} type whose pixels are stored in a {@link MCROffHeapDataBuffer}.
+ *
+ * Java2D and ImageIO handle images with custom data buffers very slowly, so pixels are copied row by row
+ * from and to heap images of the same type. {@link #getImage()} allows access with the usual Java2D methods.
+ */
+final class MCROffHeapImage {
+
+    private final int width;
+
+    private final int height;
+
+    private final int imageType;
+
+    private final int elementsPerPixel;
+
+    private final ColorModel colorModel;
+
+    private final SampleModel sampleModel;
+
+    private final MCROffHeapDataBuffer data;
+
+    private MCROffHeapImage(final int width, final int height, final int imageType, final ColorModel colorModel,
+        final SampleModel sampleModel, final MCROffHeapDataBuffer data) {
+        this.width = width;
+        this.height = height;
+        this.imageType = imageType;
+        this.elementsPerPixel = sampleModel.getNumDataElements();
+        this.colorModel = colorModel;
+        this.sampleModel = sampleModel;
+        this.data = data;
+    }
+
+    /**
+     * allocates a new image with undefined content.
+     * @param width width of the image
+     * @param height height of the image
+     * @param imageType a {@link BufferedImage#getType()} value other than {@link BufferedImage#TYPE_CUSTOM}
+     * @param dir directory for a temporary, memory mapped file, <code>null</code> to use direct memory
+     * @return the image or <code>null</code>, if images of this type and size cannot be stored off heap
+     * @throws IOException if the temporary file could not be created
+     */
+    static MCROffHeapImage create(final int width, final int height, final int imageType, final Path dir)
+        throws IOException {
+        final BufferedImage template = new BufferedImage(1, 1, imageType);
+        final SampleModel templateModel = template.getSampleModel();
+        final SampleModel sampleModel;
+        if (templateModel instanceof ComponentSampleModel) {
+            //elements are stored in band order, as returned by Raster.getDataElements()
+            final int bands = templateModel.getNumBands();
+            sampleModel = new PixelInterleavedSampleModel(templateModel.getDataType(), width, height, bands,
+                width * bands, IntStream.range(0, bands).toArray());
+        } else if (templateModel instanceof SinglePixelPackedSampleModel) {
+            sampleModel = templateModel.createCompatibleSampleModel(width, height);
+        } else {
+            return null;
+        }
+        final long size = (long) width * height * sampleModel.getNumDataElements();
+        if (size > Integer.MAX_VALUE) {
+            return null;
+        }
+        return new MCROffHeapImage(width, height, imageType, template.getColorModel(), sampleModel,
+            MCROffHeapDataBuffer.allocate(sampleModel.getDataType(), (int) size, dir));
+    }
+
+    /**
+     * @return width of the image
+     */
+    int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return height of the image
+     */
+    int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return type of images passed to {@link #getRows(int, BufferedImage)}
+     */
+    int getType() {
+        return imageType;
+    }
+
+    /**
+     * @return size of the pixel data in bytes
+     */
+    long getBytes() {
+        return data.getBytes();
+    }
+
+    /**
+     * @return a view of this image of type {@link BufferedImage#TYPE_CUSTOM}
+     */
+    BufferedImage getImage() {
+        final WritableRaster raster = Raster.createWritableRaster(sampleModel, data, null);
+        return new BufferedImage(colorModel, raster, colorModel.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * copies an image into this image, converting it to the type of this image, if needed.
+     *
+     * Several threads may copy images that do not overlap.
+     * @param x x-coordinate of the upper left pixel
+     * @param y y-coordinate of the upper left pixel
+     * @param image the image to copy
+     */
+    void setRect(final int x, final int y, final BufferedImage image) {
+        final int w = Math.min(image.getWidth(), width - x);
+        final int h = Math.min(image.getHeight(), height - y);
+        final Raster raster = convert(image).getRaster();
+        Object row = null;
+        for (int r = 0; r < h; r++) {
+            row = raster.getDataElements(0, r, w, 1, row);
+            data.setElems(((y + r) * width + x) * elementsPerPixel, row, 0, w * elementsPerPixel);
+        }
+    }
+
+    /**
+     * copies rows of this image into <code>band</code>.
+     * @param y first row to copy
+     * @param band an image of {@link #getType()} with the width of this image, its height is the number of rows
+     */
+    void getRows(final int y, final BufferedImage band) {
+        if (band.getType() != imageType || band.getWidth() != width) {
+            throw new IllegalArgumentException("Band must be of type " + imageType + " and width " + width);
+        }
+        final WritableRaster raster = band.getRaster();
+        final int rowLength = width * elementsPerPixel;
+        final Object row = raster.getDataElements(0, 0, width, 1, null);
+        for (int r = 0; r < band.getHeight(); r++) {
+            data.getElems((y + r) * rowLength, row, 0, rowLength);
+            raster.setDataElements(0, r, width, 1, row);
+        }
+    }
+
+    private BufferedImage convert(final BufferedImage image) {
+        if (image.getType() == imageType) {
+            return image;
+        }
+        final BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), imageType);
+        final Graphics2D graphics = converted.createGraphics();
+        try {
+            graphics.setComposite(AlphaComposite.Src);
+            graphics.drawImage(image, 0, 0, null);
+        } finally {
+            graphics.dispose();
+        }
+        return converted;
+    }
+
+    @Override
+    public String toString() {
+        return "MCROffHeapImage [" + width + "x" + height + ", type=" + imageType + ", bytes=" + getBytes() + "]";
+    }
+}
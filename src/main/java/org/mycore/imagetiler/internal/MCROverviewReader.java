@@ -0,0 +1,205 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.Locale;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.imagetiler.MCROverviewSource;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+/**
+ * Reads a reduced resolution version of an image without decoding the full resolution image into memory.
+ *
+ * The overview is read from an embedded image that is marked as reduced resolution and whose size matches a
+ * zoom level exactly, or by
+ * {@link ImageReadParam#setSourceSubsampling(int, int, int, int) subsampling}. Subsampling always
+ * leaves the last halving to the scaler to reduce aliasing.
+ */
+final class MCROverviewReader {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    /**
+     * TIFF tag NewSubfileType.
+     */
+    private static final String NEW_SUBFILE_TYPE = "254";
+
+    /**
+     * bit of NewSubfileType, set if the page is a reduced resolution version of another page.
+     */
+    private static final long REDUCED_RESOLUTION = 1;
+
+    private final int imageIndex;
+
+    private final int subsampling;
+
+    private final int remainingHalvings;
+
+    private MCROverviewReader(final int imageIndex, final int subsampling, final int remainingHalvings) {
+        this.imageIndex = imageIndex;
+        this.subsampling = subsampling;
+        this.remainingHalvings = remainingHalvings;
+    }
+
+    /**
+     * finds the cheapest way to read the image reduced by <code>2^halvings</code>.
+     * @param reader image reader with current image at pos 0
+     * @param width width of the image
+     * @param height height of the image
+     * @param halvings number of times the image is halved
+     * @param source where the overview may come from
+     * @return a reader for the overview or <code>null</code>, if the overview has to be scaled down from the full
+     * resolution image
+     * @throws IOException if the source file could not be read
+     */
+    static MCROverviewReader find(final ImageReader reader, final int width, final int height, final int halvings,
+        final MCROverviewSource source) throws IOException {
+        if (source == MCROverviewSource.FULL_RESOLUTION || halvings < 1) {
+            return null;
+        }
+        int imageIndex = 0;
+        int embeddedHalvings = 0;
+        if (reader.getFormatName().toLowerCase(Locale.ROOT).startsWith("tif")) {
+            //TIFF readers only need to follow the IFD chain
+            final int numImages = reader.getNumImages(true);
+            for (int i = 1; i < numImages; i++) {
+                final int levels = getHalvings(reader.getWidth(i), reader.getHeight(i), width, height, halvings);
+                if (levels > embeddedHalvings && isReducedResolution(reader, i)) {
+                    imageIndex = i;
+                    embeddedHalvings = levels;
+                }
+            }
+        }
+        int subsampling = 1;
+        if (source == MCROverviewSource.SUBSAMPLED) {
+            subsampling = 1 << Math.max(0, halvings - embeddedHalvings - 1);
+        }
+        if (imageIndex == 0 && subsampling == 1) {
+            return null;
+        }
+        final int remaining = halvings - embeddedHalvings - Integer.numberOfTrailingZeros(subsampling);
+        LOGGER.debug("Reading overview from image {} with subsampling {}, {} halvings left.", imageIndex,
+            subsampling, remaining);
+        return new MCROverviewReader(imageIndex, subsampling, remaining);
+    }
+
+    /**
+     * @return number of halvings that turn an image of <code>width</code> x <code>height</code> pixel into an
+     * image of <code>embeddedWidth</code> x <code>embeddedHeight</code> pixel, or 0 if there is no such number
+     * up to <code>maxHalvings</code>
+     */
+    private static int getHalvings(final int embeddedWidth, final int embeddedHeight, final int width,
+        final int height, final int maxHalvings) {
+        for (int levels = 1; levels <= maxHalvings; levels++) {
+            if (embeddedWidth == getReducedSize(width, levels) && embeddedHeight == getReducedSize(height, levels)) {
+                return levels;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @return true, if the TIFF page <code>imageIndex</code> is marked as a reduced resolution version of another
+     * page, other pages like the back of a sheet may have the size of a zoom level, too
+     */
+    private static boolean isReducedResolution(final ImageReader reader, final int imageIndex) throws IOException {
+        final IIOMetadata metadata = reader.getImageMetadata(imageIndex);
+        final String metadataFormat = metadata == null ? null : metadata.getNativeMetadataFormatName();
+        if (metadataFormat == null) {
+            return false;
+        }
+        final String value = getFieldValue(metadata.getAsTree(metadataFormat), NEW_SUBFILE_TYPE);
+        try {
+            return value != null && (Long.parseLong(value) & REDUCED_RESOLUTION) != 0;
+        } catch (NumberFormatException e) {
+            LOGGER.warn("Invalid NewSubfileType of image {}: {}", imageIndex, value);
+            return false;
+        }
+    }
+
+    /**
+     * @return the first value of the <code>TIFFField</code> with the given tag number or <code>null</code>
+     */
+    private static String getFieldValue(final Node node, final String number) {
+        final NamedNodeMap attributes = node.getAttributes();
+        if ("TIFFField".equals(node.getNodeName()) && attributes != null
+            && attributes.getNamedItem("number") != null
+            && number.equals(attributes.getNamedItem("number").getNodeValue())) {
+            return getValue(node);
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            final String value = getFieldValue(child, number);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static String getValue(final Node node) {
+        final NamedNodeMap attributes = node.getAttributes();
+        if (attributes != null && attributes.getNamedItem("value") != null) {
+            return attributes.getNamedItem("value").getNodeValue();
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            final String value = getValue(child);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return size of one dimension after halving it <code>halvings</code> times
+     */
+    static int getReducedSize(final int size, final int halvings) {
+        return (int) ((size + (1L << halvings) - 1) >> halvings);
+    }
+
+    /**
+     * reads the overview, the result has to be halved {@link #getRemainingHalvings()} times.
+     * @param reader image reader with current image at pos 0
+     * @return the image as returned by the reader
+     * @throws IOException if the source file could not be read
+     */
+    BufferedImage read(final ImageReader reader) throws IOException {
+        final ImageReadParam param = reader.getDefaultReadParam();
+        if (subsampling > 1) {
+            param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        }
+        return reader.read(imageIndex, param);
+    }
+
+    /**
+     * @return number of times the image returned by {@link #read(ImageReader)} has to be halved
+     */
+    int getRemainingHalvings() {
+        return remainingHalvings;
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+import javax.imageio.ImageWriter;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.imagetiler.MCRStoredZipWriter;
+
+import edu.umd.cs.findbugs.annotations.SuppressFBWarnings;
+
+/**
+ * Encodes image tiles on a pool of worker threads and appends them to a {@link MCRStoredZipWriter}.
+ *
+ * Every worker thread uses its own {@link ImageWriter}. A single writer thread takes the encoded tiles in the
+ * order they were submitted and writes them to the ZIP file. The number of tiles in flight is limited, so
+ * {@link #write(String, BufferedImage, MCRStoredZipWriter.EntryListener)} blocks if encoding or writing cannot keep up.
+ */
+@SuppressFBWarnings(value = "EI_EXPOSE_REP2", justification = "Cannot copy MCRStoredZipWriter!")
+public final class MCRParallelTileWriter implements Closeable {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int TILES_PER_THREAD = 4;
+
+    private static final AtomicInteger POOL_COUNTER = new AtomicInteger();
+
+    private static final EncodedTile END_OF_TILES = new EncodedTile(null, null, null, null, null);
+
+    private final MCRStoredZipWriter zout;
+
+    private final TileEncoder encoder;
+
+    private final ExecutorService encoderPool;
+
+    private final BlockingQueue<EncodedTile> pendingTiles;
+
+    private final Queue<ImageWriter> imageWriters = new ConcurrentLinkedQueue<>();
+
+    private final ThreadLocal<ImageWriter> threadImageWriter;
+
+    private final Thread zipWriterThread;
+
+    private final AtomicLong writeNanos = new AtomicLong();
+
+    private volatile Throwable failure;
+
+    private boolean closed;
+
+    /**
+     * Starts encoder and writer threads.
+     * @param zout ZIP writer of <code>.iview2</code> file
+     * @param threads number of encoder threads
+     * @param writerFactory creates a new {@link ImageWriter} for every encoder thread
+     * @param encoder encodes a single tile with the given {@link ImageWriter}
+     */
+    public MCRParallelTileWriter(final MCRStoredZipWriter zout, final int threads,
+        final Supplier<ImageWriter> writerFactory, final TileEncoder encoder) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("Need at least one encoder thread: " + threads);
+        }
+        this.zout = zout;
+        this.encoder = encoder;
+        this.pendingTiles = new ArrayBlockingQueue<>(threads * TILES_PER_THREAD);
+        this.threadImageWriter = ThreadLocal.withInitial(() -> {
+            ImageWriter imageWriter = writerFactory.get();
+            imageWriters.add(imageWriter);
+            return imageWriter;
+        });
+        final int poolId = POOL_COUNTER.incrementAndGet();
+        final AtomicInteger threadCounter = new AtomicInteger();
+        this.encoderPool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "MCRTileEncoder-" + poolId + "-" + threadCounter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        this.zipWriterThread = new Thread(this::writeTiles, "MCRTileZipWriter-" + poolId);
+        this.zipWriterThread.setDaemon(true);
+        this.zipWriterThread.start();
+        LOGGER.debug("Encoding tiles with {} threads.", threads);
+    }
+
+    /**
+     * Queues the tile for encoding. The tile is written to the ZIP file after all previously queued tiles.
+     *
+     * The tile must not be modified until it is written, see {@link #afterPendingTiles(Runnable)}.
+     * @param entryName name of the ZIP entry
+     * @param tile image tile to encode
+     * @param listener notified by the writer thread after the tile is written, may be null
+     * @throws IOException if a previous tile could not be encoded or written
+     */
+    public void write(final String entryName, final BufferedImage tile,
+        final MCRStoredZipWriter.EntryListener listener) throws IOException {
+        write(zout, entryName, tile, listener);
+    }
+
+    /**
+     * Queues the tile for encoding. The tile is written to <code>target</code> after all previously queued tiles.
+     *
+     * The tile must not be modified until it is written, see {@link #afterPendingTiles(Runnable)}.
+     * @param target ZIP writer the tile is written to
+     * @param entryName name of the ZIP entry
+     * @param tile image tile to encode
+     * @param listener notified by the writer thread after the tile is written, may be null
+     * @throws IOException if a previous tile could not be encoded or written
+     */
+    public void write(final MCRStoredZipWriter target, final String entryName, final BufferedImage tile,
+        final MCRStoredZipWriter.EntryListener listener) throws IOException {
+        checkFailure();
+        final Future<byte[]> encodedTile = encoderPool
+            .submit(() -> encoder.encode(threadImageWriter.get(), entryName, tile));
+        try {
+            pendingTiles.put(new EncodedTile(target, entryName, encodedTile, listener, null));
+        } catch (InterruptedException e) {
+            encodedTile.cancel(false);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for tile encoder.");
+        }
+    }
+
+    /**
+     * Runs <code>action</code> on the writer thread after all tiles queued so far are written.
+     *
+     * Use it to release images whose tiles are queued. The action is not run, if a tile could not be written,
+     * as tiles may still be encoded in that case.
+     * @param action the action to run
+     * @throws IOException if a previous tile could not be encoded or written
+     */
+    public void afterPendingTiles(final Runnable action) throws IOException {
+        checkFailure();
+        try {
+            pendingTiles.put(new EncodedTile(null, null, null, null, action));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for tile encoder.");
+        }
+    }
+
+    /**
+     * Waits until all tiles queued so far are written.
+     * @throws IOException if any tile could not be encoded or written
+     */
+    public void flush() throws IOException {
+        checkFailure();
+        final FlushAction flushAction = new FlushAction();
+        try {
+            pendingTiles.put(new EncodedTile(null, null, null, null, flushAction));
+            flushAction.written.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for tile writer.");
+        }
+        checkFailure();
+    }
+
+    /**
+     * Waits until all queued tiles are written and stops all threads.
+     * @throws IOException if any tile could not be encoded or written
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            pendingTiles.put(END_OF_TILES);
+            zipWriterThread.join();
+        } catch (InterruptedException e) {
+            zipWriterThread.interrupt();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for tile writer.");
+        } finally {
+            encoderPool.shutdownNow();
+            //an encoder may still be inside ImageWriter.write()
+            awaitTermination(encoderPool);
+            imageWriters.forEach(ImageWriter::dispose);
+            imageWriters.clear();
+        }
+        checkFailure();
+    }
+
+    /**
+     * @return time the writer thread spent writing ZIP entries in nanoseconds
+     */
+    public long getWriteNanos() {
+        return writeNanos.get();
+    }
+
+    private void writeTiles() {
+        try {
+            EncodedTile pending;
+            while ((pending = pendingTiles.take()) != END_OF_TILES) {
+                if (failure != null) {
+                    //drain queue so that producers do not block
+                    if (pending.data != null) {
+                        pending.data.cancel(false);
+                    } else if (pending.action instanceof FlushAction) {
+                        pending.action.run();
+                    }
+                    continue;
+                }
+                try {
+                    if (pending.action != null) {
+                        pending.action.run();
+                        continue;
+                    }
+                    final byte[] data = pending.data.get();
+                    final long start = System.nanoTime();
+                    final long offset = pending.target.putEntry(pending.name, data);
+                    writeNanos.addAndGet(System.nanoTime() - start);
+                    if (pending.listener != null) {
+                        pending.listener.entryWritten(offset, data.length);
+                    }
+                } catch (ExecutionException e) {
+                    failure = e.getCause();
+                } catch (Throwable e) {
+                    //keep draining, else producers and close() would block forever
+                    failure = e;
+                }
+            }
+        } catch (InterruptedException e) {
+            failure = e;
+        }
+    }
+
+    private static void awaitTermination(final ExecutorService pool) {
+        boolean interrupted = false;
+        while (!pool.isTerminated()) {
+            try {
+                pool.awaitTermination(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        final Throwable cause = failure;
+        if (cause == null) {
+            return;
+        }
+        if (cause instanceof IOException) {
+            throw new IOException("Error while writing tiles.", cause);
+        }
+        if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        throw new IOException(cause);
+    }
+
+    /**
+     * Encodes a single image tile.
+     */
+    @FunctionalInterface
+    public interface TileEncoder {
+        /**
+         * Encodes <code>tile</code>.
+         * @param imageWriter image writer exclusively used by the current thread
+         * @param entryName name of the ZIP entry
+         * @param tile image tile
+         * @return the encoded tile
+         * @throws IOException if encoding fails
+         */
+        byte[] encode(ImageWriter imageWriter, String entryName, BufferedImage tile) throws IOException;
+    }
+
+    /**
+     * Releases a thread waiting in {@link #flush()}, also run after a tile could not be written.
+     */
+    private static final class FlushAction implements Runnable {
+        private final CountDownLatch written = new CountDownLatch(1);
+
+        @Override
+        public void run() {
+            written.countDown();
+        }
+    }
+
+    private static final class EncodedTile {
+        private final MCRStoredZipWriter target;
+
+        private final String name;
+
+        private final Future<byte[]> data;
+
+        private final MCRStoredZipWriter.EntryListener listener;
+
+        private final Runnable action;
+
+        private EncodedTile(final MCRStoredZipWriter target, final String name, final Future<byte[]> data,
+            final MCRStoredZipWriter.EntryListener listener, final Runnable action) {
+            this.target = target;
+            this.name = name;
+            this.data = data;
+            this.listener = listener;
+            this.action = action;
+        }
+    }
+}
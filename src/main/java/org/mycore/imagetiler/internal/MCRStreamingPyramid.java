@@ -0,0 +1,593 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentSampleModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Locale;
+
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.event.IIOReadUpdateListener;
+import javax.imageio.metadata.IIOMetadata;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.mycore.imagetiler.MCRImage;
+import org.mycore.imagetiler.MCRRasterPool;
+import org.w3c.dom.Node;
+
+/**
+ * Tiles an image that is decoded once from top to bottom.
+ *
+ * Formats like JPEG and PNG cannot decode a region without decoding all rows above it. Instead of reading
+ * mega tiles, the image is decoded by a single {@link ImageReader#read(int, ImageReadParam)} call into a
+ * destination that only holds the last {@link MCRImage#getTileSize()} rows. Every completed band of rows is
+ * tiled at once and its scaled down version is collected by the next zoom level, which is tiled as soon as it
+ * has a band of rows, too. So only about one band of rows per zoom level is held in memory.
+ *
+ * A band is scaled down with the rows around it that the scaling filter reads, so its scaled rows are the same
+ * as if the whole image was scaled at once. So every zoom level holds back a band until the next one is complete.
+ */
+final class MCRStreamingPyramid {
+
+    private static final Logger LOGGER = LogManager.getLogger();
+
+    private static final int TILE_SIZE = MCRImage.getTileSize();
+
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+
+    private static final String PNG_METADATA_FORMAT = "javax_imageio_png_1.0";
+
+    private static final String JPEG_PROGRESSIVE = "2";
+
+    private final int width;
+
+    private final int height;
+
+    private final MCRRasterPool pool;
+
+    private final Output output;
+
+    /**
+     * zoom levels, index is the zoom level.
+     */
+    private final Level[] levels;
+
+    private int nextRow;
+
+    /**
+     * @param width width of the image
+     * @param height height of the image
+     * @param zoomLevels highest zoom level
+     * @param pool provides images for bands of rows
+     * @param output writes tiles and scales images
+     */
+    MCRStreamingPyramid(final int width, final int height, final int zoomLevels, final MCRRasterPool pool,
+        final Output output) {
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+        this.output = output;
+        this.levels = new Level[zoomLevels + 1];
+        int levelWidth = width;
+        int levelHeight = height;
+        for (int z = zoomLevels; z >= 0; z--) {
+            levels[z] = new Level(z, levelWidth, levelHeight);
+            levelWidth = (levelWidth + 1) / 2;
+            levelHeight = (levelHeight + 1) / 2;
+        }
+    }
+
+    /**
+     * estimates the peak memory usage of {@link #tile(ImageReader)}.
+     * @param width width of the image
+     * @param bytesPerPixel bytes per pixel of a decoded band of rows
+     * @return estimated memory usage in bytes
+     */
+    static long estimateMemoryUsage(final int width, final int bytesPerPixel) {
+        //decoded rows, their copy, converted copy, all zoom levels, their held back bands and a band with context
+        return (long) width * TILE_SIZE * bytesPerPixel * 7;
+    }
+
+    /**
+     * checks if the image can be tiled while it is decoded.
+     * @param reader image reader with current image at pos 0
+     * @return true, if the image is a baseline JPEG or a non interlaced PNG with 8 bit samples
+     * @throws IOException if the image could not be read
+     */
+    static boolean isSupported(final ImageReader reader) throws IOException {
+        final String formatName = reader.getFormatName().toLowerCase(Locale.ROOT);
+        final boolean jpeg = formatName.equals("jpeg") || formatName.equals("jpg");
+        if (!jpeg && !formatName.equals("png")) {
+            return false;
+        }
+        final ImageTypeSpecifier imageType = reader.getImageTypes(0).next();
+        final SampleModel sampleModel = imageType.getSampleModel();
+        if (imageType.getBufferedImageType() == BufferedImage.TYPE_CUSTOM
+            || !(sampleModel instanceof ComponentSampleModel) || sampleModel.getDataType() != DataBuffer.TYPE_BYTE) {
+            return false;
+        }
+        final IIOMetadata metadata = reader.getImageMetadata(0);
+        final String metadataFormat = jpeg ? JPEG_METADATA_FORMAT : PNG_METADATA_FORMAT;
+        if (metadata == null || !metadataFormat.equals(metadata.getNativeMetadataFormatName())) {
+            return false;
+        }
+        final Node tree = metadata.getAsTree(metadataFormat);
+        return jpeg ? !JPEG_PROGRESSIVE.equals(getAttribute(tree, "sof", "process"))
+            : "none".equals(getAttribute(tree, "IHDR", "interlaceMethod"));
+    }
+
+    private static String getAttribute(final Node node, final String element, final String attribute) {
+        if (element.equals(node.getNodeName())) {
+            final Node value = node.getAttributes().getNamedItem(attribute);
+            return value == null ? null : value.getNodeValue();
+        }
+        for (Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            final String value = getAttribute(child, element, attribute);
+            if (value != null) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * decodes the image and writes all of its tiles.
+     * @param reader image reader with current image at pos 0
+     * @throws IOException if the image could not be read or tiles could not be written
+     */
+    void tile(final ImageReader reader) throws IOException {
+        final ImageTypeSpecifier imageType = reader.getImageTypes(0).next();
+        final BufferedImage rows = imageType.createBufferedImage(width, Math.min(TILE_SIZE, height));
+        final ComponentSampleModel sampleModel = (ComponentSampleModel) rows.getSampleModel();
+        final WritableRaster ringRaster = Raster.createWritableRaster(
+            new RowRingSampleModel(sampleModel.getDataType(), width, height, sampleModel.getPixelStride(),
+                sampleModel.getScanlineStride(), sampleModel.getBandOffsets(), rows.getHeight()),
+            rows.getRaster().getDataBuffer(), null);
+        final BufferedImage destination = new BufferedImage(rows.getColorModel(), ringRaster,
+            rows.isAlphaPremultiplied(), null);
+        final ImageReadParam param = reader.getDefaultReadParam();
+        param.setDestination(destination);
+        final RowListener listener = new RowListener(rows);
+        reader.addIIOReadUpdateListener(listener);
+        try {
+            reader.read(0, param);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            reader.removeIIOReadUpdateListener(listener);
+        }
+        if (nextRow != height) {
+            throw new IOException("Image ended after " + nextRow + " of " + height + " rows.");
+        }
+        LOGGER.debug("Decoded {} rows once.", height);
+    }
+
+    /**
+     * writes all tiles of the rows below the rows added before.
+     * @param band {@link MCRImage#getTileSize()} rows or the remaining rows of the image, with the width of the
+     *             image, is released after its tiles are written
+     * @throws IOException if tiles could not be written
+     */
+    void addRows(final BufferedImage band) throws IOException {
+        if (band.getWidth() != width || band.getHeight() != Math.min(TILE_SIZE, height - nextRow)) {
+            throw new IllegalArgumentException("Expected band of " + width + "x"
+                + Math.min(TILE_SIZE, height - nextRow) + " pixel at row " + nextRow + " but got "
+                + band.getWidth() + "x" + band.getHeight());
+        }
+        nextRow += band.getHeight();
+        levels[levels.length - 1].add(band);
+    }
+
+    private void rowsDecoded(final BufferedImage rows, final int minY, final int rowCount) throws IOException {
+        if (minY != nextRow) {
+            throw new IOException("Expected row " + nextRow + " but got row " + minY
+                + ", image is not decoded from top to bottom.");
+        }
+        nextRow += rowCount;
+        if (nextRow % rows.getHeight() != 0 && nextRow != height) {
+            return;
+        }
+        final int bandHeight = nextRow - (nextRow - 1) / rows.getHeight() * rows.getHeight();
+        final BufferedImage band = pool.borrow(width, bandHeight, rows.getType());
+        band.getRaster().setDataElements(0, 0, rows.getRaster().createChild(0, 0, width, bandHeight, 0, 0, null));
+        levels[levels.length - 1].add(output.convert(band));
+    }
+
+    /**
+     * Writes tiles and scales images.
+     */
+    interface Output {
+        /**
+         * converts a band of decoded rows to a format that can be written as JPEG.
+         * @param band the band of rows, may be released if converted
+         * @return <code>band</code> or the converted band
+         */
+        BufferedImage convert(BufferedImage band);
+
+        /**
+         * shrinks the image to 50%.
+         * @param image the image
+         * @return the shrinked image
+         */
+        BufferedImage scale(BufferedImage image);
+
+        /**
+         * returns the number of rows above and below an image that change its rows scaled by {@link #scale}.
+         * @return an even number of rows
+         */
+        int getScaleContext();
+
+        /**
+         * writes a tile.
+         * @param tile the tile
+         * @param x column of the tile
+         * @param y row of the tile
+         * @param z zoom level
+         * @throws IOException if the tile could not be written
+         */
+        void writeTile(BufferedImage tile, int x, int y, int z) throws IOException;
+
+        /**
+         * releases an image after all of its tiles are written.
+         * @param image the image
+         * @throws IOException if a tile could not be written
+         */
+        void release(BufferedImage image) throws IOException;
+    }
+
+    /**
+     * Collects the rows of a zoom level until a row of tiles is complete.
+     */
+    private final class Level {
+        private final int z;
+
+        private final int width;
+
+        private final int height;
+
+        private BufferedImage band;
+
+        private int rows;
+
+        private int tileRow;
+
+        /**
+         * completed band that is scaled when the context rows below it are available.
+         */
+        private BufferedImage pending;
+
+        /**
+         * last rows of the band above <code>pending</code>.
+         */
+        private BufferedImage above;
+
+        private Level(final int z, final int width, final int height) {
+            this.z = z;
+            this.width = width;
+            this.height = height;
+        }
+
+        private void add(final BufferedImage part) throws IOException {
+            add(part, 0, part.getHeight());
+        }
+
+        /**
+         * adds <code>count</code> rows of <code>part</code> starting at row <code>top</code>.
+         * @param part is released after its rows are copied
+         */
+        private void add(final BufferedImage part, final int top, final int count) throws IOException {
+            final int bandHeight = Math.min(TILE_SIZE, height - tileRow * TILE_SIZE);
+            if (band == null && top == 0 && part.getHeight() == bandHeight && count == bandHeight) {
+                band = part;
+            } else {
+                if (band == null) {
+                    band = pool.borrow(width, bandHeight, part.getType());
+                }
+                band.getRaster().setDataElements(0, rows, part.getRaster().createChild(0, top, width, count, 0, 0,
+                    null));
+                output.release(part);
+            }
+            rows += count;
+            if (rows < bandHeight) {
+                return;
+            }
+            final int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+            for (int x = 0; x < columns; x++) {
+                final int tileWidth = Math.min(TILE_SIZE, width - x * TILE_SIZE);
+                output.writeTile(band.getSubimage(x * TILE_SIZE, 0, tileWidth, bandHeight), x, tileRow, z);
+            }
+            final BufferedImage completed = band;
+            band = null;
+            rows = 0;
+            tileRow++;
+            if (z == 0) {
+                output.release(completed);
+                return;
+            }
+            if (pending != null) {
+                scalePending(completed);
+            }
+            pending = completed;
+            if (tileRow * TILE_SIZE >= height || output.getScaleContext() == 0) {
+                scalePending(null);
+            }
+        }
+
+        /**
+         * scales <code>pending</code> with the context rows above and below it.
+         * @param next the band below <code>pending</code> or <code>null</code> at the bottom of the image
+         */
+        private void scalePending(final BufferedImage next) throws IOException {
+            final int context = output.getScaleContext();
+            final int aboveRows = above == null ? 0 : above.getHeight();
+            final int belowRows = next == null ? 0 : Math.min(context, next.getHeight());
+            final int pendingRows = pending.getHeight();
+            BufferedImage source = pending;
+            if (aboveRows + belowRows > 0) {
+                source = pool.borrow(width, aboveRows + pendingRows + belowRows, pending.getType());
+                final WritableRaster raster = source.getRaster();
+                if (aboveRows > 0) {
+                    raster.setDataElements(0, 0, above.getRaster());
+                }
+                raster.setDataElements(0, aboveRows, pending.getRaster());
+                if (belowRows > 0) {
+                    raster.setDataElements(0, aboveRows + pendingRows,
+                        next.getRaster().createChild(0, 0, width, belowRows, 0, 0, null));
+                }
+            }
+            pool.release(above);
+            above = null;
+            if (next != null && context > 0) {
+                //pending is a full band here
+                above = pool.borrow(width, context, pending.getType());
+                above.getRaster().setDataElements(0, 0,
+                    pending.getRaster().createChild(0, pendingRows - context, width, context, 0, 0, null));
+            }
+            final BufferedImage scaled = output.scale(source);
+            if (source != pending) {
+                pool.release(source);
+            }
+            output.release(pending);
+            pending = null;
+            levels[z - 1].add(scaled, aboveRows / 2, (pendingRows + 1) / 2);
+        }
+    }
+
+    /**
+     * Tiles every band of rows as soon as it is decoded.
+     */
+    private final class RowListener implements IIOReadUpdateListener {
+        private final BufferedImage rows;
+
+        private RowListener(final BufferedImage rows) {
+            this.rows = rows;
+        }
+
+        @Override
+        public void imageUpdate(final ImageReader source, final BufferedImage theImage, final int minX,
+            final int minY, final int width, final int height, final int periodX, final int periodY,
+            final int[] bands) {
+            try {
+                if (periodY != 1) {
+                    throw new IOException("Image is not decoded row by row.");
+                }
+                rowsDecoded(rows, minY, height);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+
+        @Override
+        public void passStarted(final ImageReader source, final BufferedImage theImage, final int pass,
+            final int minPass, final int maxPass, final int minX, final int minY, final int periodX,
+            final int periodY, final int[] bands) {
+            //every pass is checked in imageUpdate
+        }
+
+        @Override
+        public void passComplete(final ImageReader source, final BufferedImage theImage) {
+            //bands of rows are completed in imageUpdate
+        }
+
+        @Override
+        public void thumbnailPassStarted(final ImageReader source, final BufferedImage theThumbnail,
+            final int pass, final int minPass, final int maxPass, final int minX, final int minY, final int periodX,
+            final int periodY, final int[] bands) {
+            //thumbnails are not read
+        }
+
+        @Override
+        public void thumbnailUpdate(final ImageReader source, final BufferedImage theThumbnail, final int minX,
+            final int minY, final int width, final int height, final int periodX, final int periodY,
+            final int[] bands) {
+            //thumbnails are not read
+        }
+
+        @Override
+        public void thumbnailPassComplete(final ImageReader source, final BufferedImage theThumbnail) {
+            //thumbnails are not read
+        }
+    }
+
+    /**
+     * A sample model for the full image height that stores rows in a ring of <code>rows</code> rows.
+     *
+     * Image readers write decoded rows through the {@link SampleModel}, so row <code>y</code> ends up at row
+     * <code>y % rows</code> of a small {@link DataBuffer}.
+     */
+    private static final class RowRingSampleModel extends ComponentSampleModel {
+        private final int rows;
+
+        private RowRingSampleModel(final int dataType, final int width, final int height, final int pixelStride,
+            final int scanlineStride, final int[] bandOffsets, final int rows) {
+            super(dataType, width, height, pixelStride, scanlineStride, bandOffsets);
+            this.rows = rows;
+        }
+
+        private int ring(final int y) {
+            return y % rows;
+        }
+
+        @Override
+        public SampleModel createSubsetSampleModel(final int[] bands) {
+            final int[] subsetOffsets = new int[bands.length];
+            for (int i = 0; i < bands.length; i++) {
+                subsetOffsets[i] = getBandOffsets()[bands[i]];
+            }
+            return new RowRingSampleModel(getDataType(), getWidth(), getHeight(), getPixelStride(),
+                getScanlineStride(), subsetOffsets, rows);
+        }
+
+        @Override
+        public Object getDataElements(final int x, final int y, final Object obj, final DataBuffer data) {
+            return super.getDataElements(x, ring(y), obj, data);
+        }
+
+        @Override
+        public void setDataElements(final int x, final int y, final Object obj, final DataBuffer data) {
+            super.setDataElements(x, ring(y), obj, data);
+        }
+
+        @Override
+        public int[] getPixel(final int x, final int y, final int[] iArray, final DataBuffer data) {
+            return super.getPixel(x, ring(y), iArray, data);
+        }
+
+        @Override
+        public void setPixel(final int x, final int y, final int[] iArray, final DataBuffer data) {
+            super.setPixel(x, ring(y), iArray, data);
+        }
+
+        @Override
+        public int[] getPixels(final int x, final int y, final int w, final int h, final int[] iArray,
+            final DataBuffer data) {
+            final int rowLength = w * getNumBands();
+            final int[] pixels = iArray == null ? new int[rowLength * h] : iArray;
+            final int[] row = h == 1 ? pixels : new int[rowLength];
+            for (int i = 0; i < h; i++) {
+                super.getPixels(x, ring(y + i), w, 1, row, data);
+                if (row != pixels) {
+                    System.arraycopy(row, 0, pixels, i * rowLength, rowLength);
+                }
+            }
+            return pixels;
+        }
+
+        @Override
+        public void setPixels(final int x, final int y, final int w, final int h, final int[] iArray,
+            final DataBuffer data) {
+            if (h == 1 && data instanceof DataBufferByte) {
+                //image readers set decoded rows with this method
+                final byte[] bytes = ((DataBufferByte) data).getData();
+                int pos = data.getOffset() + ring(y) * scanlineStride + x * pixelStride;
+                int i = 0;
+                for (int end = pos + w * pixelStride; pos < end; pos += pixelStride) {
+                    for (int b = 0; b < numBands; b++) {
+                        bytes[pos + bandOffsets[b]] = (byte) iArray[i++];
+                    }
+                }
+                return;
+            }
+            final int rowLength = w * getNumBands();
+            final int[] row = h == 1 ? iArray : new int[rowLength];
+            for (int i = 0; i < h; i++) {
+                if (row != iArray) {
+                    System.arraycopy(iArray, i * rowLength, row, 0, rowLength);
+                }
+                super.setPixels(x, ring(y + i), w, 1, row, data);
+            }
+        }
+
+        @Override
+        public int getSample(final int x, final int y, final int b, final DataBuffer data) {
+            return super.getSample(x, ring(y), b, data);
+        }
+
+        @Override
+        public float getSampleFloat(final int x, final int y, final int b, final DataBuffer data) {
+            return super.getSampleFloat(x, ring(y), b, data);
+        }
+
+        @Override
+        public double getSampleDouble(final int x, final int y, final int b, final DataBuffer data) {
+            return super.getSampleDouble(x, ring(y), b, data);
+        }
+
+        @Override
+        public void setSample(final int x, final int y, final int b, final int s, final DataBuffer data) {
+            super.setSample(x, ring(y), b, s, data);
+        }
+
+        @Override
+        public void setSample(final int x, final int y, final int b, final float s, final DataBuffer data) {
+            super.setSample(x, ring(y), b, s, data);
+        }
+
+        @Override
+        public void setSample(final int x, final int y, final int b, final double s, final DataBuffer data) {
+            super.setSample(x, ring(y), b, s, data);
+        }
+
+        @Override
+        public int[] getSamples(final int x, final int y, final int w, final int h, final int b, final int[] iArray,
+            final DataBuffer data) {
+            final int[] samples = iArray == null ? new int[w * h] : iArray;
+            final int[] row = h == 1 ? samples : new int[w];
+            for (int i = 0; i < h; i++) {
+                super.getSamples(x, ring(y + i), w, 1, b, row, data);
+                if (row != samples) {
+                    System.arraycopy(row, 0, samples, i * w, w);
+                }
+            }
+            return samples;
+        }
+
+        @Override
+        public void setSamples(final int x, final int y, final int w, final int h, final int b, final int[] iArray,
+            final DataBuffer data) {
+            final int[] row = h == 1 ? iArray : new int[w];
+            for (int i = 0; i < h; i++) {
+                if (row != iArray) {
+                    System.arraycopy(iArray, i * w, row, 0, w);
+                }
+                super.setSamples(x, ring(y + i), w, 1, b, row, data);
+            }
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            return super.equals(o) && o instanceof RowRingSampleModel && ((RowRingSampleModel) o).rows == rows;
+        }
+
+        @Override
+        public int hashCode() {
+            return super.hashCode() * 31 + rows;
+        }
+    }
+}
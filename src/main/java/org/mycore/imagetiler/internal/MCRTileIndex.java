@@ -0,0 +1,143 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Collects the position of all tiles in a <code>.iview2</code> file and writes them as binary index.
+ *
+ * The index is stored as the last entry of the ZIP file, right before the central directory. All numbers are
+ * little endian:
+ * <pre>
+ * records  for every zoom level z, row y and column x: long data offset (-1 if missing), int length
+ * levels   for every zoom level z: int columns, int rows
+ * trailer  int tile count, int number of zoom levels, int version, int magic
+ * </pre>
+ * A reader finds the trailer right before the central directory and the record of a tile by simple arithmetic.
+ *
+ * This class is thread safe.
+ */
+public final class MCRTileIndex {
+
+    /**
+     * <code>IVIX</code> in little endian byte order.
+     */
+    public static final int MAGIC = 0x58495649;
+
+    /**
+     * current version of the index format.
+     */
+    public static final int VERSION = 1;
+
+    /**
+     * size of the record of a single tile in bytes.
+     */
+    public static final int RECORD_SIZE = Long.BYTES + Integer.BYTES;
+
+    /**
+     * size of the columns and rows of a single zoom level in bytes.
+     */
+    public static final int LEVEL_SIZE = 2 * Integer.BYTES;
+
+    /**
+     * size of the trailer in bytes.
+     */
+    public static final int TRAILER_SIZE = 4 * Integer.BYTES;
+
+    private static final int INITIAL_CAPACITY = 256;
+
+    private int[] tileZ = new int[INITIAL_CAPACITY];
+
+    private int[] tileY = new int[INITIAL_CAPACITY];
+
+    private int[] tileX = new int[INITIAL_CAPACITY];
+
+    private long[] offset = new long[INITIAL_CAPACITY];
+
+    private int[] length = new int[INITIAL_CAPACITY];
+
+    private int count;
+
+    /**
+     * adds a tile to the index.
+     * @param z zoom level
+     * @param y row of the tile in zoom level <code>z</code>
+     * @param x column of the tile in zoom level <code>z</code>
+     * @param dataOffset position of the tile data in the ZIP file
+     * @param dataLength length of the tile data
+     */
+    public synchronized void add(final int z, final int y, final int x, final long dataOffset,
+        final int dataLength) {
+        if (count == offset.length) {
+            final int capacity = count * 2;
+            tileZ = Arrays.copyOf(tileZ, capacity);
+            tileY = Arrays.copyOf(tileY, capacity);
+            tileX = Arrays.copyOf(tileX, capacity);
+            offset = Arrays.copyOf(offset, capacity);
+            length = Arrays.copyOf(length, capacity);
+        }
+        tileZ[count] = z;
+        tileY[count] = y;
+        tileX[count] = x;
+        offset[count] = dataOffset;
+        length[count] = dataLength;
+        count++;
+    }
+
+    /**
+     * @return the binary index
+     */
+    public synchronized byte[] toByteArray() {
+        int levels = 0;
+        for (int i = 0; i < count; i++) {
+            levels = Math.max(levels, tileZ[i] + 1);
+        }
+        final int[] columns = new int[levels];
+        final int[] rows = new int[levels];
+        for (int i = 0; i < count; i++) {
+            columns[tileZ[i]] = Math.max(columns[tileZ[i]], tileX[i] + 1);
+            rows[tileZ[i]] = Math.max(rows[tileZ[i]], tileY[i] + 1);
+        }
+        final int[] levelOffset = new int[levels + 1];
+        for (int z = 0; z < levels; z++) {
+            levelOffset[z + 1] = levelOffset[z] + columns[z] * rows[z];
+        }
+        final int slots = levelOffset[levels];
+        final ByteBuffer index = ByteBuffer
+            .allocate(slots * RECORD_SIZE + levels * LEVEL_SIZE + TRAILER_SIZE)
+            .order(ByteOrder.LITTLE_ENDIAN);
+        for (int slot = 0; slot < slots; slot++) {
+            index.putLong(slot * RECORD_SIZE, -1);
+        }
+        for (int i = 0; i < count; i++) {
+            final int slot = levelOffset[tileZ[i]] + tileY[i] * columns[tileZ[i]] + tileX[i];
+            index.putLong(slot * RECORD_SIZE, offset[i]);
+            index.putInt(slot * RECORD_SIZE + Long.BYTES, length[i]);
+        }
+        index.position(slots * RECORD_SIZE);
+        for (int z = 0; z < levels; z++) {
+            index.putInt(columns[z]).putInt(rows[z]);
+        }
+        index.putInt(count).putInt(levels).putInt(VERSION).putInt(MAGIC);
+        return index.array();
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler.internal;
+
+import java.awt.image.BufferedImage;
+
+import org.mycore.imagetiler.MCRStoredZipWriter;
+
+/**
+ * Java Flight Recorder events of the image tiler.
+ *
+ * The module only has a static dependency on <code>jdk.jfr</code>. If the module is not available at runtime,
+ * for example in a custom runtime image, events are not created and the flight recorder classes are never loaded.
+ * Otherwise every event delegates to its counterpart in {@link MCRFlightRecorderEvents}.
+ */
+public final class MCRTilingEvents {
+
+    /**
+     * true, if the <code>jdk.jfr</code> module is available.
+     */
+    private static final boolean ENABLED = isFlightRecorderAvailable();
+
+    private MCRTilingEvents() {
+    }
+
+    private static boolean isFlightRecorderAvailable() {
+        return ModuleLayer.boot().findModule("jdk.jfr")
+            .filter(MCRTilingEvents.class.getModule()::canRead)
+            .isPresent();
+    }
+
+    /**
+     * Tiling of an image from opening the image file to the finished <code>.iview2</code> file.
+     */
+    public static final class ImageTiling {
+        private final MCRFlightRecorderEvents.ImageTiling event = ENABLED
+            ? new MCRFlightRecorderEvents.ImageTiling()
+            : null;
+
+        /**
+         * starts the timing of the event.
+         */
+        public void begin() {
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        /**
+         * ends the event and commits it, if it is enabled.
+         * @param derivate derivate ID
+         * @param path path of the image in the derivate
+         * @param width width of the image or 0, if the image could not be read
+         * @param height height of the image or 0, if the image could not be read
+         * @param zoomLevels highest zoom level
+         * @param tiles number of tiles written
+         * @param bytes size of the tiles written
+         */
+        public void commit(final String derivate, final String path, final int width, final int height,
+            final int zoomLevels, final long tiles, final long bytes) {
+            if (event != null) {
+                event.commit(derivate, path, width, height, zoomLevels, tiles, bytes);
+            }
+        }
+    }
+
+    /**
+     * Reading and decoding a region of the source image: a mega tile, the whole image or a reduced resolution
+     * overview.
+     */
+    public static final class MegaTileDecode {
+        private final MCRFlightRecorderEvents.MegaTileDecode event = ENABLED
+            ? new MCRFlightRecorderEvents.MegaTileDecode()
+            : null;
+
+        /**
+         * starts the timing of the event.
+         */
+        public void begin() {
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        /**
+         * ends the event and commits it, if it is enabled.
+         * @param derivate derivate ID
+         * @param path path of the image in the derivate
+         * @param x left edge of the region
+         * @param y upper edge of the region
+         * @param image the decoded image, or <code>null</code> if the region was decoded in bands
+         * @param width width of the decoded region
+         * @param height height of the decoded region
+         */
+        public void commit(final String derivate, final String path, final int x, final int y,
+            final BufferedImage image, final int width, final int height) {
+            if (event != null) {
+                event.commit(derivate, path, x, y, image, width, height);
+            }
+        }
+    }
+
+    /**
+     * Scaling an image down to the next zoom level.
+     */
+    public static final class Scale {
+        private final MCRFlightRecorderEvents.Scale event = ENABLED ? new MCRFlightRecorderEvents.Scale() : null;
+
+        /**
+         * starts the timing of the event.
+         */
+        public void begin() {
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        /**
+         * ends the event and commits it, if it is enabled.
+         * @param derivate derivate ID
+         * @param path path of the image in the derivate
+         * @param profile name of the scaling profile
+         * @param source the image that was scaled
+         * @param scaled the scaled image
+         */
+        public void commit(final String derivate, final String path, final String profile,
+            final BufferedImage source, final BufferedImage scaled) {
+            if (event != null) {
+                event.commit(derivate, path, profile, source, scaled);
+            }
+        }
+    }
+
+    /**
+     * JPEG encoding of a single tile.
+     */
+    public static final class TileEncode {
+        private final MCRFlightRecorderEvents.TileEncode event = ENABLED
+            ? new MCRFlightRecorderEvents.TileEncode()
+            : null;
+
+        /**
+         * starts the timing of the event.
+         */
+        public void begin() {
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        /**
+         * ends the event and commits it, if it is enabled.
+         * @param derivate derivate ID
+         * @param path path of the image in the derivate
+         * @param tileName name of the tile
+         * @param image the tile
+         * @param bytes size of the encoded tile
+         */
+        public void commit(final String derivate, final String path, final String tileName,
+            final BufferedImage image, final long bytes) {
+            if (event != null) {
+                event.commit(derivate, path, tileName, image, bytes);
+            }
+        }
+    }
+
+    /**
+     * Writing metadata, tile index and ZIP central directory of the <code>.iview2</code> file.
+     */
+    public static final class ArchiveFinalization {
+        private final MCRFlightRecorderEvents.ArchiveFinalization event = ENABLED
+            ? new MCRFlightRecorderEvents.ArchiveFinalization()
+            : null;
+
+        /**
+         * starts the timing of the event.
+         */
+        public void begin() {
+            if (event != null) {
+                event.begin();
+            }
+        }
+
+        /**
+         * ends the event and commits it, if it is enabled.
+         * @param derivate derivate ID
+         * @param path path of the image in the derivate
+         * @param zout the finished ZIP writer of the <code>.iview2</code> file
+         */
+        public void commit(final String derivate, final String path, final MCRStoredZipWriter zout) {
+            if (event != null) {
+                event.commit(derivate, path, zout);
+            }
+        }
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.mycore.imagetiler.internal;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Locates the central directory and single entries of a ZIP file without parsing the whole central directory.
+ *
+ * Small entries like <code>imageinfo.xml</code> are written at the end of a <code>.iview2</code> file, so their
+ * central directory records are found quickly by searching the central directory backwards.
+ */
+public final class MCRZipDirectory {
+
+    private static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+    private static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+    private static final int END_SIGNATURE = 0x06054b50;
+
+    private static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+    private static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+    private static final int LOCAL_HEADER_SIZE = 30;
+
+    private static final int CENTRAL_HEADER_SIZE = 46;
+
+    private static final int END_SIZE = 22;
+
+    private static final int ZIP64_END_SIZE = 56;
+
+    private static final int ZIP64_LOCATOR_SIZE = 20;
+
+    private static final int ZIP64_EXTRA_ID = 0x0001;
+
+    private static final int MAX_COMMENT_SIZE = 0xFFFF;
+
+    private static final long ZIP32_MAX = 0xFFFFFFFFL;
+
+    private static final int METHOD_STORED = 0;
+
+    private static final int METHOD_DEFLATED = 8;
+
+    /**
+     * size of the parts of the central directory that are searched for an entry.
+     */
+    private static final int SEARCH_CHUNK_SIZE = 16 * 1024;
+
+    /**
+     * entries larger than this are not read into memory.
+     */
+    private static final int MAX_ENTRY_SIZE = 1 << 26;
+
+    private final long entries;
+
+    private final long offset;
+
+    private final long size;
+
+    private MCRZipDirectory(final long entries, final long offset, final long size) {
+        this.entries = entries;
+        this.offset = offset;
+        this.size = size;
+    }
+
+    /**
+     * reads the end of central directory record.
+     * @param reader reads parts of the ZIP file
+     * @param fileSize size of the ZIP file
+     * @return number of entries, position and size of the central directory
+     * @throws IOException if the file could not be read or is not a ZIP file
+     */
+    public static MCRZipDirectory readEnd(final PositionalReader reader, final long fileSize) throws IOException {
+        final int tailSize = (int) Math.min(fileSize, END_SIZE + MAX_COMMENT_SIZE + ZIP64_LOCATOR_SIZE);
+        final ByteBuffer tail = reader.read(fileSize - tailSize, tailSize);
+        int endPos = -1;
+        for (int pos = tailSize - END_SIZE; pos >= 0; pos--) {
+            if (tail.getInt(pos) == END_SIGNATURE) {
+                endPos = pos;
+                break;
+            }
+        }
+        if (endPos < 0) {
+            throw new IOException("Not a ZIP file.");
+        }
+        final int locatorPos = endPos - ZIP64_LOCATOR_SIZE;
+        if (locatorPos >= 0 && tail.getInt(locatorPos) == ZIP64_LOCATOR_SIGNATURE) {
+            final ByteBuffer zip64End = reader.read(tail.getLong(locatorPos + 8), ZIP64_END_SIZE);
+            if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+                throw new IOException("Invalid ZIP64 end of central directory record.");
+            }
+            return new MCRZipDirectory(zip64End.getLong(32), zip64End.getLong(48), zip64End.getLong(40));
+        }
+        return new MCRZipDirectory(Short.toUnsignedInt(tail.getShort(endPos + 10)),
+            Integer.toUnsignedLong(tail.getInt(endPos + 16)), Integer.toUnsignedLong(tail.getInt(endPos + 12)));
+    }
+
+    /**
+     * reads a single entry of a ZIP file.
+     * @param channel the ZIP file
+     * @param name name of the entry
+     * @return the content of the entry or <code>null</code>, if there is no such entry
+     * @throws IOException if the file could not be read or is not a ZIP file
+     */
+    public static byte[] readEntry(final FileChannel channel, final String name) throws IOException {
+        final PositionalReader reader = (position, length) -> read(channel, position, length);
+        final MCRZipDirectory cd = readEnd(reader, channel.size());
+        final byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+        final int recordSize = CENTRAL_HEADER_SIZE + nameBytes.length;
+        //search backwards, consecutive chunks overlap so that every record header is within a chunk
+        long chunkEnd = cd.offset + cd.size;
+        while (chunkEnd - cd.offset >= recordSize) {
+            final long chunkStart = Math.max(cd.offset, chunkEnd - Math.max(SEARCH_CHUNK_SIZE, 2 * recordSize));
+            final ByteBuffer chunk = reader.read(chunkStart, (int) (chunkEnd - chunkStart));
+            for (int pos = chunk.limit() - recordSize; pos >= 0; pos--) {
+                if (chunk.getInt(pos) == CENTRAL_HEADER_SIGNATURE
+                    && Short.toUnsignedInt(chunk.getShort(pos + 28)) == nameBytes.length
+                    && matches(chunk, pos + CENTRAL_HEADER_SIZE, nameBytes)) {
+                    return readEntry(reader, chunkStart + pos, nameBytes.length);
+                }
+            }
+            if (chunkStart == cd.offset) {
+                break;
+            }
+            chunkEnd = chunkStart + recordSize - 1;
+        }
+        return null;
+    }
+
+    private static byte[] readEntry(final PositionalReader reader, final long recordPos, final int nameLength)
+        throws IOException {
+        final ByteBuffer record = reader.read(recordPos, CENTRAL_HEADER_SIZE);
+        final int extraLength = Short.toUnsignedInt(record.getShort(30));
+        final int method = Short.toUnsignedInt(record.getShort(10));
+        long compressedSize = Integer.toUnsignedLong(record.getInt(20));
+        long size = Integer.toUnsignedLong(record.getInt(24));
+        long headerOffset = Integer.toUnsignedLong(record.getInt(42));
+        if (extraLength > 0) {
+            final ByteBuffer extra = reader.read(recordPos + CENTRAL_HEADER_SIZE + nameLength, extraLength);
+            int extraPos = 0;
+            while (extraPos + 4 <= extraLength) {
+                final int id = Short.toUnsignedInt(extra.getShort(extraPos));
+                if (id == ZIP64_EXTRA_ID) {
+                    int valuePos = extraPos + 4;
+                    if (size == ZIP32_MAX) {
+                        size = extra.getLong(valuePos);
+                        valuePos += Long.BYTES;
+                    }
+                    if (compressedSize == ZIP32_MAX) {
+                        compressedSize = extra.getLong(valuePos);
+                        valuePos += Long.BYTES;
+                    }
+                    if (headerOffset == ZIP32_MAX) {
+                        headerOffset = extra.getLong(valuePos);
+                    }
+                }
+                extraPos += 4 + Short.toUnsignedInt(extra.getShort(extraPos + 2));
+            }
+        }
+        if (size > MAX_ENTRY_SIZE || compressedSize > MAX_ENTRY_SIZE) {
+            throw new IOException("ZIP entry is too large: " + size);
+        }
+        final ByteBuffer header = reader.read(headerOffset, LOCAL_HEADER_SIZE);
+        if (header.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+            throw new IOException("Invalid local header at " + headerOffset);
+        }
+        final long dataOffset = headerOffset + LOCAL_HEADER_SIZE + Short.toUnsignedInt(header.getShort(26))
+            + Short.toUnsignedInt(header.getShort(28));
+        final ByteBuffer data = reader.read(dataOffset, (int) compressedSize);
+        switch (method) {
+            case METHOD_STORED:
+                final byte[] bytes = new byte[data.remaining()];
+                data.get(bytes);
+                return bytes;
+            case METHOD_DEFLATED:
+                return inflate(data, (int) size);
+            default:
+                throw new IOException("Unsupported compression method: " + method);
+        }
+    }
+
+    private static byte[] inflate(final ByteBuffer data, final int size) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(data);
+            final byte[] inflated = new byte[size];
+            int length = 0;
+            while (length < size && !inflater.finished()) {
+                final int count = inflater.inflate(inflated, length, size - length);
+                if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += count;
+            }
+            if (length < size) {
+                throw new IOException("Truncated ZIP entry.");
+            }
+            return inflated;
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid ZIP entry.", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private static boolean matches(final ByteBuffer buffer, final int pos, final byte[] name) {
+        for (int i = 0; i < name.length; i++) {
+            if (buffer.get(pos + i) != name[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static ByteBuffer read(final FileChannel channel, final long position, final int length)
+        throws IOException {
+        if (position < 0) {
+            throw new IOException("Invalid position in ZIP file: " + position);
+        }
+        final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Unexpected end of ZIP file.");
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /**
+     * @return number of entries in the ZIP file
+     */
+    public long getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return position of the central directory
+     */
+    public long getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return size of the central directory in bytes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Reads a part of a ZIP file.
+     */
+    @FunctionalInterface
+    public interface PositionalReader {
+        /**
+         * reads <code>length</code> bytes at <code>position</code>.
+         * @param position position in the file
+         * @param length number of bytes
+         * @return a little endian buffer with <code>length</code> bytes remaining from position 0
+         * @throws IOException if the file could not be read
+         */
+        ByteBuffer read(long position, int length) throws IOException;
+    }
+}
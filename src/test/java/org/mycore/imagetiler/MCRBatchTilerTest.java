@@ -0,0 +1,149 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests {@link MCRBatchTiler}.
+ */
+public class MCRBatchTilerTest {
+    private final Path tileDir = Paths.get("target/batchTileDir");
+
+    /**
+     * Removes the tile directory.
+     * @throws IOException if tile directory could not be deleted
+     */
+    @After
+    public void tearDown() throws IOException {
+        if (Files.exists(tileDir)) {
+            try (Stream<Path> paths = Files.walk(tileDir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Tiles images with a memory budget so small that only one job may run at a time.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testTile() throws Exception {
+        final List<MCRBatchTiler.Job> jobs = Arrays.asList(
+            new MCRBatchTiler.Job(Paths.get("src/test/resources/Bay_of_Noboto.jpg"), "derivateID", "Noboto.jpg"),
+            new MCRBatchTiler.Job(Paths.get("src/test/resources/5x5.jpg"), "derivateID", "5x5.jpg"),
+            new MCRBatchTiler.Job(Paths.get("src/test/resources/tiff16.tif"), "derivateID", "tiff16.tif"),
+            new MCRBatchTiler.Job(Paths.get("src/test/resources/log4j2-test.xml"), "derivateID", "log4j2.xml"));
+        final MCRBatchTiler batchTiler = new MCRBatchTiler(tileDir);
+        batchTiler.setMemoryBudget(1);
+        batchTiler.setMaxConcurrentJobs(2);
+        final List<MCRBatchTiler.Result> results = batchTiler.tile(jobs);
+        assertEquals(jobs.size(), results.size());
+        for (MCRBatchTiler.Result result : results.subList(0, 3)) {
+            assertNull("Job failed: " + result, result.getFailure());
+            assertTrue("Memory usage must be estimated: " + result, result.getEstimatedMemoryUsage() > 0);
+            final MCRTiledPictureProps props = result.getProperties();
+            assertNotNull(props);
+            assertNotNull("Metrics must be collected: " + result, result.getTileMetrics());
+            assertEquals(MCRImage.getTileCount(props.getWidth(), props.getHeight()), props.getTilesCount());
+            final MCRBatchTiler.Job job = result.getJob();
+            assertTrue(Files.exists(MCRImage.getTiledFile(tileDir, job.getDerivateID(), job.getImagePath())));
+        }
+        assertNotNull("Tiling a non image file must fail.", results.get(3).getFailure());
+    }
+
+    /**
+     * Every job gets the memory reserved for it, a job running alone gets the whole budget.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testMemoryBudget() throws Exception {
+        final long budget = 64L << 20;
+        final List<MCRBatchTiler.Job> jobs = Arrays.asList(
+            new MCRBatchTiler.Job(Paths.get("src/test/resources/5x5.jpg"), "derivateID", "5x5.jpg"),
+            new MCRBatchTiler.Job(Paths.get("src/test/resources/tiff16.tif"), "derivateID", "tiff16.tif"));
+        final MCRBatchTiler batchTiler = new MCRBatchTiler(tileDir);
+        batchTiler.setMemoryBudget(budget);
+        batchTiler.setMaxConcurrentJobs(1);
+        for (MCRBatchTiler.Result result : batchTiler.tile(jobs)) {
+            assertNull("Job failed: " + result, result.getFailure());
+            assertEquals("Job runs alone: " + result, budget, result.getMemoryBudget());
+        }
+        batchTiler.setMaxConcurrentJobs(2);
+        final List<MCRBatchTiler.Result> results = batchTiler.tile(jobs);
+        final MCRBatchTiler.Result first = results.get(0);
+        assertNull("Job failed: " + first, first.getFailure());
+        assertEquals("First job shares the budget: " + first, first.getEstimatedMemoryUsage(),
+            first.getMemoryBudget());
+        assertEquals(budget, batchTiler.tile(jobs.subList(1, 2)).get(0).getMemoryBudget());
+    }
+
+    /**
+     * Tiles images again only if the source or the settings changed.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testSkipUpToDate() throws Exception {
+        Files.createDirectories(tileDir);
+        final Path source = tileDir.resolve("tiff16.tif");
+        Files.copy(Paths.get("src/test/resources/tiff16.tif"), source);
+        final List<MCRBatchTiler.Job> jobs = Arrays.asList(
+            new MCRBatchTiler.Job(Paths.get("src/test/resources/5x5.jpg"), "derivateID", "5x5.jpg"),
+            new MCRBatchTiler.Job(source, "derivateID", "tiff16.tif"));
+        final MCRBatchTiler batchTiler = new MCRBatchTiler(tileDir);
+        batchTiler.setSkipUpToDate(true);
+        for (MCRBatchTiler.Result result : batchTiler.tile(jobs)) {
+            assertFalse("Job must run: " + result, result.isUpToDate());
+        }
+        final List<MCRBatchTiler.Result> results = batchTiler.tile(jobs);
+        for (MCRBatchTiler.Result result : results) {
+            assertTrue("Job must be skipped: " + result, result.isUpToDate());
+            assertEquals(MCRImage.getTileCount(result.getProperties().getWidth(),
+                result.getProperties().getHeight()), result.getProperties().getTilesCount());
+        }
+        Files.setLastModifiedTime(source, FileTime.fromMillis(System.currentTimeMillis() - 60_000));
+        final List<MCRBatchTiler.Result> changed = batchTiler.tile(jobs);
+        assertTrue(changed.get(0).isUpToDate());
+        assertFalse(changed.get(1).isUpToDate());
+        assertNull(changed.get(1).getFailure());
+
+        final MCRImage image = MCRImage.getInstance(source, "derivateID", "tiff16.tif");
+        image.setTileDir(tileDir);
+        assertTrue(image.isUpToDate());
+        image.setScalingProfile(MCRScalingProfile.BOX);
+        assertFalse("Settings changed", image.isUpToDate());
+    }
+}
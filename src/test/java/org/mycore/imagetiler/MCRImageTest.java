@@ -17,11 +17,15 @@
  */
 package org.mycore.imagetiler;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 import static org.junit.Assert.assertTrue;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
@@ -30,11 +34,25 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.BitSet;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -42,6 +60,12 @@ import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.plugins.tiff.BaselineTIFFTagSet;
+import javax.imageio.plugins.tiff.TIFFDirectory;
+import javax.imageio.plugins.tiff.TIFFField;
+import javax.imageio.plugins.tiff.TIFFTag;
+import javax.imageio.plugins.tiff.TIFFTagSet;
 import javax.imageio.stream.ImageOutputStream;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -50,14 +74,22 @@ import org.apache.commons.io.FilenameUtils;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.mycore.imagetiler.internal.MCRHalvingScaler;
+import org.mycore.imagetiler.internal.MCRMemSaveImage;
 import org.w3c.dom.Document;
 
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
 /**
  * Provides a good test case for {@link MCRImage}.
  * @author Thomas Scheffler (yagee)
  *
  */
 public class MCRImageTest {
+    private static final String DERIVATE_ID = "derivateID";
+
     private final HashMap<String, String> pics = new HashMap<>();
 
     private Path tileDir;
@@ -136,7 +168,8 @@ public class MCRImageTest {
             final MCRTiledPictureProps props = MCRTiledPictureProps.getInstanceFromFile(iviewFile);
             final int tilesCount;
             try (final ZipFile iviewImage = new ZipFile(iviewFile.toFile())) {
-                tilesCount = iviewImage.size() - 1;
+                //all entries but imageinfo.xml and tile index
+                tilesCount = iviewImage.size() - 2;
                 ZipEntry imageInfoXML = iviewImage.getEntry(MCRTiledPictureProps.IMAGEINFO_XML);
                 DocumentBuilder documentBuilder = DocumentBuilderFactory.newInstance().newDocumentBuilder();
                 Document imageInfo = documentBuilder.parse(iviewImage.getInputStream(imageInfoXML));
@@ -168,6 +201,510 @@ public class MCRImageTest {
         }
     }
 
+    /**
+     * Tests that {@link MCRImage#setTileEncoderThreads(int)} writes the same tiles in the same order.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testParallelTileEncoding() throws Exception {
+        final String derivateID = "derivateID";
+        final String imagePath = "imagePath/" + FilenameUtils.getName(pics.get("small"));
+        final Path iviewFile = MCRImage.getTiledFile(tileDir, derivateID, imagePath);
+        final MCRImage sequentialImage = MCRImage.getInstance(Paths.get(pics.get("small")), derivateID, imagePath);
+        sequentialImage.setTileDir(tileDir);
+        sequentialImage.tile();
+        final List<String> expectedEntries = getEntryNames(iviewFile);
+        final MCRImage parallelImage = MCRImage.getInstance(Paths.get(pics.get("small")), derivateID, imagePath);
+        parallelImage.setTileDir(tileDir);
+        parallelImage.setTileEncoderThreads(4);
+        final MCRTiledPictureProps props = parallelImage.tile();
+        assertEquals("Parallel encoding must write tiles in the same order.", expectedEntries,
+            getEntryNames(iviewFile));
+        assertEquals(MCRImage.getTileCount(props.getWidth(), props.getHeight()), props.getTilesCount());
+    }
+
+    /**
+     * Tests that {@link MCRImage#setDecoderThreads(int)} produces the same tiles as a single decoder thread.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testParallelDecoding() throws Exception {
+        final Path tiffFile = createGradientImage("tif", 2100, 2100);
+        final Map<String, byte[]> expectedTiles = tile(tiffFile, image -> {
+        });
+        assertSameTiles(expectedTiles, tile(tiffFile, image -> image.setDecoderThreads(4)));
+    }
+
+    /**
+     * Tests that images reused for many mega tiles are not released before their tiles are encoded.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testRasterPool() throws Exception {
+        final Path tiffFile = createGradientImage("tif", 2100, 2100);
+        final Map<String, byte[]> expectedTiles = tile(tiffFile, image -> image.setMemoryBudget(1));
+        assertSameTiles(expectedTiles, tile(tiffFile, image -> {
+            image.setMemoryBudget(1);
+            image.setTileEncoderThreads(4);
+        }));
+    }
+
+    /**
+     * Tests that a PNG decoded once in bands of rows results in the same tiles as a single mega tile.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testStreaming() throws Exception {
+        final Path imageFile = createGradientImage("png", 3000, 2900);
+        final Map<String, byte[]> expectedTiles = tile(imageFile, image -> image.setMemoryBudget(1L << 30));
+        assertEquals(MCRImage.getTileCount(3000, 2900), getTileCount(expectedTiles));
+        assertSameTiles(expectedTiles, tile(imageFile, image -> {
+            image.setMemoryBudget(1);
+            image.setTileEncoderThreads(4);
+        }));
+    }
+
+    /**
+     * Tests that the lowest zoom levels stitched off heap result in the same tiles as stitched on the heap.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testOffHeapRasters() throws Exception {
+        final Path tiffFile = createGradientImage("tif", 2100, 2100);
+        final Map<String, byte[]> expectedTiles = tile(tiffFile, image -> image.setMemoryBudget(1));
+        for (Path offHeapDir : Arrays.asList(null, Paths.get("target"))) {
+            assertSameTiles(expectedTiles, tile(tiffFile, image -> {
+                image.setMemoryBudget(1);
+                image.setDecoderThreads(2);
+                image.setOffHeapRasters(true);
+                image.setOffHeapDir(offHeapDir);
+            }));
+        }
+    }
+
+    /**
+     * Tests that {@link MCRTileMetrics} counts every tile and the time of every phase.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testTileMetrics() throws Exception {
+        final Path imageFile = createGradientImage("png", 3000, 2900);
+        final String derivateID = "derivateID";
+        final String imagePath = "imagePath/gradient.png";
+        final MCRImage image = MCRImage.getInstance(imageFile, derivateID, imagePath);
+        image.setTileDir(tileDir);
+        image.setMemoryBudget(1);
+        image.setTileEncoderThreads(2);
+        final MCRTileMetrics[] reported = new MCRTileMetrics[1];
+        final MCRTiledPictureProps props = image.tile(new MCRTileEventHandler() {
+            @Override
+            public void preImageReaderCreated() {
+            }
+
+            @Override
+            public void postImageReaderCreated() {
+            }
+
+            @Override
+            public void postImageTiled(final MCRTileMetrics metrics) {
+                reported[0] = metrics;
+            }
+        });
+        final MCRTileMetrics metrics = image.getTileMetrics();
+        assertEquals(metrics, reported[0]);
+        assertEquals(props.getTilesCount(), metrics.getTiles());
+        assertEquals(props.getZoomlevel() + 1, metrics.getZoomLevels());
+        assertEquals(12 * 12, metrics.getTiles(props.getZoomlevel()));
+        assertEquals(1, metrics.getTiles(0));
+        final long tileBytes = getEntries(MCRImage.getTiledFile(tileDir, derivateID, imagePath)).entrySet().stream()
+            .filter(e -> e.getKey().endsWith(".jpg"))
+            .mapToLong(e -> e.getValue().length)
+            .sum();
+        assertEquals(tileBytes, metrics.getBytes());
+        for (MCRTileMetrics.Phase phase : Arrays.asList(MCRTileMetrics.Phase.DECODE, MCRTileMetrics.Phase.SCALE,
+            MCRTileMetrics.Phase.ENCODE, MCRTileMetrics.Phase.WRITE)) {
+            assertTrue("No time spent in " + phase, metrics.getNanos(phase) > 0);
+        }
+        assertTrue(metrics.getElapsedNanos() > metrics.getNanos(MCRTileMetrics.Phase.DECODE));
+        assertTrue(metrics.getPeakRasterBytes() > 0);
+    }
+
+    /**
+     * Tests that {@link MCRImage#tileAsync(java.util.concurrent.Executor, MCRTileEventHandler)} reports progress
+     * and stops and discards the new <code>.iview2</code> file when cancelled, without affecting the next tile process.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testTileAsync() throws Exception {
+        final String derivateID = "derivateID";
+        final String imagePath = "imagePath/gradient.png";
+        final Path imageFile = createGradientImage("png", 3000, 2900);
+        final Path iviewFile = MCRImage.getTiledFile(tileDir, derivateID, imagePath);
+        final int tileCount = MCRImage.getTileCount(3000, 2900);
+        final AtomicReference<Future<?>> cancelledFuture = new AtomicReference<>();
+        final AtomicInteger maxTiles = new AtomicInteger();
+        final MCRImage cancelledImage = MCRImage.getInstance(imageFile, derivateID, imagePath);
+        cancelledImage.setTileDir(tileDir);
+        cancelledImage.setMemoryBudget(1);
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final int[] progress = new int[2];
+            final MCRImage image = MCRImage.getInstance(imageFile, derivateID, imagePath);
+            image.setTileDir(tileDir);
+            image.setMemoryBudget(1);
+            final MCRTiledPictureProps props = image.tileAsync(executor, new ProgressHandler() {
+                @Override
+                public void tilesWritten(final int tiles, final int total) {
+                    progress[0] = tiles;
+                    progress[1] = total;
+                }
+            }).get();
+            assertEquals(tileCount, props.getTilesCount());
+            assertArrayEquals(new int[] { tileCount, tileCount }, progress);
+
+            cancelledFuture.set(cancelledImage.tileAsync(executor, new ProgressHandler() {
+                @Override
+                public void tilesWritten(final int tiles, final int total) {
+                    maxTiles.accumulateAndGet(tiles, Math::max);
+                    final Future<?> future = cancelledFuture.get();
+                    if (tiles >= 10 && future != null) {
+                        future.cancel(true);
+                    }
+                }
+            }));
+        } finally {
+            executor.shutdown();
+            assertTrue(executor.awaitTermination(1, TimeUnit.MINUTES));
+        }
+        assertTrue(cancelledFuture.get().isCancelled());
+        assertTrue("Tiling must stop after cancellation: " + maxTiles, maxTiles.get() < tileCount);
+        assertFalse("Incomplete file must be discarded: " + iviewFile,
+            hasTemporaryFiles(iviewFile));
+        assertEquals("Existing file must be kept: " + iviewFile, tileCount,
+            MCRTiledPictureProps.getInstanceFromFile(iviewFile).getTilesCount());
+
+        //a cancelled tile process does not affect the next one
+        final MCRTiledPictureProps props = cancelledImage.tile();
+        assertEquals(tileCount, props.getTilesCount());
+        assertTrue(Files.exists(iviewFile));
+    }
+
+    /**
+     * Tests that tiling emits flight recorder events for every operation.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testFlightRecorderEvents() throws Exception {
+        final String derivateID = "derivateID";
+        final String imagePath = "imagePath/" + FilenameUtils.getName(pics.get("small"));
+        final MCRImage image = MCRImage.getInstance(Paths.get(pics.get("small")), derivateID, imagePath);
+        image.setTileDir(tileDir);
+        final Path recordingFile = tileDir.resolve("tiling.jfr");
+        final MCRTiledPictureProps props;
+        try (Recording recording = new Recording()) {
+            Stream.of("ImageTiling", "MegaTileDecode", "Scale", "TileEncode", "ArchiveFinalization")
+                .forEach(name -> recording.enable("org.mycore.imagetiler." + name).withThreshold(Duration.ZERO));
+            recording.start();
+            props = image.tile();
+            recording.stop();
+            recording.dump(recordingFile);
+        }
+        final Map<String, List<RecordedEvent>> events = RecordingFile.readAllEvents(recordingFile).stream()
+            .filter(e -> Objects.equals(imagePath, e.getString("path")))
+            .collect(Collectors.groupingBy(e -> e.getEventType().getName()));
+        final RecordedEvent tiling = events.get("org.mycore.imagetiler.ImageTiling").get(0);
+        assertEquals(derivateID, tiling.getString("derivate"));
+        assertEquals(props.getWidth(), tiling.getInt("width"));
+        assertEquals(props.getTilesCount(), tiling.getLong("tiles"));
+        assertEquals(props.getTilesCount(), events.get("org.mycore.imagetiler.TileEncode").size());
+        assertEquals(props.getZoomlevel(), events.get("org.mycore.imagetiler.Scale").size());
+        assertTrue(events.get("org.mycore.imagetiler.MegaTileDecode").get(0).getLong("bytes") > 0);
+        final RecordedEvent archive = events.get("org.mycore.imagetiler.ArchiveFinalization").get(0);
+        assertEquals(Files.size(MCRImage.getTiledFile(tileDir, derivateID, imagePath)), archive.getLong("bytes"));
+    }
+
+    /**
+     * Tests that mega tiles planned for different {@link MCRImage#setMemoryBudget(long) memory budgets}
+     * (a single mega tile, full and partial width bands, square mega tiles) result in the same tiles.
+     *
+     * Every mega tile is scaled down on its own, so only {@link MCRScalingProfile#BOX}, which does not use pixels
+     * of neighboring mega tiles, gives equal tiles.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testMemoryBudget() throws Exception {
+        final Path tiffFile = createGradientImage("tif", 3000, 3000);
+        Map<String, byte[]> expectedTiles = null;
+        for (long memoryBudget : new long[] { 1L << 30, 40_000_000, 25_000_000, 1 }) {
+            final Map<String, byte[]> tiles = tile(tiffFile, image -> {
+                image.setScalingProfile(MCRScalingProfile.BOX);
+                image.setMemoryBudget(memoryBudget);
+            });
+            if (expectedTiles == null) {
+                assertEquals(MCRImage.getTileCount(3000, 3000), getTileCount(tiles));
+                expectedTiles = tiles;
+            } else {
+                assertSameTiles(expectedTiles, tiles);
+            }
+        }
+    }
+
+    /**
+     * Tests that an aborted tile process continues with the mega tiles not saved so far, even with another
+     * memory budget.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testCheckpoints() throws Exception {
+        final Path tiffFile = createGradientImage("tif", 2100, 2100);
+        final String derivateID = DERIVATE_ID;
+        final String imagePath = getImagePath(tiffFile);
+        final Path checkpointDir = tileDir.resolve("checkpoints");
+        final Path checkpointFile = MCRImage.getTiledFile(checkpointDir, derivateID, imagePath);
+        final Path imageCheckpointDir = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".checkpoints");
+        final Map<String, byte[]> expectedTiles = tile(tiffFile, image -> image.setMemoryBudget(1));
+
+        //fails after the first mega tile is saved
+        assertThrows(IOException.class, () -> tileAborted(tiffFile, derivateID, imagePath, checkpointDir, 1));
+        final Path geometryFile = imageCheckpointDir.resolve("geometry.txt");
+        final byte[] geometry = Files.readAllBytes(geometryFile);
+        //a larger memory budget must not discard the saved mega tiles
+        assertThrows(IOException.class,
+            () -> tileAborted(tiffFile, derivateID, imagePath, checkpointDir, Long.MAX_VALUE));
+        assertArrayEquals(geometry, Files.readAllBytes(geometryFile));
+        try (Stream<Path> checkpoints = Files.list(imageCheckpointDir)) {
+            assertEquals(1, checkpoints.filter(p -> p.toString().endsWith(".zip")).count());
+        }
+
+        assertSameTiles(expectedTiles, tile(tiffFile, image -> {
+            image.setMemoryBudget(Long.MAX_VALUE);
+            image.setTileEncoderThreads(4);
+            image.setCheckpointDir(checkpointDir);
+        }));
+        assertFalse("Checkpoints were not removed", Files.exists(imageCheckpointDir));
+    }
+
+    /**
+     * tiles the image with checkpoints, but fails when the first saved mega tile is copied to the
+     * <code>.iview2</code> file.
+     */
+    private void tileAborted(final Path file, final String derivateID, final String imagePath,
+        final Path checkpointDir, final long memoryBudget) throws IOException {
+        final MCRImage abortedImage = new MCRMemSaveImage(file, derivateID, imagePath) {
+            @Override
+            protected void writeEncodedTile(final MCRStoredZipWriter zout, final byte[] data, final int x,
+                final int y, final int z) throws IOException {
+                throw new IOException("Simulated abort");
+            }
+        };
+        abortedImage.setTileDir(tileDir);
+        abortedImage.setMemoryBudget(memoryBudget);
+        abortedImage.setCheckpointDir(checkpointDir);
+        abortedImage.tile();
+    }
+
+    /**
+     * Tests that the lowest zoom levels are read from the pages of a pyramid TIFF.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testOverviewSource() throws Exception {
+        final Path gradientFile = createGradientImage("tif", 2100, 2100);
+        final BufferedImage gradient = new BufferedImage(2100, 2100, BufferedImage.TYPE_3BYTE_BGR);
+        gradient.getGraphics().drawImage(ImageIO.read(gradientFile.toFile()), 0, 0, null);
+        final Path tiffFile = createPyramidTiff(gradient, false);
+        final Map<MCROverviewSource, Map<String, byte[]>> results = new HashMap<>();
+        for (MCROverviewSource source : MCROverviewSource.values()) {
+            results.put(source, tile(tiffFile, image -> {
+                image.setScalingProfile(MCRScalingProfile.BOX);
+                image.setMemoryBudget(1);
+                image.setOverviewSource(source);
+            }));
+        }
+        //pages are scaled down like the image
+        final Map<String, byte[]> expected = results.get(MCROverviewSource.FULL_RESOLUTION);
+        assertEquals(MCRImage.getTileCount(2100, 2100), getTileCount(expected));
+        assertSameTiles(expected, results.get(MCROverviewSource.EMBEDDED));
+        assertEquals(expected.keySet(), results.get(MCROverviewSource.SUBSAMPLED).keySet());
+
+        //black pages show up in the lowest zoom level only
+        final Path blackPagesFile = createPyramidTiff(gradient, true);
+        final Map<String, byte[]> tiles = tile(blackPagesFile, image -> {
+            image.setMemoryBudget(1);
+            image.setOverviewSource(MCROverviewSource.EMBEDDED);
+        });
+        final Color overview = getColor(tiles.get("0/0/0.jpg"));
+        assertTrue("Overview is not black: " + overview, overview.getGreen() < 16);
+        final Color zoomed = getColor(tiles.get("3/1/1.jpg"));
+        assertTrue("Zoom level 3 is black: " + zoomed, zoomed.getGreen() > 16);
+    }
+
+    /**
+     * Tests that a page of a multi-page TIFF that is not marked as reduced resolution is never used as overview,
+     * even if its size matches a zoom level.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testOverviewSourceOtherPage() throws Exception {
+        final Path gradientFile = createGradientImage("tif", 2100, 2100);
+        final BufferedImage gradient = new BufferedImage(2100, 2100, BufferedImage.TYPE_3BYTE_BGR);
+        gradient.getGraphics().drawImage(ImageIO.read(gradientFile.toFile()), 0, 0, null);
+        final Path tiffFile = writeTiff(Paths.get("target", "two-pages.tif"), false, gradient,
+            new BufferedImage(1050, 1050, BufferedImage.TYPE_3BYTE_BGR));
+        final Map<String, byte[]> expected = tile(tiffFile, image -> image.setMemoryBudget(1));
+        for (MCROverviewSource source : Arrays.asList(MCROverviewSource.EMBEDDED, MCROverviewSource.SUBSAMPLED)) {
+            final Map<String, byte[]> tiles = tile(tiffFile, image -> {
+                image.setMemoryBudget(1);
+                image.setOverviewSource(source);
+            });
+            final Color overview = getColor(tiles.get("0/0/0.jpg"));
+            assertTrue("Overview is black: " + overview, overview.getGreen() > 16);
+            if (source == MCROverviewSource.EMBEDDED) {
+                assertSameTiles(expected, tiles);
+            }
+        }
+    }
+
+    private static Color getColor(final byte[] tile) throws IOException {
+        return new Color(ImageIO.read(new ByteArrayInputStream(tile)).getRGB(100, 100));
+    }
+
+    /**
+     * writes <code>image</code> and all of its zoom levels as pages of a TIFF file.
+     */
+    private static Path createPyramidTiff(final BufferedImage image, final boolean blackPages) throws IOException {
+        final List<BufferedImage> pages = new ArrayList<>();
+        final MCRHalvingScaler scaler = MCRHalvingScaler.getInstance(MCRScalingProfile.BOX);
+        BufferedImage page = image;
+        while (true) {
+            pages.add(blackPages && page != image
+                ? new BufferedImage(page.getWidth(), page.getHeight(), BufferedImage.TYPE_INT_RGB)
+                : page);
+            if (Math.max(page.getWidth(), page.getHeight()) <= 256) {
+                break;
+            }
+            page = scaler.scale(page);
+        }
+        return writeTiff(Paths.get("target", "pyramid" + (blackPages ? "-black" : "") + ".tif"), true,
+            pages.toArray(new BufferedImage[0]));
+    }
+
+    /**
+     * writes <code>pages</code> to a TIFF file.
+     * @param reducedResolution if all but the first page are marked as reduced resolution versions of it
+     */
+    private static Path writeTiff(final Path tiffFile, final boolean reducedResolution,
+        final BufferedImage... pages) throws IOException {
+        final TIFFDirectory reducedDirectory = new TIFFDirectory(
+            new TIFFTagSet[] { BaselineTIFFTagSet.getInstance() }, null);
+        reducedDirectory.addTIFFField(new TIFFField(
+            BaselineTIFFTagSet.getInstance().getTag(BaselineTIFFTagSet.TAG_NEW_SUBFILE_TYPE), TIFFTag.TIFF_LONG, 1,
+            new long[] { BaselineTIFFTagSet.NEW_SUBFILE_TYPE_REDUCED_RESOLUTION }));
+        final ImageWriter writer = ImageIO.getImageWritersByFormatName("tif").next();
+        try (ImageOutputStream ios = ImageIO.createImageOutputStream(tiffFile.toFile())) {
+            writer.setOutput(ios);
+            writer.prepareWriteSequence(null);
+            for (int i = 0; i < pages.length; i++) {
+                final IIOMetadata metadata = reducedResolution && i > 0 ? reducedDirectory.getAsMetadata() : null;
+                writer.writeToSequence(new IIOImage(pages[i], null, metadata), null);
+            }
+            writer.endWriteSequence();
+        } finally {
+            writer.dispose();
+        }
+        return tiffFile;
+    }
+
+    private static Path createGradientImage(final String format, final int width, final int height)
+        throws IOException {
+        final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, new Color(x % 256, y % 256, (x + y) % 256).getRGB());
+            }
+        }
+        final Path imageFile = Paths.get("target", "gradient-" + width + "x" + height + "." + format);
+        ImageIO.write(image, format, imageFile.toFile());
+        return imageFile;
+    }
+
+    /**
+     * Tests that {@link MCRTiledPictureProps#getInstancesFromFiles(java.util.Collection)} reads the same properties
+     * as returned by {@link MCRImage#tile()}.
+     * @throws Exception if tiling process fails
+     */
+    @Test
+    public void testGetInstancesFromFiles() throws Exception {
+        final Map<Path, MCRTiledPictureProps> expected = new HashMap<>();
+        for (String pic : Arrays.asList("small", "tiff 16 bit")) {
+            final String imagePath = "imagePath/" + FilenameUtils.getName(pics.get(pic));
+            final MCRImage image = MCRImage.getInstance(Paths.get(pics.get(pic)), "derivateID", imagePath);
+            image.setTileDir(tileDir);
+            expected.put(MCRImage.getTiledFile(tileDir, "derivateID", imagePath), image.tile());
+        }
+        final Map<Path, MCRTiledPictureProps> props = MCRTiledPictureProps
+            .getInstancesFromFiles(expected.keySet());
+        assertEquals(expected.keySet(), props.keySet());
+        expected.forEach((iviewFile, p) -> assertEquals(p.toString(), props.get(iviewFile).toString()));
+    }
+
+    /**
+     * tiles the file to {@link #tileDir}.
+     * @param setup configures the image before it is tiled
+     * @return the entries of the <code>.iview2</code> file
+     */
+    private Map<String, byte[]> tile(final Path file, final Consumer<MCRImage> setup) throws IOException {
+        final String imagePath = getImagePath(file);
+        final MCRImage image = MCRImage.getInstance(file, DERIVATE_ID, imagePath);
+        image.setTileDir(tileDir);
+        setup.accept(image);
+        final MCRTiledPictureProps props = image.tile();
+        final Map<String, byte[]> entries = getEntries(MCRImage.getTiledFile(tileDir, DERIVATE_ID, imagePath));
+        assertEquals(props.getTilesCount(), getTileCount(entries));
+        return entries;
+    }
+
+    private static boolean hasTemporaryFiles(final Path file) throws IOException {
+        final String prefix = file.getFileName() + ".";
+        try (Stream<Path> files = Files.list(file.getParent())) {
+            return files.map(sibling -> sibling.getFileName().toString())
+                .anyMatch(name -> name.startsWith(prefix) && name.endsWith(".tmp"));
+        }
+    }
+
+    private static String getImagePath(final Path file) {
+        return "imagePath/" + file.getFileName();
+    }
+
+    private static int getTileCount(final Map<String, byte[]> entries) {
+        return (int) entries.keySet().stream().filter(name -> name.endsWith(".jpg")).count();
+    }
+
+    private static void assertSameTiles(final Map<String, byte[]> expected, final Map<String, byte[]> actual) {
+        assertEquals(expected.keySet(), actual.keySet());
+        expected.entrySet().stream()
+            .filter(e -> e.getKey().endsWith(".jpg"))
+            .forEach(e -> assertArrayEquals("Tile differs: " + e.getKey(), e.getValue(), actual.get(e.getKey())));
+    }
+
+    private static Map<String, byte[]> getEntries(final Path iviewFile) throws IOException {
+        final Map<String, byte[]> entries = new HashMap<>();
+        try (ZipFile zipFile = new ZipFile(iviewFile.toFile())) {
+            for (ZipEntry entry : Collections.list(zipFile.entries())) {
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    entries.put(entry.getName(), is.readAllBytes());
+                }
+            }
+        }
+        return entries;
+    }
+
+    private static List<String> getEntryNames(final Path iviewFile) throws IOException {
+        try (ZipFile zipFile = new ZipFile(iviewFile.toFile())) {
+            return zipFile.stream().map(ZipEntry::getName).collect(Collectors.toList());
+        }
+    }
+
     @Test
     public void testStripes() throws IOException {
         BufferedImage stripes = new BufferedImage(3000, 3000, BufferedImage.TYPE_INT_RGB);
@@ -232,4 +769,16 @@ public class MCRImageTest {
         assertEquals("Path to file is not es axpected.", pExpected, tiledFile);
     }
 
+    /**
+     * Receives progress information only.
+     */
+    private abstract static class ProgressHandler implements MCRTileEventHandler {
+        @Override
+        public void preImageReaderCreated() {
+        }
+
+        @Override
+        public void postImageReaderCreated() {
+        }
+    }
 }
@@ -0,0 +1,67 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.awt.image.BufferedImage;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MCRRasterPool}.
+ */
+public class MCRRasterPoolTest {
+
+    /**
+     * Tests that released images are reused for the same size and type only.
+     */
+    @Test
+    public void testReuse() {
+        final MCRRasterPool pool = new MCRRasterPool(1 << 20);
+        final BufferedImage image = pool.borrow(100, 50, BufferedImage.TYPE_INT_RGB);
+        pool.release(image);
+        pool.release(image);
+        assertEquals(100 * 50 * 4, pool.getBytes());
+        assertNotSame(image, pool.borrow(100, 50, BufferedImage.TYPE_3BYTE_BGR));
+        assertNotSame(image, pool.borrow(50, 100, BufferedImage.TYPE_INT_RGB));
+        assertSame(image, pool.borrow(100, 50, BufferedImage.TYPE_INT_RGB));
+        assertNotSame("Image was released twice but must be borrowed once.", image,
+            pool.borrow(100, 50, BufferedImage.TYPE_INT_RGB));
+        assertEquals(1, pool.getReuses());
+        assertEquals(4, pool.getAllocations());
+        assertEquals(0, pool.getBytes());
+    }
+
+    /**
+     * Tests that sub images and images exceeding the size of the pool are not kept.
+     */
+    @Test
+    public void testIgnored() {
+        final MCRRasterPool pool = new MCRRasterPool(1000);
+        final BufferedImage image = new BufferedImage(20, 20, BufferedImage.TYPE_BYTE_GRAY);
+        pool.release(image.getSubimage(0, 0, 10, 10));
+        assertEquals(0, pool.getBytes());
+        pool.release(new BufferedImage(40, 40, BufferedImage.TYPE_BYTE_GRAY));
+        assertEquals(0, pool.getBytes());
+        pool.release(image);
+        assertEquals(400, pool.getBytes());
+    }
+}
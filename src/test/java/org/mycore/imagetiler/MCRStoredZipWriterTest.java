@@ -0,0 +1,137 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests {@link MCRStoredZipWriter}.
+ */
+public class MCRStoredZipWriterTest {
+    private final Path zipFile = Paths.get("target/stored.zip");
+
+    /**
+     * Removes the ZIP file.
+     * @throws IOException if ZIP file could not be deleted
+     */
+    @After
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(zipFile);
+    }
+
+    /**
+     * Writes more entries than a ZIP file without ZIP64 extensions can hold and reads them again.
+     * @throws Exception if the ZIP file could not be written or read
+     */
+    @Test
+    public void testZip64() throws Exception {
+        final int entries = 0x10000 + 10;
+        try (MCRStoredZipWriter writer = new MCRStoredZipWriter(zipFile)) {
+            for (int i = 0; i < entries; i++) {
+                final byte[] data = Integer.toString(i).getBytes(StandardCharsets.US_ASCII);
+                final long offset = writer.putEntry(i + ".txt", data);
+                assertEquals(writer.getPosition() - data.length, offset);
+            }
+            assertEquals(entries, writer.getEntryCount());
+            writer.finish();
+        }
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertEquals(entries, zip.size());
+            final ZipEntry entry = zip.getEntry("65540.txt");
+            assertEquals(ZipEntry.STORED, entry.getMethod());
+            try (InputStream is = zip.getInputStream(entry)) {
+                assertArrayEquals("65540".getBytes(StandardCharsets.US_ASCII), is.readAllBytes());
+            }
+        }
+        try (FileSystem zipfs = FileSystems.newFileSystem(URI.create("jar:" + zipFile.toUri()),
+            Collections.emptyMap())) {
+            assertArrayEquals("42".getBytes(StandardCharsets.US_ASCII),
+                Files.readAllBytes(zipfs.getPath("42.txt")));
+            assertTrue(Files.exists(zipfs.getPath(entries - 1 + ".txt")));
+        }
+    }
+
+    /**
+     * Writers of the same ZIP file must not share their temporary file.
+     * @throws Exception if the ZIP file could not be written or read
+     */
+    @Test
+    public void testConcurrentWriters() throws Exception {
+        try (MCRStoredZipWriter finished = new MCRStoredZipWriter(zipFile)) {
+            try (MCRStoredZipWriter discarded = new MCRStoredZipWriter(zipFile)) {
+                discarded.putEntry("discarded.txt", new byte[] { 1 });
+                finished.putEntry("finished.txt", new byte[] { 2 });
+            }
+            finished.finish();
+        }
+        assertFalse(hasTemporaryFiles());
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertEquals(1, zip.size());
+            assertNotNull(zip.getEntry("finished.txt"));
+        }
+    }
+
+    private boolean hasTemporaryFiles() throws IOException {
+        final String prefix = zipFile.getFileName() + ".";
+        try (Stream<Path> files = Files.list(zipFile.getParent())) {
+            return files.map(file -> file.getFileName().toString())
+                .anyMatch(name -> name.startsWith(prefix) && name.endsWith(".tmp"));
+        }
+    }
+
+    /**
+     * Closing an unfinished writer must keep an existing ZIP file.
+     * @throws Exception if the ZIP file could not be written or read
+     */
+    @Test
+    public void testDiscard() throws Exception {
+        try (MCRStoredZipWriter writer = new MCRStoredZipWriter(zipFile)) {
+            writer.putEntry("old.txt", new byte[] { 1 });
+            writer.finish();
+        }
+        try (MCRStoredZipWriter writer = new MCRStoredZipWriter(zipFile)) {
+            writer.putEntry("new.txt", new byte[] { 2 });
+        }
+        assertFalse(hasTemporaryFiles());
+        try (ZipFile zip = new ZipFile(zipFile.toFile())) {
+            assertEquals(1, zip.size());
+            assertNotNull(zip.getEntry("old.txt"));
+        }
+    }
+}
@@ -0,0 +1,196 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link MCRTileReader}.
+ */
+public class MCRTileReaderTest {
+    private final Path tileDir = Paths.get("target/tileReaderDir");
+
+    private Path iviewFile;
+
+    /**
+     * Tiles a test image.
+     * @throws IOException if tiling fails
+     */
+    @Before
+    public void setUp() throws IOException {
+        final MCRImage image = MCRImage.getInstance(Paths.get("src/test/resources/BE_0681_0397.jpg"), "derivateID",
+            "BE_0681_0397.jpg");
+        image.setTileDir(tileDir);
+        image.tile();
+        iviewFile = MCRImage.getTiledFile(tileDir, "derivateID", "BE_0681_0397.jpg");
+    }
+
+    /**
+     * Removes the tile directory.
+     * @throws IOException if tile directory could not be deleted
+     */
+    @After
+    public void tearDown() throws IOException {
+        if (Files.exists(tileDir)) {
+            try (Stream<Path> paths = Files.walk(tileDir)) {
+                paths.sorted(Comparator.reverseOrder()).map(Path::toFile).forEach(File::delete);
+            }
+        }
+    }
+
+    /**
+     * Reads all tiles concurrently and compares them with the entries of the ZIP file.
+     * @throws Exception if the <code>.iview2</code> file could not be read
+     */
+    @Test
+    public void testGetTile() throws Exception {
+        try (MCRTileReader reader = MCRTileReader.open(iviewFile);
+            ZipFile zipFile = new ZipFile(iviewFile.toFile())) {
+            final MCRTiledPictureProps props = MCRTiledPictureProps.getInstanceFromFile(iviewFile);
+            assertEquals(props.getTilesCount(), reader.getTileCount());
+            assertEquals(props.getZoomlevel(), reader.getZoomLevel());
+            final List<ZipEntry> tiles = new ArrayList<>();
+            for (Enumeration<? extends ZipEntry> entries = zipFile.entries(); entries.hasMoreElements();) {
+                final ZipEntry entry = entries.nextElement();
+                if (entry.getName().endsWith(".jpg")) {
+                    tiles.add(entry);
+                }
+            }
+            assertEquals(reader.getTileCount(), tiles.size());
+            tiles.parallelStream().forEach(entry -> {
+                final String[] zyx = entry.getName().replace(".jpg", "").split("/");
+                try (InputStream is = zipFile.getInputStream(entry)) {
+                    final ByteBuffer tile = reader.getTile(Integer.parseInt(zyx[0]), Integer.parseInt(zyx[1]),
+                        Integer.parseInt(zyx[2]));
+                    assertArrayEquals(entry.getName(), is.readAllBytes(), toArray(tile));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            assertNotNull(reader.getEntry(MCRTiledPictureProps.IMAGEINFO_XML));
+            assertNotNull(reader.getEntry(MCRTiledPictureProps.TILE_INDEX));
+            assertNotNull(reader.getEntry("0/0/0.jpg"));
+            assertNull(reader.getTile(props.getZoomlevel() + 1, 0, 0));
+            assertNull(reader.getTile(0, 1, 0));
+            assertFalse(reader.hasTile(0, 0, -1));
+            assertTrue(reader.hasTile(0, 0, 0));
+        }
+    }
+
+    /**
+     * Reads tiles from a ZIP file with compressed entries.
+     * @throws Exception if the ZIP file could not be written or read
+     */
+    @Test
+    public void testDeflated() throws Exception {
+        final Path deflatedFile = tileDir.resolve("deflated.iview2");
+        final byte[] tile = new byte[4096];
+        for (int i = 0; i < tile.length; i++) {
+            tile[i] = (byte) (i % 7);
+        }
+        try (ZipOutputStream zout = new ZipOutputStream(Files.newOutputStream(deflatedFile))) {
+            zout.putNextEntry(new ZipEntry("1/0/1.jpg"));
+            zout.write(tile);
+            zout.closeEntry();
+        }
+        try (MCRTileReader reader = MCRTileReader.open(deflatedFile)) {
+            assertEquals(1, reader.getTileCount());
+            assertArrayEquals(tile, toArray(reader.getTile(1, 0, 1)));
+            assertNull(reader.getTile(1, 0, 0));
+        }
+    }
+
+    /**
+     * Reads tiles through a {@link MCRTileCache} that can hold only some of them.
+     * @throws Exception if the <code>.iview2</code> file could not be read
+     */
+    @Test
+    public void testCache() throws Exception {
+        final MCRTileCache cache = new MCRTileCache(1, 64 * 1024);
+        try (MCRTileReader reader = MCRTileReader.open(iviewFile)) {
+            for (int i = 0; i < 2; i++) {
+                for (int x = 0; x < 3; x++) {
+                    assertArrayEquals(toArray(reader.getTile(3, 0, x)), toArray(cache.getTile(iviewFile, 3, 0, x)));
+                }
+            }
+        }
+        //readers are only needed for tiles that are not cached
+        assertEquals(1, cache.getReaderMisses());
+        assertEquals(cache.getTileMisses() - 1, cache.getReaderHits());
+        assertEquals(6, cache.getTileHits() + cache.getTileMisses());
+        assertTrue("Some tiles should be served from cache: " + cache, cache.getTileHits() > 0);
+        assertTrue(cache.getTileBytes() <= 64 * 1024);
+        cache.invalidate(iviewFile);
+        assertEquals(0, cache.getTileBytes());
+        assertNull(cache.getTile(iviewFile, 0, 1, 1));
+        assertEquals(2, cache.getReaderMisses());
+        cache.close();
+    }
+
+    /**
+     * Readers evicted from a {@link MCRTileCache} are closed, but the cache still serves their tiles.
+     * @throws Exception if the <code>.iview2</code> file could not be read
+     */
+    @Test
+    public void testCacheEviction() throws Exception {
+        final Path copy = iviewFile.resolveSibling("copy.iview2");
+        Files.copy(iviewFile, copy);
+        try (MCRTileCache cache = new MCRTileCache(1, 0)) {
+            final MCRTileReader reader = cache.getReader(iviewFile);
+            final ByteBuffer tile = reader.getTile(0, 0, 0);
+            assertNotNull(cache.getTile(copy, 0, 0, 0));
+            assertTrue("Evicted reader must be closed", reader.isClosed());
+            assertThrows(IOException.class, () -> reader.getTile(0, 0, 0));
+            assertArrayEquals(toArray(tile), toArray(cache.getTile(iviewFile, 0, 0, 0)));
+            assertEquals(3, cache.getReaderMisses());
+        }
+    }
+
+    private static byte[] toArray(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.junit.Test;
+import org.w3c.dom.Element;
+
+/**
+ * Tests reading and writing of <code>imageinfo.xml</code> by {@link MCRTiledPictureProps}.
+ */
+public class MCRTiledPicturePropsTest {
+
+    /**
+     * Tests that <code>imageinfo.xml</code> is written exactly like JAXB did.
+     * @throws Exception if marshalling fails
+     */
+    @Test
+    public void testWriteImageInfo() throws Exception {
+        final MCRTiledPictureProps props = new MCRTiledPictureProps();
+        props.tilesCount = 69;
+        props.height = 2052;
+        props.width = 1197;
+        props.zoomLevel = 4;
+        props.fingerprint = "v1 size=42";
+        final ByteArrayOutputStream jaxb = new ByteArrayOutputStream();
+        MCRTiledPictureProps.getJaxbContext().createMarshaller().marshal(props, jaxb);
+        final ByteArrayOutputStream stax = new ByteArrayOutputStream();
+        MCRTiledPictureProps.writeImageInfo(stax, null, null, 69, 4, 2052, 1197, "v1 size=42");
+        assertEquals(jaxb.toString(StandardCharsets.UTF_8), stax.toString(StandardCharsets.UTF_8));
+        final MCRTiledPictureProps read = MCRTiledPictureProps
+            .readImageInfo(new ByteArrayInputStream(stax.toByteArray()));
+        assertEquals(props.toString(), read.toString());
+        assertEquals(props.getSourceFingerprint(), read.getSourceFingerprint());
+    }
+
+    /**
+     * Tests that derivate and path are escaped.
+     * @throws Exception if parsing fails
+     */
+    @Test
+    public void testEscaping() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final String path = "images/\"Tom & Jerry\" <1>.tif";
+        MCRTiledPictureProps.writeImageInfo(out, "mir_derivate_00000001", path, 1, 0, 5, 5, null);
+        final Element imageInfo = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+            .parse(new ByteArrayInputStream(out.toByteArray())).getDocumentElement();
+        assertEquals("mir_derivate_00000001", imageInfo.getAttribute("derivate"));
+        assertEquals(path, imageInfo.getAttribute("path"));
+        assertEquals("1", imageInfo.getAttribute("tiles"));
+    }
+}
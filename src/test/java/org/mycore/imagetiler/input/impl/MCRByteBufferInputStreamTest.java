@@ -0,0 +1,60 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler.input.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.awt.image.BufferedImage;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MCRByteBufferInputStream}.
+ */
+public class MCRByteBufferInputStreamTest {
+
+    /**
+     * Tests that ImageIO decodes <code>byte[]</code> and {@link ByteBuffer} inputs without copying them.
+     * @throws Exception if reading fails
+     */
+    @Test
+    public void testImageIO() throws Exception {
+        final Path image = Paths.get("src/test/resources/BE_0681_0397.jpg");
+        final BufferedImage expected = ImageIO.read(image.toFile());
+        final byte[] data = Files.readAllBytes(image);
+        //ImageIO.read() closes the stream
+        final ImageInputStream in = ImageIO.createImageInputStream(data);
+        assertEquals(MCRByteBufferInputStream.class, in.getClass());
+        assertEquals(data.length, in.length());
+        MCRSeekableChannelInputStreamTest.assertImageEquals(expected, ImageIO.read(in));
+        final ByteBuffer buffer = ByteBuffer.allocateDirect(data.length + 10);
+        buffer.position(10);
+        buffer.put(data).position(10);
+        final ImageInputStream bufferIn = ImageIO.createImageInputStream(buffer);
+        assertEquals(MCRByteBufferInputStream.class, bufferIn.getClass());
+        MCRSeekableChannelInputStreamTest.assertImageEquals(expected, ImageIO.read(bufferIn));
+        assertEquals("position of the buffer must not change", 10, buffer.position());
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler.input.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
+
+import java.io.EOFException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests {@link MCRFileChannelInputStream}.
+ */
+public class MCRFileChannelInputStreamTest {
+
+    private static final int WINDOW_SIZE = 4096;
+
+    private byte[] data;
+
+    private Path file;
+
+    @Before
+    public void setUp() throws Exception {
+        data = new byte[WINDOW_SIZE * 10 + 123];
+        new Random(42).nextBytes(data);
+        file = Files.createTempFile("MCRFileChannelInputStreamTest", ".bin");
+        Files.write(file, data);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(file);
+    }
+
+    /**
+     * Tests that random reads return the bytes of the file.
+     * @throws Exception if reading fails
+     */
+    @Test
+    public void testRandomReads() throws Exception {
+        final Random random = new Random(4711);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            MCRFileChannelInputStream in = new MCRFileChannelInputStream(channel, WINDOW_SIZE, 3, true)) {
+            assertEquals(data.length, in.length());
+            for (int i = 0; i < 1000; i++) {
+                final int pos = random.nextInt(data.length);
+                final int len = Math.min(random.nextInt(3 * WINDOW_SIZE), data.length - pos);
+                in.seek(pos);
+                final byte[] read = new byte[len];
+                in.readFully(read);
+                assertArrayEquals(Arrays.copyOfRange(data, pos, pos + len), read);
+                assertEquals(pos + len, in.getStreamPosition());
+            }
+            in.seek(data.length - 1);
+            assertEquals(data[data.length - 1] & 0xff, in.read());
+            assertEquals(-1, in.read());
+            assertEquals(-1, in.read(new byte[1], 0, 1));
+        }
+    }
+
+    /**
+     * Tests typed reads within and across windows in both byte orders.
+     * @throws Exception if reading fails
+     */
+    @Test
+    public void testTypedReads() throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            MCRFileChannelInputStream in = new MCRFileChannelInputStream(channel, WINDOW_SIZE, 2, false)) {
+            for (ByteOrder order : new ByteOrder[] { ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN }) {
+                in.setByteOrder(order);
+                final ByteBuffer expected = ByteBuffer.wrap(data).order(order);
+                for (int pos : new int[] { 10, WINDOW_SIZE - 6, 3 * WINDOW_SIZE - 1 }) {
+                    in.seek(pos);
+                    final int[] ints = new int[5];
+                    in.readFully(ints, 0, ints.length);
+                    for (int i = 0; i < ints.length; i++) {
+                        assertEquals(expected.getInt(pos + i * Integer.BYTES), ints[i]);
+                    }
+                    in.seek(pos);
+                    assertEquals(expected.getLong(pos), in.readLong());
+                    in.seek(pos);
+                    final short[] shorts = new short[3];
+                    in.readFully(shorts, 0, shorts.length);
+                    assertEquals(expected.getShort(pos + 4), shorts[2]);
+                }
+            }
+            in.seek(data.length - 2);
+            assertThrows(EOFException.class, () -> in.readFully(new int[1], 0, 1));
+        }
+    }
+
+    /**
+     * Tests that seeking between a few positions does not map the file again.
+     * @throws Exception if reading fails
+     */
+    @Test
+    public void testWindowReuse() throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            MCRFileChannelInputStream in = new MCRFileChannelInputStream(channel, WINDOW_SIZE, 3, false)) {
+            for (int i = 0; i < 100; i++) {
+                in.seek(WINDOW_SIZE + 7);
+                assertEquals(data[WINDOW_SIZE + 7] & 0xff, in.read());
+                in.seek(7 * WINDOW_SIZE);
+                assertEquals(data[7 * WINDOW_SIZE] & 0xff, in.read());
+            }
+            assertEquals(2, in.getMappings());
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            MCRFileChannelInputStream in = new MCRFileChannelInputStream(channel, WINDOW_SIZE, 3, true)) {
+            in.readFully(new byte[data.length]);
+            assertTrue("Every window must be mapped once.", in.getMappings() <= 11);
+        }
+    }
+}
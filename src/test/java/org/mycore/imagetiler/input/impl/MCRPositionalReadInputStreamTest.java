@@ -0,0 +1,122 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler.input.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.After;
+import org.junit.Test;
+import org.mycore.imagetiler.input.MCRChannelImageInputStreamSpi;
+
+/**
+ * Tests {@link MCRPositionalReadInputStream}.
+ */
+public class MCRPositionalReadInputStreamTest {
+
+    @After
+    public void tearDown() {
+        System.clearProperty(MCRChannelImageInputStreamSpi.MODE_PROPERTY);
+    }
+
+    /**
+     * Tests that small, large and random reads return the bytes of the file.
+     * @throws Exception if reading fails
+     */
+    @Test
+    public void testRandomReads() throws Exception {
+        final Path file = Paths.get("src/test/resources/tiff48.tif");
+        final byte[] data = Files.readAllBytes(file);
+        final Random random = new Random(4711);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            for (int i = 0; i < 3; i++) {
+                try (MCRPositionalReadInputStream in = new MCRPositionalReadInputStream(channel)) {
+                    assertEquals(data.length, in.length());
+                    for (int j = 0; j < 200; j++) {
+                        final int pos = random.nextInt(data.length);
+                        final int len = Math.min(random.nextInt(2 * MCRPositionalReadInputStream.BUFFER_SIZE),
+                            data.length - pos);
+                        in.seek(pos);
+                        final byte[] read = new byte[len];
+                        in.readFully(read);
+                        assertArrayEquals(Arrays.copyOfRange(data, pos, pos + len), read);
+                        assertEquals(data[pos] & 0xff, readAt(in, pos));
+                    }
+                    in.seek(data.length - 1);
+                    assertEquals(data[data.length - 1] & 0xff, in.read());
+                    assertEquals(-1, in.read());
+                    assertEquals(-1, in.read(new byte[1], 0, 1));
+                }
+            }
+        }
+        assertTrue("Buffers must be reused.", MCRPositionalReadInputStream.getBufferAllocations() <= 2);
+    }
+
+    private static int readAt(final ImageInputStream in, final long pos) throws Exception {
+        in.seek(pos);
+        return in.read();
+    }
+
+    /**
+     * Tests that images decode the same with positional reads and with mapped files.
+     * @throws Exception if reading fails
+     */
+    @Test
+    public void testDecode() throws Exception {
+        final Path file = Paths.get("src/test/resources/tiff16.tif");
+        System.setProperty(MCRChannelImageInputStreamSpi.MODE_PROPERTY, "read");
+        final BufferedImage read = decode(file, MCRPositionalReadInputStream.class);
+        System.setProperty(MCRChannelImageInputStreamSpi.MODE_PROPERTY, "Map");
+        final BufferedImage mapped = decode(file, MCRFileChannelInputStream.class);
+        final DataBuffer expected = mapped.getRaster().getDataBuffer();
+        final DataBuffer actual = read.getRaster().getDataBuffer();
+        assertEquals(expected.getSize(), actual.getSize());
+        for (int i = 0; i < expected.getSize(); i++) {
+            assertEquals(expected.getElem(i), actual.getElem(i));
+        }
+    }
+
+    private static BufferedImage decode(final Path file, final Class<?> streamClass) throws Exception {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ);
+            ImageInputStream in = MCRChannelImageInputStreamSpi.createInputStream(channel, file)) {
+            assertEquals(streamClass, in.getClass());
+            final ImageReader reader = ImageIO.getImageReaders(in).next();
+            try {
+                reader.setInput(in);
+                return reader.read(0);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler.input.impl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.awt.image.BufferedImage;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Random;
+
+import javax.imageio.ImageIO;
+import javax.imageio.stream.ImageInputStream;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MCRSeekableChannelInputStream}.
+ */
+public class MCRSeekableChannelInputStreamTest {
+
+    private static final Path IMAGE = Paths.get("src/test/resources/tiff48.tif");
+
+    /**
+     * Tests that random reads return the bytes of the channel and blocks are read again only after eviction.
+     * @throws Exception if reading fails
+     */
+    @Test
+    public void testRandomReads() throws Exception {
+        final byte[] data = Files.readAllBytes(IMAGE);
+        final Random random = new Random(4711);
+        final int blockSize = 1000;
+        try (MCRSeekableChannelInputStream in = new MCRSeekableChannelInputStream(new ByteArrayChannel(data),
+            blockSize, 4)) {
+            assertEquals(data.length, in.length());
+            for (int i = 0; i < 500; i++) {
+                final int pos = random.nextInt(data.length);
+                final int len = Math.min(random.nextInt(3 * blockSize), data.length - pos);
+                in.seek(pos);
+                final byte[] read = new byte[len];
+                in.readFully(read);
+                assertArrayEquals(Arrays.copyOfRange(data, pos, pos + len), read);
+            }
+            in.seek(data.length - 1);
+            assertEquals(data[data.length - 1] & 0xff, in.read());
+            assertEquals(-1, in.read());
+            final int blockReads = in.getBlockReads();
+            for (int i = 0; i < 100; i++) {
+                in.seek(i % 2 == 0 ? 10 : 3 * blockSize + 10);
+                in.readInt();
+            }
+            assertTrue("Cached blocks must not be read again.", in.getBlockReads() <= blockReads + 2);
+        }
+    }
+
+    /**
+     * Tests that ImageIO decodes seekable channels and channels of zip file systems.
+     * @throws Exception if reading fails
+     */
+    @Test
+    public void testImageIO() throws Exception {
+        final BufferedImage expected = ImageIO.read(IMAGE.toFile());
+        //ImageIO.read() closes the stream
+        final ImageInputStream in = ImageIO.createImageInputStream(new ByteArrayChannel(Files.readAllBytes(IMAGE)));
+        assertEquals(MCRSeekableChannelInputStream.class, in.getClass());
+        assertImageEquals(expected, ImageIO.read(in));
+        final Path zip = Files.createTempFile("MCRSeekableChannelInputStreamTest", ".zip");
+        Files.delete(zip);
+        try {
+            try (FileSystem zipFs = FileSystems.newFileSystem(URI.create("jar:" + zip.toUri()),
+                Collections.singletonMap("create", "true"))) {
+                Files.copy(IMAGE, zipFs.getPath("image.tif"));
+            }
+            try (FileSystem zipFs = FileSystems.newFileSystem(URI.create("jar:" + zip.toUri()),
+                Collections.emptyMap());
+                SeekableByteChannel channel = Files.newByteChannel(zipFs.getPath("image.tif"))) {
+                //depending on the JDK, channels of zip entries may not support seeking
+                assertImageEquals(expected, ImageIO.read(ImageIO.createImageInputStream(channel)));
+            }
+        } finally {
+            Files.deleteIfExists(zip);
+        }
+    }
+
+    static void assertImageEquals(final BufferedImage expected, final BufferedImage actual) {
+        assertEquals(expected.getWidth(), actual.getWidth());
+        assertEquals(expected.getHeight(), actual.getHeight());
+        assertArrayEquals(expected.getRGB(0, 0, expected.getWidth(), expected.getHeight(), null, 0,
+            expected.getWidth()),
+            actual.getRGB(0, 0, actual.getWidth(), actual.getHeight(), null, 0, actual.getWidth()));
+    }
+
+    /**
+     * A seekable channel that is not a {@link java.nio.channels.FileChannel}.
+     */
+    private static final class ByteArrayChannel implements SeekableByteChannel {
+        private final byte[] data;
+
+        private int position;
+
+        private boolean open = true;
+
+        ByteArrayChannel(final byte[] data) {
+            this.data = data;
+        }
+
+        @Override
+        public int read(final ByteBuffer dst) {
+            if (position >= data.length) {
+                return -1;
+            }
+            final int n = Math.min(dst.remaining(), data.length - position);
+            dst.put(data, position, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int write(final ByteBuffer src) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public long position() {
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(final long newPosition) {
+            position = (int) newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() {
+            return data.length;
+        }
+
+        @Override
+        public SeekableByteChannel truncate(final long size) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.image.BufferedImage;
+import java.util.Random;
+
+import org.junit.Test;
+import org.mycore.imagetiler.MCRScalingProfile;
+
+/**
+ * Tests {@link MCRHalvingScaler}.
+ */
+public class MCRHalvingScalerTest {
+
+    /**
+     * Compares {@link MCRScalingProfile#BOX} with the average of 2x2 pixels.
+     */
+    @Test
+    public void testBox() {
+        final BufferedImage image = createImage(7, 5, BufferedImage.TYPE_3BYTE_BGR, 42);
+        final BufferedImage scaled = MCRHalvingScaler.getInstance(MCRScalingProfile.BOX).scale(image);
+        assertEquals(BufferedImage.TYPE_INT_RGB, scaled.getType());
+        assertEquals(4, scaled.getWidth());
+        assertEquals(3, scaled.getHeight());
+        for (int y = 0; y < scaled.getHeight(); y++) {
+            for (int x = 0; x < scaled.getWidth(); x++) {
+                int expected = 0;
+                for (int shift = 0; shift < 24; shift += 8) {
+                    int sum = 0;
+                    for (int dy = 0; dy < 2; dy++) {
+                        for (int dx = 0; dx < 2; dx++) {
+                            final int sx = Math.min(image.getWidth() - 1, 2 * x + dx);
+                            final int sy = Math.min(image.getHeight() - 1, 2 * y + dy);
+                            sum += image.getRGB(sx, sy) >>> shift & 0xFF;
+                        }
+                    }
+                    expected |= (sum + 2) / 4 << shift;
+                }
+                assertEquals("Pixel " + x + "," + y, expected, scaled.getRGB(x, y) & 0xFFFFFF);
+            }
+        }
+    }
+
+    /**
+     * Checks that all profiles keep a uniform color for every supported image type, on one and on more threads.
+     */
+    @Test
+    public void testUniform() {
+        final int[] types = { BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_INT_RGB, BufferedImage.TYPE_INT_BGR,
+            BufferedImage.TYPE_INT_ARGB, BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_4BYTE_ABGR };
+        final int rgb = 0xFF8040A0;
+        for (MCRScalingProfile profile : MCRScalingProfile.values()) {
+            final MCRHalvingScaler scaler = MCRHalvingScaler.getInstance(profile);
+            for (int type : types) {
+                for (int size : new int[] { 9, 1201 }) {
+                    final BufferedImage image = new BufferedImage(size + 3, size, type);
+                    for (int y = 0; y < size; y++) {
+                        for (int x = 0; x < size + 3; x++) {
+                            image.setRGB(x, y, rgb);
+                        }
+                    }
+                    //starts at an offset in the data array
+                    final BufferedImage subImage = image.getSubimage(3, 0, size, size);
+                    final BufferedImage scaled = scaler.scale(subImage);
+                    final int expected = type == BufferedImage.TYPE_BYTE_GRAY ? image.getRGB(0, 0) : rgb;
+                    assertEquals((size + 1) / 2, scaled.getWidth());
+                    assertEquals((size + 1) / 2, scaled.getHeight());
+                    for (int y = 0; y < scaled.getHeight(); y += 7) {
+                        for (int x = 0; x < scaled.getWidth(); x += 7) {
+                            assertEquals(profile + ", type " + type + ", pixel " + x + "," + y,
+                                Integer.toHexString(expected), Integer.toHexString(scaled.getRGB(x, y)));
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks that alpha is composed on black.
+     */
+    @Test
+    public void testAlpha() {
+        final BufferedImage image = new BufferedImage(2, 2, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 2; x++) {
+                image.setRGB(x, y, 0x80FF0000);
+            }
+        }
+        final BufferedImage scaled = MCRHalvingScaler.getInstance(MCRScalingProfile.BOX).scale(image);
+        assertEquals(0xFF800000, scaled.getRGB(0, 0));
+    }
+
+    /**
+     * Unsupported image types are not scaled.
+     */
+    @Test
+    public void testUnsupported() {
+        final BufferedImage image = new BufferedImage(4, 4, BufferedImage.TYPE_USHORT_GRAY);
+        assertNull(MCRHalvingScaler.getInstance(MCRScalingProfile.BILINEAR).scale(image));
+    }
+
+    private static BufferedImage createImage(final int width, final int height, final int type, final long seed) {
+        final Random random = new Random(seed);
+        final BufferedImage image = new BufferedImage(width, height, type);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, random.nextInt());
+            }
+        }
+        return image;
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler.internal;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MCRMegaTilePlanner}.
+ */
+public class MCRMegaTilePlannerTest {
+
+    private static final int WIDTH = 20000;
+
+    private static final int HEIGHT = 15000;
+
+    private static final long BUDGET = 1L << 30;
+
+    /**
+     * Without block information every plan decodes every pixel once.
+     */
+    @Test
+    public void testUnknownLayout() {
+        final MCRMegaTilePlanner.Plan plan = MCRMegaTilePlanner.plan(WIDTH, HEIGHT, 1, 1, 3, 3, BUDGET, 1);
+        assertEquals((long) WIDTH * HEIGHT, plan.getDecodedPixels());
+        assertTrue(plan.toString(), plan.getMemoryUsage() <= BUDGET);
+    }
+
+    /**
+     * Strips cover the whole width, so mega tiles should cover the whole width, too.
+     */
+    @Test
+    public void testStrips() {
+        final MCRMegaTilePlanner.Plan plan = MCRMegaTilePlanner.plan(WIDTH, HEIGHT, WIDTH, 170, 3, 3, BUDGET, 1);
+        assertTrue(plan.toString(), plan.getMegaTileWidth() >= WIDTH);
+        assertTrue(plan.toString(), plan.getMemoryUsage() <= BUDGET);
+        //only strips at the border of two bands are decoded twice
+        assertTrue(plan.toString(), plan.getDecodedPixels() < (long) WIDTH * (HEIGHT + 170 * plan.getYCount()));
+    }
+
+    /**
+     * Mega tiles should be aligned to the tiles of the source, if possible.
+     */
+    @Test
+    public void testTiles() {
+        final MCRMegaTilePlanner.Plan plan = MCRMegaTilePlanner.plan(WIDTH, HEIGHT, 1024, 1024, 3, 3, BUDGET, 1);
+        assertEquals(plan.toString(), 0, plan.getMegaTileWidth() % 1024);
+        assertEquals(plan.toString(), 0, plan.getMegaTileHeight() % 1024);
+        assertEquals(plan.toString(), (long) (WIDTH + 480) * (HEIGHT + 360), plan.getDecodedPixels());
+    }
+
+    /**
+     * A plan can be restored from its geometry, invalid geometries are rejected.
+     */
+    @Test
+    public void testGeometry() {
+        final MCRMegaTilePlanner.Plan plan = MCRMegaTilePlanner.plan(WIDTH, HEIGHT, 1, 1, 3, 3, BUDGET, 1);
+        final MCRMegaTilePlanner.Plan restored = MCRMegaTilePlanner.plan(WIDTH, HEIGHT, 1, 1, 3, 3, 1,
+            plan.getGeometry());
+        assertEquals(plan.toString(), restored.toString());
+        assertNull(MCRMegaTilePlanner.plan(WIDTH, HEIGHT, 1, 1, 3, 3, 1, "1000x512/1"));
+        assertNull(MCRMegaTilePlanner.plan(WIDTH, HEIGHT, 1, 1, 3, 3, 1, "512x512"));
+    }
+
+    /**
+     * Even with an unlimited budget the raster of a mega tile must fit into a single Java array.
+     */
+    @Test
+    public void testArrayLimit() {
+        final int size = 200000;
+        final int bytesPerPixel = 3;
+        final MCRMegaTilePlanner.Plan plan = MCRMegaTilePlanner.plan(size, size, 1, 1, bytesPerPixel,
+            bytesPerPixel, Long.MAX_VALUE, 1);
+        assertTrue(plan.toString(), plan.getMegaTileCount() > 1);
+        assertTrue(plan.toString(), (long) Math.min(size, plan.getMegaTileWidth())
+            * Math.min(size, plan.getMegaTileHeight()) * bytesPerPixel <= Integer.MAX_VALUE);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * This file is part of ***  M y C o R e  ***
+ * See http://www.mycore.de/ for details.
+ *  
+ * MyCoRe is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MyCoRe is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *  
+ * You should have received a copy of the GNU General Public License
+ * along with MyCoRe.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mycore.imagetiler.internal;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.nio.file.Paths;
+
+import org.junit.Test;
+
+/**
+ * Tests {@link MCROffHeapImage}.
+ */
+public class MCROffHeapImageTest {
+
+    /**
+     * Tests that images copied in and out of direct memory and memory mapped files keep their pixels.
+     * @throws Exception if the memory mapped file could not be created
+     */
+    @Test
+    public void testCopy() throws Exception {
+        for (int imageType : new int[] { BufferedImage.TYPE_3BYTE_BGR, BufferedImage.TYPE_INT_RGB,
+            BufferedImage.TYPE_BYTE_GRAY, BufferedImage.TYPE_USHORT_GRAY }) {
+            final BufferedImage expected = createImage(300, 200, imageType);
+            for (MCROffHeapImage offHeapImage : new MCROffHeapImage[] {
+                MCROffHeapImage.create(310, 200, imageType, null),
+                MCROffHeapImage.create(310, 200, imageType, Paths.get("target")) }) {
+                offHeapImage.setRect(0, 0, expected.getSubimage(0, 0, 150, 200));
+                offHeapImage.setRect(150, 0, expected.getSubimage(150, 0, 150, 200));
+                offHeapImage.setRect(300, 0, createImage(20, 200, BufferedImage.TYPE_INT_ARGB));
+                final BufferedImage band = new BufferedImage(310, 50, imageType);
+                offHeapImage.getRows(100, band);
+                assertArrayEquals(getRGB(expected.getSubimage(0, 100, 300, 50)), getRGB(band.getSubimage(0, 0, 300,
+                    50)));
+                assertArrayEquals(getRGB(expected), getRGB(offHeapImage.getImage().getSubimage(0, 0, 300, 200)));
+            }
+        }
+        assertNull(MCROffHeapImage.create(10, 10, BufferedImage.TYPE_BYTE_BINARY, null));
+        final MCROffHeapImage image = MCROffHeapImage.create(100, 10, BufferedImage.TYPE_INT_RGB, null);
+        assertEquals(100 * 10 * Integer.BYTES, image.getBytes());
+    }
+
+    private static BufferedImage createImage(final int width, final int height, final int imageType) {
+        final BufferedImage image = new BufferedImage(width, height, imageType);
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                image.setRGB(x, y, new Color(x % 256, y % 256, (x + y) % 256).getRGB());
+            }
+        }
+        return image;
+    }
+
+    private static int[] getRGB(final BufferedImage image) {
+        return image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+    }
+}